@@ -0,0 +1,73 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+
+/**
+ * Loading the IDP out of a federation aggregate by entity ID, building the whole DOM versus streaming out just
+ * the IDP entity. Run with -prof gc to see the allocation difference.
+ *
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateMetadataBenchmark {
+
+	@Param({ "true", "false" })
+	private boolean streaming;
+
+	@Param({ "5000" })
+	private int entities;
+
+	private TinySamlClientConfig config;
+
+	private File snapshotFile;
+
+	@Setup
+	public void setup() throws IOException {
+		final SamlFixtures fixtures = new SamlFixtures();
+		final File cache = File.createTempFile("idp-aggregate", ".xml");
+		cache.deleteOnExit();
+		Files.write(cache.toPath(), fixtures.getIdpMetadataAggregate(entities).getBytes(StandardCharsets.UTF_8));
+		snapshotFile = new File(cache.getPath() + ".snapshot");
+		snapshotFile.deleteOnExit();
+		config = fixtures.newConfig("tinySamlClient.idpFileCacheLocation=" + cache.getAbsolutePath().replace("\\", "\\\\") + "\n"
+				+ "tinySamlClient.idpEntityId=" + SamlFixtures.IDP_ENTITY_ID + "\n"
+				+ "tinySamlClient.idpMetadataStreaming=" + streaming + "\n");
+	}
+
+	@Benchmark
+	public String load() {
+		// always from the XML, not the snapshot
+		snapshotFile.delete();
+		final IdpMetadataUtils idpMetadataUtils = new IdpMetadataUtils(config);
+		try {
+			return idpMetadataUtils.getIdpSsoUrl();
+		} finally {
+			idpMetadataUtils.destroy();
+		}
+	}
+}
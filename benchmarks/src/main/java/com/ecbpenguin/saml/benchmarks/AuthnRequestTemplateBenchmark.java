@@ -0,0 +1,62 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.utils.AuthnRequestUtils;
+import com.ecbpenguin.saml.client.utils.ServiceProviderMetadataUtils;
+
+/**
+ * Template versus full build of an unsigned POST binding AuthnRequest. That the two produce the same bytes is
+ * covered by AuthnRequestTemplateTest.
+ * 
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthnRequestTemplateBenchmark {
+
+	private AuthnRequestUtils authnRequestUtils;
+
+	private byte[] buffer;
+
+	@Setup
+	public void setup() throws IOException {
+		final SamlFixtures fixtures = new SamlFixtures();
+		final ServiceProviderMetadataUtils spMetadataUtils = new ServiceProviderMetadataUtils(fixtures.getConfig().getServiceProviderMetadataFile());
+		authnRequestUtils = new AuthnRequestUtils(spMetadataUtils, null);
+		buffer = new byte[authnRequestUtils.getTemplatePostRequestLength()];
+	}
+
+	@Benchmark
+	public String fullBuild() {
+		return authnRequestUtils.wireEncodePostRequest(authnRequestUtils.buildAuthnRequest(false));
+	}
+
+	@Benchmark
+	public String template() {
+		return authnRequestUtils.buildTemplatePostRequest();
+	}
+
+	@Benchmark
+	public byte[] templateIntoBuffer() {
+		authnRequestUtils.buildTemplatePostRequest(buffer, 0);
+		return buffer;
+	}
+}
@@ -0,0 +1,64 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+
+/**
+ * Time until the IDP metadata is ready to validate responses, loading the binary snapshot left by an earlier run
+ * versus parsing the XML cache.
+ *
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColdStartBenchmark {
+
+	@Param({ "true", "false" })
+	private boolean snapshot;
+
+	private TinySamlClientConfig config;
+
+	private File snapshotFile;
+
+	@Setup
+	public void setup() throws IOException {
+		config = new SamlFixtures().getConfig();
+		snapshotFile = new File(config.getIdpMetadataCacheLocation() + ".snapshot");
+		// leaves the snapshot behind
+		new IdpMetadataUtils(config).destroy();
+	}
+
+	@Benchmark
+	public String metadataReady() {
+		if (!snapshot) {
+			snapshotFile.delete();
+		}
+		final IdpMetadataUtils idpMetadataUtils = new IdpMetadataUtils(config);
+		try {
+			return idpMetadataUtils.getIdpSsoUrl();
+		} finally {
+			idpMetadataUtils.destroy();
+		}
+	}
+}
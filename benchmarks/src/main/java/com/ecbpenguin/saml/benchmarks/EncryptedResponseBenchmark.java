@@ -0,0 +1,56 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.TinySamlClient;
+import com.ecbpenguin.saml.client.utils.SamlAuthenticationResult;
+
+/**
+ * Cost of validating a signed response whose assertion and / or NameID are encrypted to the SP, against the
+ * same response in the clear
+ * 
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptedResponseBenchmark {
+
+	@Param({ "plain", "encryptedAssertion", "encryptedAssertionAndNameId" })
+	public String encryption;
+
+	private TinySamlClient client;
+
+	private String encodedResponse;
+
+	@Setup
+	public void setup() throws IOException {
+		final SamlFixtures fixtures = new SamlFixtures();
+		client = new TinySamlClient(fixtures.getConfig());
+		final boolean encryptAssertion = !"plain".equals(encryption);
+		final boolean encryptNameId = "encryptedAssertionAndNameId".equals(encryption);
+		encodedResponse = fixtures.mintEncodedResponse(false, encryptAssertion, encryptNameId);
+	}
+
+	@Benchmark
+	public SamlAuthenticationResult authenticateSAMLResponsePostBinding() {
+		return client.authenticateSAMLResponsePostBinding(encodedResponse);
+	}
+}
@@ -0,0 +1,67 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.utils.AsyncErrorLog;
+
+/**
+ * Cost to a request thread of logging an error while every thread is doing the same. Most appends are dropped
+ * once the writer falls behind, which is the point: the caller never waits on the disk.
+ *
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ErrorLogBenchmark {
+
+	private AsyncErrorLog errorLog;
+
+	private File directory;
+
+	private final Exception failure = new IOException("Unable to parse SAML Response", new IllegalStateException("cause"));
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("tiny-saml-error-log").toFile();
+		errorLog = new AsyncErrorLog(new File(directory, "error.log"), 1024 * 1024, 2, 1024);
+	}
+
+	@TearDown
+	public void tearDown() {
+		errorLog.close();
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public boolean append() {
+		return errorLog.append(failure);
+	}
+}
@@ -0,0 +1,92 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.InvalidSamlResponseException;
+import com.ecbpenguin.saml.client.TinySamlClient;
+import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.client.utils.ParserPoolUtils;
+import com.ecbpenguin.saml.client.utils.ResponsePreValidator;
+import com.ecbpenguin.saml.client.utils.SAMLResponseUtils;
+import com.ecbpenguin.saml.client.utils.ServiceProviderMetadataUtils;
+
+/**
+ * Cost of rejecting a well formed, signed response posted to the wrong ACS, with and without the streaming
+ * pre-validation pass in front of the DOM parse
+ * 
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JunkResponseBenchmark {
+
+	@Param({ "true", "false" })
+	public boolean preValidate;
+
+	private SAMLResponseUtils samlResponseUtils;
+
+	private TinySamlClient client;
+
+	private String encodedJunk;
+
+	@Setup
+	public void setup() throws IOException {
+		final SamlFixtures fixtures = new SamlFixtures();
+		final ServiceProviderMetadataUtils spMetadataUtils = new ServiceProviderMetadataUtils(fixtures.getConfig().getServiceProviderMetadataFile());
+		final IdpMetadataUtils idpMetadataUtils = new IdpMetadataUtils(fixtures.getConfig());
+		final ResponsePreValidator preValidator = preValidate
+				? new ResponsePreValidator(1 << 20, 32, 32, spMetadataUtils, idpMetadataUtils)
+				: null;
+		samlResponseUtils = new SAMLResponseUtils(idpMetadataUtils, spMetadataUtils,
+				ParserPoolUtils.createParserPool(fixtures.getConfig().getParserPoolMaxSize()), null, null, preValidator);
+		client = new TinySamlClient(preValidate ? fixtures.newConfig("tinySamlClient.responseMaxBytes=1048576\n") : fixtures.getConfig());
+
+		final String xml = new String(Base64.getDecoder().decode(fixtures.mintEncodedResponse(true)), StandardCharsets.UTF_8);
+		final String junk = xml.replace("Destination=\"" + SamlFixtures.ACS_URL + "\"", "Destination=\"https://attacker.example.com/acs\"");
+		if (junk.equals(xml)) {
+			throw new IllegalStateException("Fixture response has no Destination to rewrite");
+		}
+		encodedJunk = Base64.getEncoder().encodeToString(junk.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public boolean rejectWrongDestination() {
+		try {
+			samlResponseUtils.validateSAMLResponsePostBinding(encodedJunk);
+		} catch (final IOException e) {
+			return true;
+		}
+		throw new IllegalStateException("Response with the wrong Destination was accepted");
+	}
+
+	// the client's full rejection path: stackless failure, summary logging, unchecked wrapper
+	@Benchmark
+	public boolean clientRejectWrongDestination() {
+		try {
+			client.parseSAMLResponsePostBinding(encodedJunk);
+		} catch (final InvalidSamlResponseException e) {
+			return true;
+		}
+		throw new IllegalStateException("Response with the wrong Destination was accepted");
+	}
+}
@@ -0,0 +1,99 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * One metadata refresh against a local server holding an unchanged federation sized document, with the server
+ * answering conditional requests with a 304 versus sending the whole document every time.
+ *
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataRefreshBenchmark {
+
+	private static final String ETAG = "\"tiny-saml-bench-1\"";
+
+	@Param({ "true", "false" })
+	private boolean conditional;
+
+	@Param({ "1000" })
+	private int entities;
+
+	private HttpServer server;
+
+	private IdpMetadataUtils idpMetadataUtils;
+
+	@Setup
+	public void setup() throws IOException {
+		final SamlFixtures fixtures = new SamlFixtures();
+		final byte[] metadata = fixtures.getIdpMetadataAggregate(entities).getBytes(StandardCharsets.UTF_8);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/metadata", exchange -> {
+			exchange.getResponseHeaders().set("ETag", ETAG);
+			if (conditional && ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				// the JDK server drops the connection after a bodiless reply, say so or the client retries on it
+				exchange.getResponseHeaders().set("Connection", "close");
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				exchange.getResponseHeaders().set("Content-Type", "application/samlmetadata+xml");
+				exchange.sendResponseHeaders(200, metadata.length);
+				try (OutputStream os = exchange.getResponseBody()) {
+					os.write(metadata);
+				}
+			}
+			exchange.close();
+		});
+		server.start();
+
+		final File cache = File.createTempFile("idp-metadata", ".xml");
+		cache.delete();
+		cache.deleteOnExit();
+		new File(cache.getPath() + ".snapshot").deleteOnExit();
+		final TinySamlClientConfig config = fixtures.newConfig(
+				"tinySamlClient.idpMetadataUrl=http://127.0.0.1:" + server.getAddress().getPort() + "/metadata\n"
+				+ "tinySamlClient.idpFileCacheLocation=" + cache.getAbsolutePath().replace("\\", "\\\\") + "\n"
+				// every invocation refreshes
+				+ "tinySamlClient.metadataForcedRefreshMinIntervalSeconds=0\n");
+		idpMetadataUtils = new IdpMetadataUtils(config);
+	}
+
+	@TearDown
+	public void tearDown() {
+		idpMetadataUtils.destroy();
+		server.stop(0);
+	}
+
+	@Benchmark
+	public boolean refresh() {
+		return idpMetadataUtils.forceRefreshAsync(Runnable::run).join();
+	}
+}
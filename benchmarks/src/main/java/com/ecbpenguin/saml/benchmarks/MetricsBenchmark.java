@@ -0,0 +1,76 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.saml.saml2.core.Response;
+import org.w3c.dom.Element;
+
+import com.ecbpenguin.saml.client.utils.HistogramMetricsListener;
+import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.client.utils.ParserPoolUtils;
+import com.ecbpenguin.saml.client.utils.SAMLResponseUtils;
+import com.ecbpenguin.saml.client.utils.ServiceProviderMetadataUtils;
+
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+
+/**
+ * Overhead of per stage metrics on the response checks, the cheapest stages and so where it shows most.
+ * Run with -prof gc to see that the checks allocate nothing extra with metrics off.
+ *
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+	private SAMLResponseUtils withoutMetrics;
+
+	private SAMLResponseUtils withHistogram;
+
+	private Response response;
+
+	@Setup
+	public void setup() throws Exception {
+		final SamlFixtures fixtures = new SamlFixtures();
+		final ServiceProviderMetadataUtils spMetadataUtils = new ServiceProviderMetadataUtils(fixtures.getConfig().getServiceProviderMetadataFile());
+		final IdpMetadataUtils idpMetadataUtils = new IdpMetadataUtils(fixtures.getConfig());
+		final ParserPool parserPool = ParserPoolUtils.createParserPool(fixtures.getConfig().getParserPoolMaxSize());
+
+		withoutMetrics = new SAMLResponseUtils(idpMetadataUtils, spMetadataUtils, parserPool);
+		withHistogram = new SAMLResponseUtils(idpMetadataUtils, spMetadataUtils, parserPool);
+		withHistogram.setMetricsListener(new HistogramMetricsListener());
+
+		final byte[] decoded = Base64.getDecoder().decode(fixtures.mintEncodedResponse(false));
+		final Element element = parserPool.parse(new ByteArrayInputStream(decoded)).getDocumentElement();
+		response = (Response) XMLObjectProviderRegistrySupport.getUnmarshallerFactory().getUnmarshaller(element).unmarshall(element);
+	}
+
+	@Benchmark
+	public String checksWithoutMetrics() throws IOException {
+		return withoutMetrics.validateSAMLResponse(response, false);
+	}
+
+	@Benchmark
+	public String checksWithHistogram() throws IOException {
+		return withHistogram.validateSAMLResponse(response, false);
+	}
+}
@@ -0,0 +1,70 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ecbpenguin.saml.client.TinySamlClient;
+
+/**
+ * A burst of signed POST binding requests arriving after a quiet spell, signed inline versus served from the
+ * pre-signed pool. Each invocation is one burst, the pool is refilled in between.
+ *
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PreSignedRequestBenchmark {
+
+	private static final int BURST = 64;
+
+	@Param({ "0", "128" })
+	private int poolSize;
+
+	private TinySamlClient client;
+
+	@Setup
+	public void setup() throws IOException {
+		client = new TinySamlClient(new SamlFixtures().newConfig("tinySamlClient.preSignedRequestPoolSize=" + poolSize + "\n"));
+	}
+
+	@Setup(Level.Iteration)
+	public void quietSpell() throws InterruptedException {
+		// long enough to sign a full pool on one slow core
+		Thread.sleep(poolSize == 0 ? 0 : 2000);
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.println("pre-signed hits " + client.getPreSignedRequestHits() + ", misses " + client.getPreSignedRequestMisses());
+		client.destroy();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void burst(final Blackhole blackhole) {
+		for (int i = 0; i < BURST; i++) {
+			blackhole.consume(client.buildSAMLRequestPostBinding(true));
+		}
+	}
+}
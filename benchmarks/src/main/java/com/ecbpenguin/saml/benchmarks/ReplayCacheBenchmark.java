@@ -0,0 +1,62 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.utils.AssertionReplayCache;
+
+/**
+ * Contended throughput of the replay cache. IDs cycle through a fixed set with a one second TTL, so runs mix
+ * first sightings, replays and whole bucket expiry.
+ * 
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ReplayCacheBenchmark {
+
+	private static final int ID_COUNT = 1 << 20;
+
+	private AssertionReplayCache replayCache;
+
+	private String[] ids;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next = (int) (Math.random() * ID_COUNT);
+	}
+
+	@Setup
+	public void setup() {
+		replayCache = new AssertionReplayCache(ID_COUNT * 2, 1000);
+		ids = new String[ID_COUNT];
+		for (int i = 0; i < ID_COUNT; i++) {
+			ids[i] = "_" + UUID.randomUUID().toString();
+		}
+	}
+
+	@Benchmark
+	public boolean markSeen(final Cursor cursor) throws IOException {
+		final String id = ids[cursor.next++ & (ID_COUNT - 1)];
+		return replayCache.markSeen(id, System.currentTimeMillis() + 1000);
+	}
+}
@@ -0,0 +1,60 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.TinySamlClient;
+
+/**
+ * Costs of building an AuthnRequest for each binding
+ * 
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+
+	private TinySamlClient client;
+
+	@Setup
+	public void setup() throws IOException {
+		final SamlFixtures fixtures = new SamlFixtures();
+		client = new TinySamlClient(fixtures.getConfig());
+	}
+
+	@Benchmark
+	public String postBindingUnsigned() {
+		return client.buildSAMLRequestPostBinding(false);
+	}
+
+	@Benchmark
+	public String postBindingSigned() {
+		return client.buildSAMLRequestPostBinding(true);
+	}
+
+	@Benchmark
+	public String redirectBinding() {
+		return client.buildSAMLRequestRedirectBinding(false);
+	}
+
+	@Benchmark
+	public String redirectBindingSigned() {
+		return client.buildSAMLRequestRedirectBinding(true);
+	}
+}
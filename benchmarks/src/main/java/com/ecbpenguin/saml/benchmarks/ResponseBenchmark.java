@@ -0,0 +1,149 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.UnmarshallerFactory;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.ecbpenguin.saml.client.TinySamlClient;
+import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.client.utils.ParserPoolUtils;
+import com.ecbpenguin.saml.client.utils.ResponsePreValidator;
+import com.ecbpenguin.saml.client.utils.SAMLResponseUtils;
+import com.ecbpenguin.saml.client.utils.SamlAuthenticationResult;
+import com.ecbpenguin.saml.client.utils.ServiceProviderMetadataUtils;
+
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * End to end and per stage costs of validating a signed SAML response from the POST binding
+ * 
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseBenchmark {
+
+	private TinySamlClient client;
+
+	private SAMLResponseUtils samlResponseUtils;
+
+	private IdpMetadataUtils idpMetadataUtils;
+
+	private ParserPool parserPool;
+
+	private ResponsePreValidator preValidator;
+
+	private UnmarshallerFactory unmarshallerFactory;
+
+	private String encodedResponse;
+
+	private byte[] decodedResponse;
+
+	private byte[] formBody;
+
+	private Element responseElement;
+
+	private Response response;
+
+	private Signature assertionSignature;
+
+	@Setup
+	public void setup() throws IOException, XMLParserException, UnmarshallingException {
+		final SamlFixtures fixtures = new SamlFixtures();
+		client = new TinySamlClient(fixtures.getConfig());
+
+		final ServiceProviderMetadataUtils spMetadataUtils = new ServiceProviderMetadataUtils(fixtures.getConfig().getServiceProviderMetadataFile());
+		idpMetadataUtils = new IdpMetadataUtils(fixtures.getConfig());
+		parserPool = ParserPoolUtils.createParserPool(fixtures.getConfig().getParserPoolMaxSize());
+		samlResponseUtils = new SAMLResponseUtils(idpMetadataUtils, spMetadataUtils, parserPool);
+		unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
+		preValidator = new ResponsePreValidator(1 << 20, 32, 32, spMetadataUtils, idpMetadataUtils);
+
+		encodedResponse = fixtures.mintEncodedResponse(false);
+		decodedResponse = Base64.getDecoder().decode(encodedResponse);
+		formBody = ("RelayState=%2Fhome&SAMLResponse=" + URLEncoder.encode(encodedResponse, "UTF-8")).getBytes(StandardCharsets.US_ASCII);
+		responseElement = domParse();
+		response = (Response) unmarshallerFactory.getUnmarshaller(responseElement).unmarshall(responseElement);
+		assertionSignature = response.getAssertions().get(0).getSignature();
+	}
+
+	@Benchmark
+	public String parseSAMLResponsePostBinding() {
+		return client.parseSAMLResponsePostBinding(encodedResponse);
+	}
+
+	@Benchmark
+	public SamlAuthenticationResult authenticateSAMLResponsePostBinding() {
+		return client.authenticateSAMLResponsePostBinding(encodedResponse);
+	}
+
+	@Benchmark
+	public String parseSAMLResponseFormBody() {
+		return client.parseSAMLResponseFormBody(new ByteArrayInputStream(formBody));
+	}
+
+	@Benchmark
+	public byte[] stageBase64Decode() {
+		return Base64.getDecoder().decode(encodedResponse);
+	}
+
+	@Benchmark
+	public byte[] stagePreValidate() throws IOException {
+		preValidator.validate(decodedResponse, decodedResponse.length);
+		return decodedResponse;
+	}
+
+	@Benchmark
+	public Element stageDomParse() throws XMLParserException {
+		return domParse();
+	}
+
+	@Benchmark
+	public XMLObject stageUnmarshall() throws UnmarshallingException {
+		return unmarshallerFactory.getUnmarshaller(responseElement).unmarshall(responseElement);
+	}
+
+	@Benchmark
+	public String stageChecks() throws IOException {
+		return samlResponseUtils.validateSAMLResponse(response, false);
+	}
+
+	@Benchmark
+	public boolean stageValidateIdpSignature() throws SignatureException {
+		return idpMetadataUtils.validateIdpSignature(assertionSignature);
+	}
+
+	private Element domParse() throws XMLParserException {
+		final Document document = parserPool.parse(new ByteArrayInputStream(decodedResponse));
+		return document.getDocumentElement();
+	}
+}
@@ -0,0 +1,299 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ecbpenguin.saml.client.TinySamlClient;
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+
+/**
+ * Drives full logins against a {@link SyntheticIdp} from many threads: the client builds an AuthnRequest, the
+ * IDP answers it and the client validates the response, with InResponseTo tracking and the replay cache on.
+ * Reports throughput and latency percentiles for every phase of the run.
+ *
+ * The run can roll the IDP key over (publish, switch, retire, each a phase) and take the metadata endpoint
+ * down for a while. Latencies are reported both for the whole round trip and for the client's share of it,
+ * as minting a signed response usually costs more than validating it.
+ *
+ * Usage: java -cp benchmarks.jar com.ecbpenguin.saml.benchmarks.SamlLoadDriver [-threads 8] [-seconds 30]
+ * [-signRequests] [-redirect] [-signResponses] [-encrypt] [-rollover] [-replaceKey] [-outage] [-refreshSeconds 2]
+ *
+ * @author ecb_penguin
+ *
+ */
+public class SamlLoadDriver {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private int seconds = 30;
+
+	private int refreshSeconds = 2;
+
+	private boolean signRequests;
+
+	private boolean redirect;
+
+	private boolean signResponses;
+
+	private boolean encrypt;
+
+	private boolean rollover;
+
+	private boolean replaceKey;
+
+	private boolean outage;
+
+	private final List<String> phaseNames = new ArrayList<>();
+
+	private volatile int phase;
+
+	private volatile boolean running = true;
+
+	private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+	/**
+	 * One thread's latencies for one phase, in nanoseconds
+	 */
+	private static final class Samples {
+
+		private long[] roundTrip = new long[1024];
+
+		private long[] client = new long[1024];
+
+		private int size;
+
+		private void add(final long roundTripNanos, final long clientNanos) {
+			if (size == roundTrip.length) {
+				roundTrip = Arrays.copyOf(roundTrip, size * 2);
+				client = Arrays.copyOf(client, size * 2);
+			}
+			roundTrip[size] = roundTripNanos;
+			client[size] = clientNanos;
+			size++;
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final SamlLoadDriver driver = new SamlLoadDriver();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-threads":
+				driver.threads = Integer.parseInt(args[++i]);
+				break;
+			case "-seconds":
+				driver.seconds = Integer.parseInt(args[++i]);
+				break;
+			case "-refreshSeconds":
+				driver.refreshSeconds = Integer.parseInt(args[++i]);
+				break;
+			case "-signRequests":
+				driver.signRequests = true;
+				break;
+			case "-redirect":
+				driver.redirect = true;
+				break;
+			case "-signResponses":
+				driver.signResponses = true;
+				break;
+			case "-encrypt":
+				driver.encrypt = true;
+				break;
+			case "-rollover":
+				driver.rollover = true;
+				break;
+			case "-replaceKey":
+				driver.replaceKey = true;
+				break;
+			case "-outage":
+				driver.outage = true;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		driver.run();
+	}
+
+	private void run() throws Exception {
+		final SamlFixtures fixtures = new SamlFixtures();
+		try (SyntheticIdp idp = new SyntheticIdp(fixtures)) {
+			idp.setResponseOptions(signResponses, encrypt);
+			final File cache = File.createTempFile("idp-metadata", ".xml");
+			cache.delete();
+			cache.deleteOnExit();
+			new File(cache.getPath() + ".snapshot").deleteOnExit();
+			final TinySamlClientConfig config = fixtures.newConfig("tinySamlClient.idpMetadataUrl=" + idp.getMetadataUrl() + "\n"
+					+ "tinySamlClient.idpFileCacheLocation=" + cache.getAbsolutePath().replace("\\", "\\\\") + "\n"
+					+ "tinySamlClient.metadataRefreshIntervalSeconds=" + refreshSeconds + "\n"
+					+ "tinySamlClient.replayCacheMaxEntries=1000000\n"
+					+ "tinySamlClient.requestTrackerMaxEntries=1000000\n");
+			final TinySamlClient client = new TinySamlClient(config);
+			try {
+				drive(client, idp);
+			} finally {
+				client.destroy();
+			}
+			System.out.printf("metadata requests %d, 304 %d%n", idp.getMetadataRequests(), idp.getNotModifiedResponses());
+		}
+	}
+
+	private void drive(final TinySamlClient client, final SyntheticIdp idp) throws Exception {
+		final List<Runnable> events = new ArrayList<>();
+		phaseNames.add("steady");
+		if (rollover) {
+			events.add(step(idp::beginKeyRollover, "rollover: new key published"));
+			events.add(step(idp::switchSigningKey, "rollover: signing with new key"));
+			events.add(step(idp::completeKeyRollover, "rollover: old key retired"));
+		}
+		if (replaceKey) {
+			events.add(step(idp::replaceKey, "unannounced key change"));
+		}
+		if (outage) {
+			events.add(step(() -> idp.setMetadataOutage(true), "metadata outage"));
+			events.add(step(() -> idp.setMetadataOutage(false), "metadata back"));
+		}
+		final long phaseMillis = TimeUnit.SECONDS.toMillis(seconds) / (events.size() + 1);
+
+		final List<List<Samples>> samples = new ArrayList<>();
+		final CountDownLatch done = new CountDownLatch(threads);
+		final Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final List<Samples> perPhase = new ArrayList<>();
+			for (int p = 0; p <= events.size(); p++) {
+				perPhase.add(new Samples());
+			}
+			samples.add(perPhase);
+			workers[t] = new Thread(() -> {
+				try {
+					work(client, idp, perPhase);
+				} finally {
+					done.countDown();
+				}
+			}, "load-" + t);
+			workers[t].start();
+		}
+
+		final long start = System.nanoTime();
+		for (int e = 0; e < events.size(); e++) {
+			Thread.sleep(phaseMillis);
+			events.get(e).run();
+			phase = e + 1;
+		}
+		Thread.sleep(phaseMillis);
+		running = false;
+		done.await();
+		final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+		report(samples, phaseMillis / 1000.0, elapsedSeconds);
+	}
+
+	private interface Step {
+		void run() throws IOException;
+	}
+
+	private Runnable step(final Step step, final String name) {
+		phaseNames.add(name);
+		return () -> {
+			try {
+				step.run();
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		};
+	}
+
+	private void work(final TinySamlClient client, final SyntheticIdp idp, final List<Samples> perPhase) {
+		while (running) {
+			final int currentPhase = phase;
+			final long start = System.nanoTime();
+			try {
+				final String request = redirect
+						? client.buildSAMLRequestRedirectBinding(signRequests)
+						: client.buildSAMLRequestPostBinding(signRequests);
+				final long built = System.nanoTime();
+				final String response = redirect ? idp.respondToRedirect(request) : idp.respond(request);
+				final long minted = System.nanoTime();
+				client.parseSAMLResponsePostBinding(response);
+				final long end = System.nanoTime();
+				perPhase.get(currentPhase).add(end - start, (built - start) + (end - minted));
+			} catch (final Exception e) {
+				final String message = e.getMessage() == null ? "" : e.getMessage();
+				failures.computeIfAbsent(phaseNames.get(currentPhase) + ": " + e.getClass().getSimpleName() + " "
+						+ message.substring(0, Math.min(120, message.length())), k -> new LongAdder()).increment();
+			}
+		}
+	}
+
+	private void report(final List<List<Samples>> samples, final double phaseSeconds, final double elapsedSeconds) {
+		System.out.printf("%d threads, %s requests%s, %s responses%s%n", threads, signRequests ? "signed" : "unsigned",
+				redirect ? " (redirect)" : "", signResponses ? "signed" : "unsigned", encrypt ? ", encrypted assertions" : "");
+		System.out.printf("%-32s %9s %9s   %-44s %-44s%n", "phase", "logins", "per sec", "round trip ms p50/p90/p99/p99.9/max",
+				"client ms p50/p90/p99/p99.9/max");
+		final List<long[]> allRoundTrips = new ArrayList<>();
+		final List<long[]> allClient = new ArrayList<>();
+		for (int p = 0; p < phaseNames.size(); p++) {
+			final List<long[]> roundTrips = new ArrayList<>();
+			final List<long[]> client = new ArrayList<>();
+			for (final List<Samples> perPhase : samples) {
+				final Samples s = perPhase.get(p);
+				roundTrips.add(Arrays.copyOf(s.roundTrip, s.size));
+				client.add(Arrays.copyOf(s.client, s.size));
+			}
+			allRoundTrips.addAll(roundTrips);
+			allClient.addAll(client);
+			printRow(phaseNames.get(p), roundTrips, client, phaseSeconds);
+		}
+		printRow("total", allRoundTrips, allClient, elapsedSeconds);
+		if (failures.isEmpty()) {
+			System.out.println("no failures");
+		} else {
+			for (final Map.Entry<String, LongAdder> failure : new TreeMap<>(failures).entrySet()) {
+				System.out.printf("%8d failed  %s%n", failure.getValue().sum(), failure.getKey());
+			}
+		}
+	}
+
+	private static void printRow(final String name, final List<long[]> roundTrips, final List<long[]> client, final double seconds) {
+		final long[] roundTrip = merge(roundTrips);
+		System.out.printf("%-32s %9d %9.0f   %-44s %-44s%n", name, roundTrip.length, roundTrip.length / seconds,
+				percentiles(roundTrip), percentiles(merge(client)));
+	}
+
+	private static long[] merge(final List<long[]> parts) {
+		int size = 0;
+		for (final long[] part : parts) {
+			size += part.length;
+		}
+		final long[] merged = new long[size];
+		int offset = 0;
+		for (final long[] part : parts) {
+			System.arraycopy(part, 0, merged, offset, part.length);
+			offset += part.length;
+		}
+		Arrays.sort(merged);
+		return merged;
+	}
+
+	private static String percentiles(final long[] sorted) {
+		if (sorted.length == 0) {
+			return "-";
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final double percentile : PERCENTILES) {
+			final int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1);
+			sb.append(String.format("%.2f/", sorted[Math.max(0, index)] / 1e6));
+		}
+		return sb.append(String.format("%.2f", sorted[sorted.length - 1] / 1e6)).toString();
+	}
+}
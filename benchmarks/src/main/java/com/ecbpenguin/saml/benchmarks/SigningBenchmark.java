@@ -0,0 +1,62 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ecbpenguin.saml.client.TinySamlClient;
+
+/**
+ * Cost of a signed AuthnRequest by SP key type, for the embedded XML signature of the POST binding and the
+ * query string signature of the redirect binding.
+ *
+ * @author ecb_penguin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SigningBenchmark {
+
+	@Param({ "RSA-2048", "RSA-3072", "EC-256" })
+	private String key;
+
+	private TinySamlClient client;
+
+	@Setup
+	public void setup() throws IOException {
+		final String[] algorithmAndSize = key.split("-");
+		final SamlFixtures fixtures = new SamlFixtures();
+		client = new TinySamlClient(fixtures.newServiceProviderConfig(algorithmAndSize[0], Integer.parseInt(algorithmAndSize[1]), true));
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.destroy();
+	}
+
+	@Benchmark
+	public String signedPost() {
+		return client.buildSAMLRequestPostBinding(true);
+	}
+
+	@Benchmark
+	public String signedRedirect() {
+		return client.buildSAMLRequestRedirectBinding(true);
+	}
+}
@@ -0,0 +1,261 @@
+package com.ecbpenguin.saml.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * A stand in IDP for load tests: serves its metadata on a local port and answers AuthnRequests with signed,
+ * optionally encrypted, responses for the {@link SamlFixtures} SP.
+ *
+ * The metadata endpoint sends an ETag and answers If-None-Match with 304, like a real IDP behind a CDN. Key
+ * rollovers and metadata outages can be started at any time while clients are running against it.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class SyntheticIdp implements AutoCloseable {
+
+	private final SamlFixtures fixtures;
+
+	private final HttpServer server;
+
+	private final ExecutorService serverExecutor;
+
+	private final AtomicLong metadataRequests = new AtomicLong();
+
+	private final AtomicLong notModifiedResponses = new AtomicLong();
+
+	private volatile boolean signResponses;
+
+	private volatile boolean encryptAssertions;
+
+	private volatile boolean metadataOutage;
+
+	// replaced as a whole so minting threads never see a half done rollover
+	private volatile KeyState keys;
+
+	private long metadataVersion;
+
+	private static final class KeyState {
+
+		private final BasicX509Credential signingCredential;
+
+		// published alongside the signing key while a rollover is in progress, else null
+		private final BasicX509Credential nextCredential;
+
+		private final byte[] metadata;
+
+		private final String etag;
+
+		private KeyState(final BasicX509Credential signingCredential, final BasicX509Credential nextCredential, final long version) throws IOException {
+			this.signingCredential = signingCredential;
+			this.nextCredential = nextCredential;
+			this.metadata = (nextCredential == null
+					? SamlFixtures.idpMetadata(signingCredential.getEntityCertificate())
+					: SamlFixtures.idpMetadata(signingCredential.getEntityCertificate(), nextCredential.getEntityCertificate()))
+					.getBytes(StandardCharsets.UTF_8);
+			this.etag = "\"v" + version + "\"";
+		}
+	}
+
+	/**
+	 * Starts serving metadata on an ephemeral local port
+	 *
+	 * @param fixtures the SP to answer, its IDP key is the first signing key
+	 */
+	public SyntheticIdp(final SamlFixtures fixtures) throws IOException {
+		this.fixtures = fixtures;
+		this.keys = new KeyState(fixtures.getIdpCredential(), null, ++metadataVersion);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/metadata", this::serveMetadata);
+		serverExecutor = Executors.newFixedThreadPool(4, r -> {
+			final Thread t = new Thread(r, "synthetic-idp-metadata");
+			t.setDaemon(true);
+			return t;
+		});
+		server.setExecutor(serverExecutor);
+		server.start();
+	}
+
+	private void serveMetadata(final HttpExchange exchange) throws IOException {
+		metadataRequests.incrementAndGet();
+		try {
+			// the JDK server drops the connection after a bodiless reply, so those say Connection: close
+			// rather than leave the client to find out on its next refresh
+			if (metadataOutage) {
+				exchange.getResponseHeaders().set("Connection", "close");
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			final KeyState current = keys;
+			exchange.getResponseHeaders().set("ETag", current.etag);
+			if (current.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModifiedResponses.incrementAndGet();
+				exchange.getResponseHeaders().set("Connection", "close");
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/samlmetadata+xml");
+			exchange.sendResponseHeaders(200, current.metadata.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(current.metadata);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return the URL for tinySamlClient.idpMetadataUrl
+	 */
+	public String getMetadataUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/metadata";
+	}
+
+	/**
+	 * @return the IDP metadata currently being served
+	 */
+	public String getMetadata() {
+		return new String(keys.metadata, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param signResponses whether to sign the response as well as the assertion
+	 * @param encryptAssertions whether to send assertions encrypted to the SP certificate
+	 */
+	public void setResponseOptions(final boolean signResponses, final boolean encryptAssertions) {
+		this.signResponses = signResponses;
+		this.encryptAssertions = encryptAssertions;
+	}
+
+	/**
+	 * Answers a POST binding AuthnRequest
+	 *
+	 * @param encodedAuthnRequest the value of the SAMLRequest form parameter
+	 * @return the value of the SAMLResponse form parameter, InResponseTo the request
+	 */
+	public String respond(final String encodedAuthnRequest) throws IOException {
+		return respond(new ByteArrayInputStream(Base64.getMimeDecoder().decode(encodedAuthnRequest)));
+	}
+
+	/**
+	 * Answers a redirect binding AuthnRequest
+	 *
+	 * @param redirectUrl the URL the SP redirects the browser to
+	 * @return the value of the SAMLResponse form parameter, InResponseTo the request
+	 */
+	public String respondToRedirect(final String redirectUrl) throws IOException {
+		final String encoded = queryParameter(redirectUrl, "SAMLRequest");
+		if (encoded == null) {
+			throw new IOException("No SAMLRequest in " + redirectUrl);
+		}
+		// the redirect binding deflates without the zlib header
+		return respond(new InflaterInputStream(new ByteArrayInputStream(Base64.getMimeDecoder().decode(encoded)), new Inflater(true)));
+	}
+
+	private String respond(final InputStream authnRequestXml) throws IOException {
+		final AuthnRequest authnRequest;
+		try {
+			authnRequest = (AuthnRequest) XMLObjectSupport.unmarshallFromInputStream(XMLObjectProviderRegistrySupport.getParserPool(), authnRequestXml);
+		} catch (final XMLParserException | UnmarshallingException | ClassCastException e) {
+			throw new IOException("Not an AuthnRequest", e);
+		}
+		final String xml = SerializeSupport.nodeToString(fixtures.mintResponse(signResponses, encryptAssertions, false,
+				authnRequest.getID(), keys.signingCredential).getDOM());
+		return Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String queryParameter(final String url, final String name) throws UnsupportedEncodingException {
+		final int query = url.indexOf('?');
+		if (query < 0) {
+			return null;
+		}
+		for (final String parameter : url.substring(query + 1).split("&")) {
+			if (parameter.startsWith(name + "=")) {
+				return URLDecoder.decode(parameter.substring(name.length() + 1), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * First step of a rollover: publishes a new key next to the current one, still signing with the current one
+	 */
+	public synchronized void beginKeyRollover() throws IOException {
+		if (keys.nextCredential != null) {
+			throw new IllegalStateException("A key rollover is already in progress");
+		}
+		keys = new KeyState(keys.signingCredential, SamlFixtures.newIdpCredential(), ++metadataVersion);
+	}
+
+	/**
+	 * Second step: signs with the new key, both stay published
+	 */
+	public synchronized void switchSigningKey() throws IOException {
+		if (keys.nextCredential == null) {
+			throw new IllegalStateException("No key rollover in progress");
+		}
+		// the old key stays published as the second one until the rollover completes
+		keys = new KeyState(keys.nextCredential, keys.signingCredential, ++metadataVersion);
+	}
+
+	/**
+	 * Last step: stops publishing the old key
+	 */
+	public synchronized void completeKeyRollover() throws IOException {
+		keys = new KeyState(keys.signingCredential, null, ++metadataVersion);
+	}
+
+	/**
+	 * An unannounced key change: signs with a new key at once and publishes only that one, so clients only
+	 * learn of it from a response that fails to verify
+	 */
+	public synchronized void replaceKey() throws IOException {
+		keys = new KeyState(SamlFixtures.newIdpCredential(), null, ++metadataVersion);
+	}
+
+	/**
+	 * @param outage true to answer every metadata request with 503 until called with false
+	 */
+	public void setMetadataOutage(final boolean outage) {
+		this.metadataOutage = outage;
+	}
+
+	public long getMetadataRequests() {
+		return metadataRequests.get();
+	}
+
+	public long getNotModifiedResponses() {
+		return notModifiedResponses.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,25 @@
+package com.ecbpenguin.saml.client;
+
+import com.ecbpenguin.saml.client.utils.SamlValidationException;
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+/**
+ * Thrown by {@link TinySamlClient} when a SAML response fails validation.
+ *
+ * Like its cause, it has no stack trace, so rejecting a response stays cheap.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class InvalidSamlResponseException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public InvalidSamlResponseException(final SamlValidationException cause) {
+		super(cause.getMessage(), cause, false, false);
+	}
+
+	public Reason getReason() {
+		return ((SamlValidationException) getCause()).getReason();
+	}
+}
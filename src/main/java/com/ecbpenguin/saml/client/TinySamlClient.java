@@ -1,6 +1,19 @@
 package com.ecbpenguin.saml.client;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.opensaml.core.config.InitializationService;
 import org.opensaml.saml.saml2.core.AuthnRequest;
@@ -8,14 +21,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ecbpenguin.saml.client.utils.AuthnRequestUtils;
+import com.ecbpenguin.saml.client.utils.FileChangeWatcher;
+import com.ecbpenguin.saml.client.utils.FormParameterInputStream;
+import com.ecbpenguin.saml.client.utils.IdpMetadataChangeListener;
+import com.ecbpenguin.saml.client.utils.IdpSignatureException;
 import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.client.utils.ParserPoolUtils;
+import com.ecbpenguin.saml.client.utils.PreSignedRequestPool;
+import com.ecbpenguin.saml.client.utils.ResponseCheck;
 import com.ecbpenguin.saml.client.utils.SAMLResponseUtils;
-import com.ecbpenguin.saml.client.utils.ServiceProviderMetadataUtils;
+import com.ecbpenguin.saml.client.utils.SamlAuthenticationResult;
+import com.ecbpenguin.saml.client.utils.SamlMetricsListener;
+import com.ecbpenguin.saml.client.utils.SamlValidationException;
+import com.ecbpenguin.saml.client.utils.ValidationFailureLog;
 import com.ecbpenguin.saml.config.TinySamlClientConfig;
-import com.ecbpenguin.utils.FileLogUtils;
+import com.ecbpenguin.utils.AsyncErrorLog;
+
+import net.shibboleth.utilities.java.support.xml.ParserPool;
 
 /**
  * This is a simple SAML client that is "operational" - e.g. resilient to metadata / certificate changes
+ * 
+ * A single instance is safe to share across request threads. The *Async methods run the CPU bound work on
+ * the crypto executor and any forced metadata download on the I/O executor, see {@link TinySamlClientExecutors},
+ * so they can be called from event loop threads.
+ * 
+ * With tinySamlClient.configReloadQuietMillis set, the properties file, SP metadata and SP key are watched and
+ * reloaded when they change, see {@link #reloadServiceProvider()}. With tinySamlClient.preSignedRequestPoolSize
+ * set, signed POST binding requests come from a queue kept full by a background thread, see
+ * {@link PreSignedRequestPool}.
  * @author ecb_penguin
  *
  */
@@ -23,45 +57,114 @@ public class TinySamlClient {
 
 	private final Logger LOGGER = LoggerFactory.getLogger(TinySamlClient.class);
 
-	private final AuthnRequestUtils authnRequestUtils;
-
-	private final SAMLResponseUtils samlResponseUtils;
+	// replaced as a whole on reload, every request reads it once
+	private volatile TinySamlClientServiceProvider serviceProvider;
 
 	private final IdpMetadataUtils idpMetadataUtils; 
 
-	private final ServiceProviderMetadataUtils serviceProviderMetadataUtils;
+	private final ParserPool parserPool;
+
+	private final TinySamlClientState state;
+
+	// null unless the configuration files are watched
+	private final FileChangeWatcher configWatcher;
+
+	private SamlMetricsListener metricsListener = SamlMetricsListener.NOOP;
+
+	// null for none, applied again to every reloaded service provider
+	private List<ResponseCheck> customResponseChecks;
+
+	private final TinySamlClientExecutors executors;
+
+	// executors built for this client alone are shut down with it, shared ones belong to the resources
+	private final boolean ownsExecutors;
+
+	private final ValidationFailureLog validationFailureLog;
 
 	public TinySamlClient() throws IOException {
 		this(null);
 	}
 
 	public TinySamlClient(final TinySamlClientConfig config) throws IOException {
+		this(config, null, config == null ? null : TinySamlClientState.from(config));
+	}
 
-		
-		try {
-			InitializationService.initialize();
-		} catch (final Throwable t) {
-			FileLogUtils.log(t);
+	/**
+	 * Builds a client that shares its HTTP client, parser pool and refresh timer with other clients.
+	 * 
+	 * @param config client configuration
+	 * @param resources shared resources, see {@link TinySamlClientResources}
+	 */
+	public TinySamlClient(final TinySamlClientConfig config, final TinySamlClientResources resources) throws IOException {
+		this(config, resources, config == null ? null : TinySamlClientState.from(config));
+	}
+
+	TinySamlClient(final TinySamlClientConfig config, final TinySamlClientResources resources, final TinySamlClientState state) throws IOException {
+
+		if (resources == null) {
+			try {
+				InitializationService.initialize();
+			} catch (final Throwable t) {
+				AsyncErrorLog.log(t);
+			}
 		}
 
+		validationFailureLog = new ValidationFailureLog(config == null ? 0 : config.getValidationFailureLogIntervalSeconds());
+
+		if (config == null) {
+			executors = null;
+			ownsExecutors = false;
+		} else if (resources == null) {
+			executors = new TinySamlClientExecutors(config.getAsyncCryptoThreads(), config.getAsyncCryptoQueueSize(), config.getAsyncIoThreads());
+			ownsExecutors = true;
+		} else {
+			executors = resources.getExecutors();
+			ownsExecutors = false;
+		}
+
+		this.state = state;
+
+		// built into locals so a failure part way can stop whatever already started
+		IdpMetadataUtils builtIdpMetadataUtils = null;
+		TinySamlClientServiceProvider builtServiceProvider = null;
+		FileChangeWatcher builtConfigWatcher = null;
 		try {
 			if (config == null ) {
-				authnRequestUtils = null;
-				samlResponseUtils = null;
-				idpMetadataUtils = null;
-				serviceProviderMetadataUtils = null;
+				parserPool = null;
 			} else {
-				final String spMetadataFile = config.getServiceProviderMetadataFile();
-				serviceProviderMetadataUtils = new ServiceProviderMetadataUtils(spMetadataFile);
-				idpMetadataUtils = new IdpMetadataUtils(config);
-				authnRequestUtils = new AuthnRequestUtils(serviceProviderMetadataUtils, config.getServiceProviderSigningKeyLocation());
-				samlResponseUtils = new SAMLResponseUtils(idpMetadataUtils, serviceProviderMetadataUtils);
+				if (resources == null) {
+					parserPool = ParserPoolUtils.createParserPool(config.getParserPoolMaxSize());
+					builtIdpMetadataUtils = new IdpMetadataUtils(config);
+				} else {
+					parserPool = resources.getParserPool();
+					builtIdpMetadataUtils = new IdpMetadataUtils(config, resources.getHttpClient(), parserPool, resources.getBackgroundTaskTimer());
+				}
+				builtServiceProvider = TinySamlClientServiceProvider.build(config, parserPool, builtIdpMetadataUtils, state);
+				if (config.getConfigReloadQuietMillis() > 0) {
+					builtConfigWatcher = new FileChangeWatcher(config.getConfigReloadQuietMillis(), this::reloadServiceProvider);
+					builtConfigWatcher.watch(watchedFiles(config));
+				}
 			}
 		} catch (final Exception e) {
 			LOGGER.error(e.getMessage(), e);
-			FileLogUtils.log(e);
+			AsyncErrorLog.log(e);
+			if (builtConfigWatcher != null) {
+				builtConfigWatcher.close();
+			}
+			if (builtServiceProvider != null) {
+				builtServiceProvider.close();
+			}
+			if (builtIdpMetadataUtils != null) {
+				builtIdpMetadataUtils.destroy();
+			}
+			if (ownsExecutors) {
+				executors.shutdown();
+			}
 			throw e;
 		}
+		idpMetadataUtils = builtIdpMetadataUtils;
+		serviceProvider = builtServiceProvider;
+		configWatcher = builtConfigWatcher;
 
 	}
 
@@ -72,19 +175,49 @@ public class TinySamlClient {
 	 * @return
 	 */
 	public final String buildSAMLRequestPostBinding(final boolean sign) {
+		final TinySamlClientServiceProvider serviceProvider = this.serviceProvider;
+		final AuthnRequestUtils authnRequestUtils = serviceProvider.getAuthnRequestUtils();
+		if (!sign) {
+			// unsigned requests only differ by ID and IssueInstant, fill in the pre-serialized template
+			return authnRequestUtils.buildTemplatePostRequest();
+		}
+		final String preSigned = serviceProvider.takePreSignedRequest();
+		if (preSigned != null) {
+			return preSigned;
+		}
 		final AuthnRequest request = authnRequestUtils.buildAuthnRequest(sign);
 		return authnRequestUtils.wireEncodePostRequest(request);
 	}
 
+	/**
+	 * Builds an unsigned SAML2 AuthnRequest for the POST binding, writing the base64 encoded request into the caller's buffer.
+	 * 
+	 * @param destination buffer with at least {@link #getSAMLRequestPostBindingLength()} bytes from offset
+	 * @param offset where to start writing
+	 * @return the number of bytes written
+	 */
+	public final int buildSAMLRequestPostBinding(final byte[] destination, final int offset) {
+		return serviceProvider.getAuthnRequestUtils().buildTemplatePostRequest(destination, offset);
+	}
+
+	/**
+	 * @return the length of every unsigned, base64 encoded POST binding request
+	 */
+	public final int getSAMLRequestPostBindingLength() {
+		return serviceProvider.getAuthnRequestUtils().getTemplatePostRequestLength();
+	}
+
 	/**
 	 * Builds a SAML2 AuthnRequest and encodes it for the redirect binding, including all URL parameters 
-	 * @param sign
+	 * @param sign whether or not to sign the request, via the SigAlg and Signature URL parameters
 	 * @return
 	 */
 	public final String buildSAMLRequestRedirectBinding(final boolean sign) {
+		final AuthnRequestUtils authnRequestUtils = serviceProvider.getAuthnRequestUtils();
+		// the redirect binding signs the query string, never the XML
 		final AuthnRequest request = authnRequestUtils.buildAuthnRequest(false);
 		try {
-			return authnRequestUtils.wireEncodeRedirectRequest(request, getIdpSSOUrl());
+			return authnRequestUtils.wireEncodeRedirectRequest(request, getIdpSSOUrl(), sign);
 		} catch (final IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -98,6 +231,127 @@ public class TinySamlClient {
 		return idpMetadataUtils.getIdpSsoUrl();
 	}
 
+	/**
+	 * Stops scheduled IDP metadata refreshes and releases the parsed metadata. The on disk metadata cache is kept.
+	 */
+	public void destroy() {
+		if (configWatcher != null) {
+			configWatcher.close();
+		}
+		if (serviceProvider != null) {
+			serviceProvider.close();
+		}
+		if (idpMetadataUtils != null) {
+			idpMetadataUtils.destroy();
+		}
+		if (ownsExecutors) {
+			executors.shutdown();
+		}
+	}
+
+	/**
+	 * Reports per stage timings of request building and response validation, failures by the stage that
+	 * rejected them, and IDP metadata refreshes. Off by default, and free while off.
+	 * 
+	 * @param listener the listener, or null to stop reporting
+	 */
+	public final synchronized void setMetricsListener(final SamlMetricsListener listener) {
+		metricsListener = listener;
+		serviceProvider.setMetricsListener(listener);
+		idpMetadataUtils.setMetricsListener(listener);
+	}
+
+	/**
+	 * Adds response checks of your own, run after the IDP signature is verified and before InResponseTo and
+	 * replay detection consume any IDs. Replaces any custom checks set before, and survives reloads.
+	 * 
+	 * @param checks thread safe checks, or null for none
+	 */
+	public final synchronized void setCustomResponseChecks(final List<ResponseCheck> checks) {
+		customResponseChecks = checks == null ? null : new ArrayList<>(checks);
+		serviceProvider.setCustomChecks(customResponseChecks);
+	}
+
+	/**
+	 * Re-reads the properties file, SP metadata and SP private key, and switches to them if they are usable: the
+	 * SP metadata parses and the private key matches its signing certificate. Otherwise the current ones are
+	 * kept and the problem is logged. Requests already running finish with the configuration they started with.
+	 * 
+	 * IDP metadata settings, cache sizes and thread pools are not reloaded, they take effect on restart. The
+	 * replay cache and outstanding requests carry over.
+	 * 
+	 * Called by the file watcher when tinySamlClient.configReloadQuietMillis is set, and safe to call directly.
+	 * 
+	 * @return whether the reloaded configuration is now in use
+	 */
+	public final synchronized boolean reloadServiceProvider() {
+		final TinySamlClientServiceProvider current = serviceProvider;
+		if (current == null) {
+			return false;
+		}
+		final long start = System.nanoTime();
+		final TinySamlClientServiceProvider reloaded;
+		try {
+			final TinySamlClientConfig config = new TinySamlClientConfig(current.getConfig().getConfigFile());
+			reloaded = TinySamlClientServiceProvider.build(config, parserPool, idpMetadataUtils, state);
+		} catch (final IOException | RuntimeException e) {
+			LOGGER.error("Keeping the current service provider configuration, the reloaded one is unusable", e);
+			return false;
+		}
+		reloaded.setMetricsListener(metricsListener);
+		reloaded.setCustomChecks(customResponseChecks);
+		serviceProvider = reloaded;
+		current.close();
+
+		final TinySamlClientConfig previousConfig = current.getConfig();
+		final TinySamlClientConfig config = reloaded.getConfig();
+		if (!Objects.equals(previousConfig.getIdpMetadataUrl(), config.getIdpMetadataUrl())
+				|| !Objects.equals(previousConfig.getIdpMetadataCacheLocation(), config.getIdpMetadataCacheLocation())) {
+			LOGGER.warn("The IDP metadata settings changed in {}, they take effect on restart", config.getConfigFile());
+		}
+		if (configWatcher != null) {
+			try {
+				configWatcher.watch(watchedFiles(config));
+			} catch (final IOException e) {
+				LOGGER.warn("Unable to watch the reloaded configuration files: {}", e.toString());
+			}
+		}
+		LOGGER.info("Reloaded service provider configuration from {} in {} ms", config.getConfigFile(),
+				(System.nanoTime() - start) / 1000000);
+		return true;
+	}
+
+	/**
+	 * @return signed POST requests served from the pre-signed pool since it started, or since the last reload
+	 */
+	public final long getPreSignedRequestHits() {
+		final PreSignedRequestPool pool = serviceProvider.getPreSignedRequestPool();
+		return pool == null ? 0 : pool.getHitCount();
+	}
+
+	/**
+	 * @return signed POST requests signed inline because the pre-signed pool had nothing fresh; 0 when the
+	 * pool is off
+	 */
+	public final long getPreSignedRequestMisses() {
+		final PreSignedRequestPool pool = serviceProvider.getPreSignedRequestPool();
+		return pool == null ? 0 : pool.getMissCount();
+	}
+
+	private static List<File> watchedFiles(final TinySamlClientConfig config) {
+		final String keyLocation = config.getServiceProviderSigningKeyLocation();
+		return Arrays.asList(new File(config.getConfigFile()), new File(config.getServiceProviderMetadataFile()),
+				keyLocation == null || keyLocation.length() == 0 ? null : new File(keyLocation));
+	}
+
+	/**
+	 * Registers a listener that is told whenever the IDP endpoint or signing certificates change
+	 * @param listener the listener to add
+	 */
+	public final void addIdpMetadataChangeListener(final IdpMetadataChangeListener listener) {
+		idpMetadataUtils.addChangeListener(listener);
+	}
+
 	/**
 	 * Returns the name ID associated with the SAML response, or null if the name ID can
 	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding
@@ -105,12 +359,224 @@ public class TinySamlClient {
 	 * @return the name in the response, null otherwise.
 	 */
 	public final String parseSAMLResponsePostBinding(final String encodedSamlResponse) {
+		return authenticateSAMLResponsePostBinding(encodedSamlResponse).getNameId();
+	}
+
+	/**
+	 * Returns the name ID associated with the SAML response
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding, as ASCII bytes
+	 * 
+	 * @return the name in the response
+	 */
+	public final String parseSAMLResponsePostBinding(final byte[] encodedSamlResponse) {
+		return parseSAMLResponsePostBinding(encodedSamlResponse == null ? null : ByteBuffer.wrap(encodedSamlResponse));
+	}
+
+	/**
+	 * Returns the name ID associated with the SAML response
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding, between position and limit
+	 * 
+	 * @return the name in the response
+	 */
+	public final String parseSAMLResponsePostBinding(final ByteBuffer encodedSamlResponse) {
+		return authenticateSAMLResponsePostBinding(encodedSamlResponse).getNameId();
+	}
+
+	/**
+	 * Returns the name ID associated with the SAML response, decoding the base64 as it is read
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding, not closed
+	 * 
+	 * @return the name in the response
+	 */
+	public final String parseSAMLResponsePostBinding(final InputStream encodedSamlResponse) {
+		return authenticateSAMLResponsePostBinding(encodedSamlResponse).getNameId();
+	}
+
+	/**
+	 * Returns the name ID associated with the SAML response in an application/x-www-form-urlencoded POST body,
+	 * streaming the SAMLResponse parameter without building the parameter map
+	 * @param formBody the raw request body, not closed
+	 * 
+	 * @return the name in the response
+	 */
+	public final String parseSAMLResponseFormBody(final InputStream formBody) {
+		return authenticateSAMLResponseFormBody(formBody).getNameId();
+	}
+
+	/**
+	 * Validates the SAML response and returns the NameID, session details and attributes it carries
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding
+	 * 
+	 * @return the authenticated user
+	 * @throws InvalidSamlResponseException if the response fails validation
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final String encodedSamlResponse) {
 		try {
-			return samlResponseUtils.validateSAMLResponsePostBinding(encodedSamlResponse);
+			return serviceProvider.getSamlResponseUtils().authenticateSAMLResponsePostBinding(encodedSamlResponse);
 		} catch (final IOException e) {
-			LOGGER.error("Response failed validation", e);
-			throw new RuntimeException(e);
+			throw validationFailure(e);
 		}
 	}
+
+	/**
+	 * Validates the SAML response and returns the NameID, session details and attributes it carries
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding, between position and limit
+	 * 
+	 * @return the authenticated user
+	 * @throws InvalidSamlResponseException if the response fails validation
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final ByteBuffer encodedSamlResponse) {
+		try {
+			return serviceProvider.getSamlResponseUtils().authenticateSAMLResponsePostBinding(encodedSamlResponse);
+		} catch (final IOException e) {
+			throw validationFailure(e);
+		}
+	}
+
+	/**
+	 * Validates the SAML response and returns the NameID, session details and attributes it carries
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding, not closed
+	 * 
+	 * @return the authenticated user
+	 * @throws InvalidSamlResponseException if the response fails validation
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final InputStream encodedSamlResponse) {
+		try {
+			return serviceProvider.getSamlResponseUtils().authenticateSAMLResponsePostBinding(encodedSamlResponse);
+		} catch (final IOException e) {
+			throw validationFailure(e);
+		}
+	}
+
+	/**
+	 * Validates the SAML response in an application/x-www-form-urlencoded POST body and returns the NameID,
+	 * session details and attributes it carries
+	 * @param formBody the raw request body, not closed
+	 * 
+	 * @return the authenticated user
+	 * @throws InvalidSamlResponseException if the response fails validation
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponseFormBody(final InputStream formBody) {
+		try {
+			return serviceProvider.getSamlResponseUtils().authenticateSAMLResponsePostBinding(new FormParameterInputStream(formBody, FormParameterInputStream.SAML_RESPONSE));
+		} catch (final IOException e) {
+			throw validationFailure(e);
+		}
+	}
+
+	/**
+	 * Asynchronous {@link #buildSAMLRequestPostBinding(boolean)}. Unsigned requests are filled in from the
+	 * template on the calling thread, which takes about a microsecond, as are pre-signed ones; others are signed
+	 * on the crypto executor.
+	 * 
+	 * @param sign whether or not to sign the request
+	 * @return completes with the encoded request, or exceptionally if the crypto executor is saturated
+	 */
+	public final CompletableFuture<String> buildSAMLRequestPostBindingAsync(final boolean sign) {
+		if (!sign) {
+			return CompletableFuture.completedFuture(buildSAMLRequestPostBinding(false));
+		}
+		final String preSigned = serviceProvider.takePreSignedRequest();
+		if (preSigned != null) {
+			return CompletableFuture.completedFuture(preSigned);
+		}
+		return supplyAsync(() -> buildSAMLRequestPostBinding(true), executors.getCryptoExecutor());
+	}
+
+	/**
+	 * Asynchronous {@link #buildSAMLRequestRedirectBinding(boolean)}, built on the crypto executor
+	 * 
+	 * @param sign whether or not to sign the request, via the SigAlg and Signature URL parameters
+	 * @return completes with the redirect URL, or exceptionally if the crypto executor is saturated
+	 */
+	public final CompletableFuture<String> buildSAMLRequestRedirectBindingAsync(final boolean sign) {
+		return supplyAsync(() -> buildSAMLRequestRedirectBinding(sign), executors.getCryptoExecutor());
+	}
+
+	/**
+	 * Asynchronous {@link #parseSAMLResponsePostBinding(String)}
+	 * 
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding
+	 * @return completes with the name in the response, or exceptionally with the validation failure
+	 */
+	public final CompletableFuture<String> parseSAMLResponsePostBindingAsync(final String encodedSamlResponse) {
+		return authenticateSAMLResponsePostBindingAsync(encodedSamlResponse).thenApply(SamlAuthenticationResult::getNameId);
+	}
+
+	/**
+	 * Asynchronous {@link #authenticateSAMLResponsePostBinding(String)}.
+	 * 
+	 * Validation runs on the crypto executor without forcing a metadata download. If the only problem is an IDP
+	 * signature that no loaded certificate verifies, the rate limited forced refresh runs on the I/O executor
+	 * and validation runs once more on the crypto executor.
+	 * 
+	 * @param encodedSamlResponse the base64 encoded SAML response from the POST binding
+	 * @return completes with the authenticated user, or exceptionally with the validation failure
+	 */
+	public final CompletableFuture<SamlAuthenticationResult> authenticateSAMLResponsePostBindingAsync(final String encodedSamlResponse) {
+		// the retry after a refresh uses the same configuration as the first attempt
+		final SAMLResponseUtils samlResponseUtils = serviceProvider.getSamlResponseUtils();
+		final CompletableFuture<SamlAuthenticationResult> result = supplyAsync(() -> authenticateWithoutRefresh(samlResponseUtils, encodedSamlResponse), executors.getCryptoExecutor())
+				.handle((authenticated, failure) -> refreshAndRetryOnSignatureFailure(samlResponseUtils, encodedSamlResponse, authenticated, failure))
+				.thenCompose(Function.identity());
+		return result.whenComplete((authenticated, failure) -> {
+			if (failure != null) {
+				final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+				if (cause instanceof SamlValidationException) {
+					validationFailureLog.record((SamlValidationException) cause);
+				} else {
+					LOGGER.error("Response failed validation", cause);
+				}
+			}
+		});
+	}
+
+	private CompletableFuture<SamlAuthenticationResult> refreshAndRetryOnSignatureFailure(final SAMLResponseUtils samlResponseUtils,
+			final String encodedSamlResponse, final SamlAuthenticationResult authenticated, final Throwable failure) {
+		if (failure == null) {
+			return CompletableFuture.completedFuture(authenticated);
+		}
+		final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+		if (!(cause instanceof IdpSignatureException) || !((IdpSignatureException) cause).isRefreshDeferred()) {
+			return failedFuture(cause);
+		}
+		return idpMetadataUtils.forceRefreshAsync(executors.getIoExecutor())
+				.thenCompose(refreshed -> refreshed
+						? supplyAsync(() -> authenticateWithoutRefresh(samlResponseUtils, encodedSamlResponse), executors.getCryptoExecutor())
+						: TinySamlClient.<SamlAuthenticationResult>failedFuture(cause));
+	}
+
+	// never blocks on a metadata download, see authenticateSAMLResponsePostBindingAsync
+	private static SamlAuthenticationResult authenticateWithoutRefresh(final SAMLResponseUtils samlResponseUtils, final String encodedSamlResponse) {
+		try {
+			return samlResponseUtils.authenticateSAMLResponsePostBinding(encodedSamlResponse, true, false);
+		} catch (final IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	// expected rejections are counted and summarized, anything else is logged in full
+	private RuntimeException validationFailure(final IOException e) {
+		if (e instanceof SamlValidationException) {
+			validationFailureLog.record((SamlValidationException) e);
+			return new InvalidSamlResponseException((SamlValidationException) e);
+		}
+		LOGGER.error("Response failed validation", e);
+		return new RuntimeException(e);
+	}
+
+	// a saturated executor fails the future instead of throwing at, or blocking, the caller
+	private static <T> CompletableFuture<T> supplyAsync(final Supplier<T> supplier, final Executor executor) {
+		try {
+			return CompletableFuture.supplyAsync(supplier, executor);
+		} catch (final RejectedExecutionException e) {
+			return failedFuture(e);
+		}
+	}
+
+	private static <T> CompletableFuture<T> failedFuture(final Throwable failure) {
+		final CompletableFuture<T> failed = new CompletableFuture<>();
+		failed.completeExceptionally(failure);
+		return failed;
+	}
 }
- 
\ No newline at end of file
@@ -0,0 +1,71 @@
+package com.ecbpenguin.saml.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools behind the asynchronous {@link TinySamlClient} methods.
+ *
+ * CPU bound work (parsing, signing, signature verification, decryption) runs on a crypto pool sized to the
+ * cores with a bounded queue; when the queue is full the returned future fails straight away rather than
+ * blocking the caller. Blocking metadata downloads run on a separate, small I/O pool so they never hold a
+ * crypto thread. Idle threads time out, so pools that are never used cost nothing.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class TinySamlClientExecutors {
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private final ThreadPoolExecutor cryptoExecutor;
+
+	private final ThreadPoolExecutor ioExecutor;
+
+	/**
+	 * @param cryptoThreads threads for CPU bound work, usually the number of cores
+	 * @param cryptoQueueSize the most CPU bound tasks waiting for a thread
+	 * @param ioThreads threads for metadata downloads
+	 */
+	public TinySamlClientExecutors(final int cryptoThreads, final int cryptoQueueSize, final int ioThreads) {
+		if (cryptoThreads <= 0 || cryptoQueueSize <= 0 || ioThreads <= 0) {
+			throw new IllegalArgumentException("Executor sizes must be positive!");
+		}
+		cryptoExecutor = newExecutor(cryptoThreads, cryptoQueueSize, "tiny-saml-client-crypto-");
+		// a refresh is already single flight, so queued refreshes only ever wait on the one in progress
+		ioExecutor = newExecutor(ioThreads, 64, "tiny-saml-client-io-");
+	}
+
+	private static ThreadPoolExecutor newExecutor(final int threads, final int queueSize, final String namePrefix) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ThreadFactory threadFactory = runnable -> {
+			final Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	public Executor getCryptoExecutor() {
+		return cryptoExecutor;
+	}
+
+	public Executor getIoExecutor() {
+		return ioExecutor;
+	}
+
+	/**
+	 * Stops accepting work; tasks already queued still run
+	 */
+	public void shutdown() {
+		cryptoExecutor.shutdown();
+		ioExecutor.shutdown();
+	}
+}
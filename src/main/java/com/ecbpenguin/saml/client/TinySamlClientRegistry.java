@@ -0,0 +1,237 @@
+package com.ecbpenguin.saml.client;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ecbpenguin.saml.client.utils.SamlMetricsListener;
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+
+/**
+ * Holds the {@link TinySamlClient}s for many SP / IDP pairs (tenants) in one JVM.
+ * 
+ * Clients are built on first use and share one OpenSAML initialization, one pooled HTTP client, one parser
+ * pool and one refresh timer. At most maxActiveClients are kept; beyond that the least recently used tenant is
+ * evicted: the registry stops handing out its client at once, and destroys it after a grace period so calls
+ * already using it can finish. That drops its parsed metadata but keeps its on disk metadata cache, so
+ * rebuilding it later doesn't need the network. Replay cache and outstanding request state survive eviction.
+ * 
+ * A client returned by {@link #getClient(String)} is for the request at hand: look it up again for the next
+ * request rather than keeping it, since a kept client stops working once it has been evicted and its grace
+ * period has passed.
+ * 
+ * Looking up an active client never locks.
+ * 
+ * @author ecb_penguin
+ *
+ */
+public class TinySamlClientRegistry {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TinySamlClientRegistry.class);
+
+	/** how long an evicted client keeps working for calls that already hold it */
+	public static final long DEFAULT_EVICTION_GRACE_MS = 60_000;
+
+	private final Map<String, Tenant> tenants;
+
+	private final TinySamlClientResources resources;
+
+	private final int maxActiveClients;
+
+	private final long evictionGraceMs;
+
+	private final AtomicInteger activeClients = new AtomicInteger();
+
+	// evicted clients waiting out their grace period
+	private final Set<TinySamlClient> retiredClients = ConcurrentHashMap.newKeySet();
+
+	private final Object evictionLock = new Object();
+
+	private volatile SamlMetricsListener metricsListener;
+
+	private static final class Tenant {
+
+		private final TinySamlClientConfig config;
+
+		private final TinySamlClientState state;
+
+		private volatile TinySamlClient client;
+
+		private volatile long lastUsedNanos;
+
+		private Tenant(final TinySamlClientConfig config) {
+			this.config = config;
+			this.state = TinySamlClientState.from(config);
+		}
+	}
+
+	/**
+	 * @param configs client configuration by tenant ID
+	 * @param resources resources shared by every client
+	 * @param maxActiveClients the most clients kept built at once
+	 */
+	public TinySamlClientRegistry(final Map<String, TinySamlClientConfig> configs, final TinySamlClientResources resources, final int maxActiveClients) {
+		this(configs, resources, maxActiveClients, DEFAULT_EVICTION_GRACE_MS);
+	}
+
+	/**
+	 * @param configs client configuration by tenant ID
+	 * @param resources resources shared by every client
+	 * @param maxActiveClients the most clients kept built at once
+	 * @param evictionGraceMs how long an evicted client keeps working before it is destroyed
+	 */
+	public TinySamlClientRegistry(final Map<String, TinySamlClientConfig> configs, final TinySamlClientResources resources, final int maxActiveClients,
+			final long evictionGraceMs) {
+		if (configs == null || resources == null) {
+			throw new IllegalArgumentException("configs and resources must not be null!");
+		}
+		if (maxActiveClients <= 0) {
+			throw new IllegalArgumentException("maxActiveClients must be positive!");
+		}
+		if (evictionGraceMs < 0) {
+			throw new IllegalArgumentException("evictionGraceMs must not be negative!");
+		}
+		final Map<String, Tenant> tenantMap = new HashMap<>();
+		for (final Map.Entry<String, TinySamlClientConfig> entry : configs.entrySet()) {
+			tenantMap.put(entry.getKey(), new Tenant(entry.getValue()));
+		}
+		// never modified after construction, so plain reads are safe
+		this.tenants = Collections.unmodifiableMap(tenantMap);
+		this.resources = resources;
+		this.maxActiveClients = maxActiveClients;
+		this.evictionGraceMs = evictionGraceMs;
+	}
+
+	public Set<String> getTenantIds() {
+		return tenants.keySet();
+	}
+
+	/**
+	 * Returns the client for a tenant, building it if it isn't active. Don't keep the client beyond the request
+	 * at hand, see the class documentation.
+	 * 
+	 * @param tenantId the tenant
+	 * @return the tenant's client
+	 * @throws IOException if the client can't be built
+	 */
+	public TinySamlClient getClient(final String tenantId) throws IOException {
+		final Tenant tenant = tenants.get(tenantId);
+		if (tenant == null) {
+			throw new IllegalArgumentException("Unknown tenant " + tenantId);
+		}
+		tenant.lastUsedNanos = System.nanoTime();
+		TinySamlClient client = tenant.client;
+		if (client != null) {
+			return client;
+		}
+
+		// one build per tenant, other tenants aren't held up
+		synchronized (tenant) {
+			client = tenant.client;
+			if (client == null) {
+				LOGGER.info("Building SAML client for tenant {}", tenantId);
+				client = new TinySamlClient(tenant.config, resources, tenant.state);
+				if (metricsListener != null) {
+					client.setMetricsListener(metricsListener);
+				}
+				tenant.client = client;
+				activeClients.incrementAndGet();
+			}
+		}
+		evictIdle(tenant);
+		return client;
+	}
+
+	/**
+	 * Sets the metrics listener of every active client, and of clients built later.
+	 * 
+	 * @param listener shared by all tenants, or null to stop reporting
+	 */
+	public void setMetricsListener(final SamlMetricsListener listener) {
+		metricsListener = listener;
+		for (final Tenant tenant : tenants.values()) {
+			synchronized (tenant) {
+				if (tenant.client != null) {
+					tenant.client.setMetricsListener(listener);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Destroys every client, including evicted ones still in their grace period, then the shared resources.
+	 */
+	public void destroy() {
+		for (final Tenant tenant : tenants.values()) {
+			synchronized (tenant) {
+				if (tenant.client != null) {
+					tenant.client.destroy();
+					tenant.client = null;
+				}
+			}
+		}
+		activeClients.set(0);
+		for (final TinySamlClient retired : retiredClients) {
+			if (retiredClients.remove(retired)) {
+				retired.destroy();
+			}
+		}
+		resources.destroy();
+	}
+
+	private void evictIdle(final Tenant keep) {
+		if (activeClients.get() <= maxActiveClients) {
+			return;
+		}
+		synchronized (evictionLock) {
+			while (activeClients.get() > maxActiveClients) {
+				Tenant leastRecent = null;
+				for (final Tenant tenant : tenants.values()) {
+					if (tenant != keep && tenant.client != null
+							&& (leastRecent == null || tenant.lastUsedNanos - leastRecent.lastUsedNanos < 0)) {
+						leastRecent = tenant;
+					}
+				}
+				if (leastRecent == null) {
+					return;
+				}
+				synchronized (leastRecent) {
+					final TinySamlClient evicted = leastRecent.client;
+					if (evicted != null) {
+						LOGGER.info("Evicting idle SAML client {}", leastRecent.config.getIdpMetadataUrl());
+						leastRecent.client = null;
+						activeClients.decrementAndGet();
+						retire(evicted);
+					}
+				}
+			}
+		}
+	}
+
+	// callers may still hold the client, so it is only destroyed once the grace period has passed
+	private void retire(final TinySamlClient evicted) {
+		retiredClients.add(evicted);
+		final TimerTask destroyTask = new TimerTask() {
+			@Override
+			public void run() {
+				if (retiredClients.remove(evicted)) {
+					evicted.destroy();
+				}
+			}
+		};
+		try {
+			resources.getBackgroundTaskTimer().schedule(destroyTask, evictionGraceMs);
+		} catch (final IllegalStateException e) {
+			// the shared timer is already cancelled, the registry is being destroyed
+			destroyTask.run();
+		}
+	}
+}
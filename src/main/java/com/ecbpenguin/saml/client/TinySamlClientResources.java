@@ -0,0 +1,109 @@
+package com.ecbpenguin.saml.client;
+
+import java.io.IOException;
+import java.util.Timer;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.config.InitializationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ecbpenguin.saml.client.utils.MetadataHttpClientUtils;
+import com.ecbpenguin.saml.client.utils.ParserPoolUtils;
+import com.ecbpenguin.utils.AsyncErrorLog;
+
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+
+/**
+ * The heavy, thread safe pieces a {@link TinySamlClient} needs, built once and shared by many clients:
+ * the OpenSAML initialization, a pooled HTTP client for metadata downloads, a parser pool, the
+ * timer that runs scheduled metadata refreshes and the executors behind the asynchronous methods.
+ * 
+ * @author ecb_penguin
+ *
+ */
+public class TinySamlClientResources {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TinySamlClientResources.class);
+
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+	private static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+	private final CloseableHttpClient httpClient;
+
+	private final ParserPool parserPool;
+
+	private final Timer backgroundTaskTimer;
+
+	private final TinySamlClientExecutors executors;
+
+	/**
+	 * @param maxHttpConnections the most concurrent metadata downloads across all clients
+	 * @param parserPoolMaxSize the most parsers kept for reuse across all clients
+	 */
+	public TinySamlClientResources(final int maxHttpConnections, final int parserPoolMaxSize) {
+		this(maxHttpConnections, parserPoolMaxSize, new TinySamlClientExecutors(Runtime.getRuntime().availableProcessors(), 1024, 2));
+	}
+
+	/**
+	 * @param maxHttpConnections the most concurrent metadata downloads across all clients
+	 * @param parserPoolMaxSize the most parsers kept for reuse across all clients
+	 * @param executors executors for the asynchronous methods of all clients
+	 */
+	public TinySamlClientResources(final int maxHttpConnections, final int parserPoolMaxSize, final TinySamlClientExecutors executors) {
+		this(maxHttpConnections, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, parserPoolMaxSize, executors);
+	}
+
+	/**
+	 * @param maxHttpConnections the most concurrent metadata downloads across all clients
+	 * @param connectTimeoutMillis metadata download connect timeout, 0 for none
+	 * @param readTimeoutMillis metadata download read timeout, 0 for none
+	 * @param parserPoolMaxSize the most parsers kept for reuse across all clients
+	 * @param executors executors for the asynchronous methods of all clients
+	 */
+	public TinySamlClientResources(final int maxHttpConnections, final int connectTimeoutMillis, final int readTimeoutMillis,
+			final int parserPoolMaxSize, final TinySamlClientExecutors executors) {
+		this.executors = executors;
+		try {
+			InitializationService.initialize();
+		} catch (final InitializationException e) {
+			AsyncErrorLog.log(e);
+		}
+
+		httpClient = MetadataHttpClientUtils.createHttpClient(maxHttpConnections, connectTimeoutMillis, readTimeoutMillis);
+
+		parserPool = ParserPoolUtils.createParserPool(parserPoolMaxSize);
+		backgroundTaskTimer = new Timer("tiny-saml-client-metadata-refresh", true);
+	}
+
+	public CloseableHttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	public ParserPool getParserPool() {
+		return parserPool;
+	}
+
+	public Timer getBackgroundTaskTimer() {
+		return backgroundTaskTimer;
+	}
+
+	public TinySamlClientExecutors getExecutors() {
+		return executors;
+	}
+
+	/**
+	 * Stops the refresh timer and executors and closes the HTTP connections. Destroy the clients using these resources first.
+	 */
+	public void destroy() {
+		backgroundTaskTimer.cancel();
+		executors.shutdown();
+		try {
+			httpClient.close();
+		} catch (final IOException e) {
+			LOGGER.warn("Unable to close metadata HTTP client: {}", e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.ecbpenguin.saml.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.List;
+
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.opensaml.security.x509.BasicX509Credential;
+
+import com.ecbpenguin.saml.client.utils.AuthnRequestUtils;
+import com.ecbpenguin.saml.client.utils.DecrypterUtils;
+import com.ecbpenguin.saml.client.utils.IdpMetadataUtils;
+import com.ecbpenguin.saml.client.utils.PreSignedRequestPool;
+import com.ecbpenguin.saml.client.utils.ResponseCheck;
+import com.ecbpenguin.saml.client.utils.ResponsePreValidator;
+import com.ecbpenguin.saml.client.utils.ResponseValidationPolicy;
+import com.ecbpenguin.saml.client.utils.SAMLResponseUtils;
+import com.ecbpenguin.saml.client.utils.SamlMetricsListener;
+import com.ecbpenguin.saml.client.utils.ServiceProviderMetadataUtils;
+import com.ecbpenguin.saml.client.utils.SigningKeyUtils;
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+
+/**
+ * Everything a {@link TinySamlClient} builds from the service provider side of its configuration: the SP
+ * metadata, the SP key and the request and response handling that depend on them.
+ *
+ * Never changes once built, so a reload builds a whole new one and the client swaps it in with one volatile
+ * write. A request that already read the old one finishes with it.
+ *
+ * @author ecb_penguin
+ *
+ */
+final class TinySamlClientServiceProvider {
+
+	private static final byte[] KEY_CHECK_DATA = "tiny-saml-client key check".getBytes(StandardCharsets.US_ASCII);
+
+	private final TinySamlClientConfig config;
+
+	private final AuthnRequestUtils authnRequestUtils;
+
+	private final SAMLResponseUtils samlResponseUtils;
+
+	// null unless signed requests are pre-signed
+	private final PreSignedRequestPool preSignedRequestPool;
+
+	private TinySamlClientServiceProvider(final TinySamlClientConfig config, final AuthnRequestUtils authnRequestUtils,
+			final SAMLResponseUtils samlResponseUtils, final PreSignedRequestPool preSignedRequestPool) {
+		this.config = config;
+		this.authnRequestUtils = authnRequestUtils;
+		this.samlResponseUtils = samlResponseUtils;
+		this.preSignedRequestPool = preSignedRequestPool;
+	}
+
+	/**
+	 * Reads the SP metadata and key named in the configuration
+	 *
+	 * @param parserPool parser pool for the SP metadata and responses
+	 * @throws IOException if the private key can't be read
+	 * @throws IllegalArgumentException if the SP metadata is unusable or doesn't match the private key, or the validation policy is invalid
+	 */
+	static TinySamlClientServiceProvider build(final TinySamlClientConfig config, final ParserPool parserPool,
+			final IdpMetadataUtils idpMetadataUtils, final TinySamlClientState state) throws IOException {
+		final ServiceProviderMetadataUtils serviceProviderMetadataUtils = new ServiceProviderMetadataUtils(config.getServiceProviderMetadataFile(), parserPool);
+		final AuthnRequestUtils authnRequestUtils = new AuthnRequestUtils(serviceProviderMetadataUtils, config.getServiceProviderSigningKeyLocation(),
+				config.getServiceProviderSigningKeyPassword(), config.getServiceProviderSigningKeyAlias(), state.getRequestTracker());
+		checkKeyMatchesCertificate(authnRequestUtils.getServiceProviderCredential());
+		final ResponsePreValidator preValidator = config.getResponseMaxBytes() > 0
+				? new ResponsePreValidator(config.getResponseMaxBytes(), config.getResponseMaxElementDepth(),
+						config.getResponseMaxAttributesPerElement(), serviceProviderMetadataUtils, idpMetadataUtils)
+				: null;
+		// the SP key that signs requests is also the one IDPs encrypt assertions to, which takes an RSA key
+		final BasicX509Credential credential = authnRequestUtils.getServiceProviderCredential();
+		final Decrypter decrypter = credential == null || !"RSA".equals(credential.getPrivateKey().getAlgorithm())
+				? null
+				: DecrypterUtils.createDecrypter(credential);
+		final SAMLResponseUtils samlResponseUtils = new SAMLResponseUtils(idpMetadataUtils, serviceProviderMetadataUtils, parserPool,
+				state.getReplayCache(), state.getRequestTracker(), preValidator, decrypter, ResponseValidationPolicy.from(config));
+		// started last, so a configuration that fails to build never leaves a signing thread behind
+		final PreSignedRequestPool preSignedRequestPool = config.getPreSignedRequestPoolSize() > 0 && credential != null
+				? new PreSignedRequestPool(authnRequestUtils, config.getPreSignedRequestPoolSize(), config.getPreSignedRequestMaxAgeSeconds() * 1000L)
+				: null;
+		return new TinySamlClientServiceProvider(config, authnRequestUtils, samlResponseUtils, preSignedRequestPool);
+	}
+
+	// a key replaced without its certificate, or the other way round, would sign requests no IDP accepts
+	private static void checkKeyMatchesCertificate(final BasicX509Credential credential) {
+		if (credential == null || credential.getEntityCertificate() == null) {
+			return;
+		}
+		final String algorithm = SigningKeyUtils.getJcaSignatureAlgorithm(credential.getPrivateKey());
+		final boolean matches;
+		try {
+			final Signature signer = Signature.getInstance(algorithm);
+			signer.initSign(credential.getPrivateKey());
+			signer.update(KEY_CHECK_DATA);
+			final byte[] signature = signer.sign();
+			final Signature verifier = Signature.getInstance(algorithm);
+			verifier.initVerify(credential.getEntityCertificate().getPublicKey());
+			verifier.update(KEY_CHECK_DATA);
+			matches = verifier.verify(signature);
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalArgumentException("Unable to check the SP private key against the SP signing certificate", e);
+		}
+		if (!matches) {
+			throw new IllegalArgumentException("The SP private key doesn't match the SP signing certificate in the SP metadata!");
+		}
+	}
+
+	/**
+	 * @return a fresh pre-signed POST binding request, or null if there is none and the caller must sign
+	 */
+	String takePreSignedRequest() {
+		return preSignedRequestPool == null ? null : preSignedRequestPool.take();
+	}
+
+	/**
+	 * Stops background work, the instance stays usable for requests that already hold it
+	 */
+	void close() {
+		if (preSignedRequestPool != null) {
+			preSignedRequestPool.close();
+		}
+	}
+
+	PreSignedRequestPool getPreSignedRequestPool() {
+		return preSignedRequestPool;
+	}
+
+	void setMetricsListener(final SamlMetricsListener listener) {
+		authnRequestUtils.setMetricsListener(listener);
+		samlResponseUtils.setMetricsListener(listener);
+	}
+
+	void setCustomChecks(final List<ResponseCheck> customChecks) {
+		samlResponseUtils.setCustomChecks(customChecks);
+	}
+
+	TinySamlClientConfig getConfig() {
+		return config;
+	}
+
+	AuthnRequestUtils getAuthnRequestUtils() {
+		return authnRequestUtils;
+	}
+
+	SAMLResponseUtils getSamlResponseUtils() {
+		return samlResponseUtils;
+	}
+}
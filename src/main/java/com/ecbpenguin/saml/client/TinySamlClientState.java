@@ -0,0 +1,42 @@
+package com.ecbpenguin.saml.client;
+
+import com.ecbpenguin.saml.client.utils.AssertionReplayCache;
+import com.ecbpenguin.saml.client.utils.OutstandingRequestTracker;
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+
+/**
+ * Per tenant security state that has to outlive any one {@link TinySamlClient} instance, so that rebuilding
+ * an evicted client neither forgets consumed assertions nor loses requests still waiting on a response.
+ * 
+ * @author ecb_penguin
+ *
+ */
+final class TinySamlClientState {
+
+	private final AssertionReplayCache replayCache;
+
+	private final OutstandingRequestTracker requestTracker;
+
+	private TinySamlClientState(final AssertionReplayCache replayCache, final OutstandingRequestTracker requestTracker) {
+		this.replayCache = replayCache;
+		this.requestTracker = requestTracker;
+	}
+
+	static TinySamlClientState from(final TinySamlClientConfig config) {
+		final AssertionReplayCache replayCache = config.getReplayCacheMaxEntries() > 0
+				? new AssertionReplayCache(config.getReplayCacheMaxEntries(), config.getReplayCacheMaxTtlSeconds() * 1000L)
+				: null;
+		final OutstandingRequestTracker requestTracker = config.getRequestTrackerMaxEntries() > 0
+				? new OutstandingRequestTracker(config.getRequestTrackerMaxEntries(), config.getRequestTrackerTtlSeconds() * 1000L)
+				: null;
+		return new TinySamlClientState(replayCache, requestTracker);
+	}
+
+	AssertionReplayCache getReplayCache() {
+		return replayCache;
+	}
+
+	OutstandingRequestTracker getRequestTracker() {
+		return requestTracker;
+	}
+}
@@ -0,0 +1,182 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+/**
+ * In memory cache of Response / Assertion IDs that have already been consumed, to reject replayed messages.
+ *
+ * Whether an ID has been seen is decided by one atomic insert into a concurrent map keyed by the ID, so two
+ * threads posting the same message can never both pass, whatever expiry each of them computes. A ring of
+ * time buckets, keyed by when each ID expires, remembers which IDs to remove, so expiry walks only the IDs of
+ * the buckets that lapsed rather than the whole cache. The number of entries is capped; once full, new IDs
+ * are rejected until buckets expire.
+ *
+ * This is per JVM. In a cluster without sticky sessions, a replay posted to a different node is not detected.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class AssertionReplayCache {
+
+	private static final int BUCKET_COUNT = 64;
+
+	private static final long MIN_BUCKET_WIDTH_MS = 1000;
+
+	private final int maxEntries;
+
+	private final long maxTtlMs;
+
+	private final long bucketWidthMs;
+
+	// ID to the epoch millis it is held until
+	private final ConcurrentHashMap<String, Long> seen = new ConcurrentHashMap<>();
+
+	private final AtomicReferenceArray<Bucket> buckets;
+
+	// counts reserved as well as inserted IDs, so the cap holds under concurrent inserts
+	private final AtomicInteger size = new AtomicInteger();
+
+	private final AtomicLong lastExpiredEpoch = new AtomicLong();
+
+	private static final class Bucket {
+
+		private final long epoch;
+
+		private final Set<String> ids = ConcurrentHashMap.newKeySet();
+
+		private Bucket(final long epoch) {
+			this.epoch = epoch;
+		}
+	}
+
+	/**
+	 * @param maxEntries the most IDs held at once
+	 * @param maxTtlMs the longest any ID is held, regardless of the assertion's own validity
+	 */
+	public AssertionReplayCache(final int maxEntries, final long maxTtlMs) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive!");
+		}
+		if (maxTtlMs <= 0) {
+			throw new IllegalArgumentException("maxTtlMs must be positive!");
+		}
+		this.maxEntries = maxEntries;
+		this.maxTtlMs = maxTtlMs;
+		// two spare buckets: one for the current, partially expired epoch and one for rounding up
+		this.bucketWidthMs = Math.max(MIN_BUCKET_WIDTH_MS, (maxTtlMs + BUCKET_COUNT - 3) / (BUCKET_COUNT - 2));
+		this.buckets = new AtomicReferenceArray<>((int) (maxTtlMs / bucketWidthMs) + 2);
+	}
+
+	/**
+	 * Records an ID as used.
+	 *
+	 * @param id the Response or Assertion ID
+	 * @param expiresAtMs when the message stops being valid (including clock skew), in epoch millis
+	 * @return true if this is the first time the ID has been seen, false if it is a replay
+	 * @throws IOException if the cache is full
+	 */
+	public boolean markSeen(final String id, final long expiresAtMs) throws IOException {
+		return markSeen(id, expiresAtMs, System.currentTimeMillis());
+	}
+
+	final boolean markSeen(final String id, final long expiresAtMs, final long nowMs) throws IOException {
+		final long nowEpoch = nowMs / bucketWidthMs;
+		expireBuckets(nowEpoch);
+
+		if (expiresAtMs <= nowMs) {
+			// already expired, the time checks reject it, nothing to remember
+			return true;
+		}
+
+		// a replay is reported as one even when the cache is full
+		final Long known = seen.get(id);
+		if (known != null && known > nowMs) {
+			return false;
+		}
+
+		if (size.incrementAndGet() > maxEntries) {
+			size.decrementAndGet();
+			throw new SamlValidationException(Reason.CAPACITY, "Replay cache is full, rejecting message " + id);
+		}
+
+		final long heldUntilMs = Math.min(expiresAtMs, nowMs + maxTtlMs);
+		while (true) {
+			final Long previous = seen.putIfAbsent(id, heldUntilMs);
+			if (previous == null) {
+				break;
+			}
+			if (previous > nowMs) {
+				size.decrementAndGet();
+				return false;
+			}
+			// an entry past its time whose bucket hasn't been swept yet is not a replay; if it changes under
+			// us, go round again and see what replaced it
+			if (seen.replace(id, previous, heldUntilMs)) {
+				// the old entry was counted, the new one takes its place
+				size.decrementAndGet();
+				break;
+			}
+		}
+		bucketFor(heldUntilMs / bucketWidthMs).ids.add(id);
+		return true;
+	}
+
+	public int size() {
+		return Math.max(0, size.get());
+	}
+
+	private Bucket bucketFor(final long epoch) {
+		final int slot = (int) (epoch % buckets.length());
+		while (true) {
+			final Bucket current = buckets.get(slot);
+			if (current != null && current.epoch == epoch) {
+				return current;
+			}
+			if (current != null && current.epoch > epoch) {
+				// only possible if the clock went backwards by more than the ring; keep the newer bucket
+				return current;
+			}
+			final Bucket replacement = new Bucket(epoch);
+			if (buckets.compareAndSet(slot, current, replacement)) {
+				if (current != null) {
+					drop(current);
+				}
+				return replacement;
+			}
+		}
+	}
+
+	// at most one thread sweeps per bucket width, everyone else skips straight past
+	private void expireBuckets(final long nowEpoch) {
+		final long last = lastExpiredEpoch.get();
+		if (last >= nowEpoch || !lastExpiredEpoch.compareAndSet(last, nowEpoch)) {
+			return;
+		}
+		final int bucketCount = buckets.length();
+		for (int i = 0; i < bucketCount; i++) {
+			final Bucket bucket = buckets.get(i);
+			if (bucket != null && bucket.epoch < nowEpoch && buckets.compareAndSet(i, bucket, null)) {
+				drop(bucket);
+			}
+		}
+	}
+
+	private void drop(final Bucket bucket) {
+		final long bucketEndMs = (bucket.epoch + 1) * bucketWidthMs;
+		for (final String id : bucket.ids) {
+			// leaves an ID alone that was inserted again, with a later expiry, after this bucket took it, and only
+			// counts a removal this call made: the ID may be gone already, dropped by an earlier bucket
+			final Long heldUntilMs = seen.get(id);
+			if (heldUntilMs != null && heldUntilMs < bucketEndMs && seen.remove(id, heldUntilMs)) {
+				size.decrementAndGet();
+			}
+		}
+	}
+}
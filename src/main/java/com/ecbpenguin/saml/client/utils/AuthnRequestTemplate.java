@@ -0,0 +1,171 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Pre-serialized, unsigned AuthnRequest for the POST binding.
+ *
+ * Between two unsigned requests with the same options only the ID and IssueInstant change, and both have a
+ * fixed length. The template keeps the serialized XML around those two values and, per request, writes a new
+ * ID and timestamp into a per thread scratch buffer and base64 encodes it straight into the caller's buffer.
+ * The output is byte for byte what marshalling and transforming the same request would produce.
+ *
+ * Signed requests can't use this, the signature covers the ID and IssueInstant.
+ *
+ * @author ecb_penguin
+ *
+ */
+public final class AuthnRequestTemplate {
+
+	/** ID the prototype request must be built with */
+	public static final String ID_PLACEHOLDER = "_00000000-0000-4000-8000-000000000000";
+
+	/** IssueInstant the prototype request must be built with, epoch 0 */
+	public static final long ISSUE_INSTANT_PLACEHOLDER_MS = 0L;
+
+	private static final String ISSUE_INSTANT_PLACEHOLDER = "1970-01-01T00:00:00.000Z";
+
+	private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+	private final byte[] xml;
+
+	private final int idOffset;
+
+	private final int issueInstantOffset;
+
+	private final int encodedLength;
+
+	private final ThreadLocal<byte[]> scratch;
+
+	/**
+	 * @param prototypeXml the serialized prototype, built with {@link #ID_PLACEHOLDER} and {@link #ISSUE_INSTANT_PLACEHOLDER_MS}
+	 */
+	public AuthnRequestTemplate(final byte[] prototypeXml) {
+		this.xml = prototypeXml.clone();
+		this.idOffset = indexOf(xml, ("ID=\"" + ID_PLACEHOLDER + "\"").getBytes(StandardCharsets.US_ASCII)) + 4;
+		this.issueInstantOffset = indexOf(xml, ("IssueInstant=\"" + ISSUE_INSTANT_PLACEHOLDER + "\"").getBytes(StandardCharsets.US_ASCII)) + 14;
+		if (idOffset < 4 || issueInstantOffset < 14) {
+			throw new IllegalArgumentException("Prototype request does not contain the ID and IssueInstant placeholders");
+		}
+		// unpadded, to match Base64.getEncoder().withoutPadding()
+		this.encodedLength = (xml.length * 4 + 2) / 3;
+		this.scratch = ThreadLocal.withInitial(xml::clone);
+	}
+
+	/**
+	 * @return the number of bytes {@link #encode(String, long, byte[], int)} writes
+	 */
+	public int getEncodedLength() {
+		return encodedLength;
+	}
+
+	/**
+	 * @return a new request ID, in the same "_" + UUID form as {@link AuthnRequestUtils#buildAuthnRequest(boolean)}
+	 */
+	public static String newId() {
+		return "_" + UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Writes the base64 encoded request for the given ID and IssueInstant.
+	 *
+	 * @param id the request ID, "_" followed by a lower case UUID
+	 * @param issueInstantMs the IssueInstant in epoch millis
+	 * @param destination buffer to write into, needs {@link #getEncodedLength()} bytes from offset
+	 * @param offset where to start writing
+	 * @return the number of bytes written
+	 */
+	public int encode(final String id, final long issueInstantMs, final byte[] destination, final int offset) {
+		if (id.length() != ID_PLACEHOLDER.length()) {
+			throw new IllegalArgumentException("Request ID must be \"_\" followed by a UUID");
+		}
+		if (destination.length - offset < encodedLength) {
+			throw new IllegalArgumentException("Destination needs " + encodedLength + " bytes");
+		}
+		final byte[] filled = scratch.get();
+		for (int i = 0; i < id.length(); i++) {
+			filled[idOffset + i] = (byte) id.charAt(i);
+		}
+		writeInstant(issueInstantMs, filled, issueInstantOffset);
+		return base64(filled, destination, offset);
+	}
+
+	/**
+	 * @return the base64 encoded request for the given ID and IssueInstant
+	 */
+	public String encode(final String id, final long issueInstantMs) {
+		final byte[] encoded = new byte[encodedLength];
+		encode(id, issueInstantMs, encoded, 0);
+		return new String(encoded, StandardCharsets.US_ASCII);
+	}
+
+	// yyyy-MM-ddTHH:mm:ss.SSSZ in UTC, the SAML date format
+	private static void writeInstant(final long epochMs, final byte[] out, final int at) {
+		final long epochDays = Math.floorDiv(epochMs, 86400000L);
+		final int msOfDay = (int) Math.floorMod(epochMs, 86400000L);
+
+		// days to civil date, see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+		final long z = epochDays + 719468;
+		final long era = Math.floorDiv(z, 146097);
+		final long doe = z - era * 146097;
+		final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		final long mp = (5 * doy + 2) / 153;
+		final int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		final int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+		writeDigits(year, 4, out, at);
+		writeDigits(month, 2, out, at + 5);
+		writeDigits(day, 2, out, at + 8);
+		writeDigits(msOfDay / 3600000, 2, out, at + 11);
+		writeDigits(msOfDay / 60000 % 60, 2, out, at + 14);
+		writeDigits(msOfDay / 1000 % 60, 2, out, at + 17);
+		writeDigits(msOfDay % 1000, 3, out, at + 20);
+	}
+
+	private static void writeDigits(int value, final int width, final byte[] out, final int at) {
+		for (int i = width - 1; i >= 0; i--) {
+			out[at + i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private static int base64(final byte[] src, final byte[] dst, final int offset) {
+		int d = offset;
+		final int whole = src.length - src.length % 3;
+		for (int s = 0; s < whole; s += 3) {
+			final int bits = (src[s] & 0xff) << 16 | (src[s + 1] & 0xff) << 8 | (src[s + 2] & 0xff);
+			dst[d++] = BASE64[bits >>> 18];
+			dst[d++] = BASE64[bits >>> 12 & 0x3f];
+			dst[d++] = BASE64[bits >>> 6 & 0x3f];
+			dst[d++] = BASE64[bits & 0x3f];
+		}
+		final int remaining = src.length - whole;
+		if (remaining == 1) {
+			final int bits = (src[whole] & 0xff) << 16;
+			dst[d++] = BASE64[bits >>> 18];
+			dst[d++] = BASE64[bits >>> 12 & 0x3f];
+		} else if (remaining == 2) {
+			final int bits = (src[whole] & 0xff) << 16 | (src[whole + 1] & 0xff) << 8;
+			dst[d++] = BASE64[bits >>> 18];
+			dst[d++] = BASE64[bits >>> 12 & 0x3f];
+			dst[d++] = BASE64[bits >>> 6 & 0x3f];
+		}
+		return d - offset;
+	}
+
+	private static int indexOf(final byte[] haystack, final byte[] needle) {
+		outer:
+		for (int i = 0; i <= haystack.length - needle.length; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (haystack[i + j] != needle[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,42 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.util.Arrays;
+
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.opensaml.saml.saml2.encryption.EncryptedElementTypeEncryptedKeyResolver;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.encryption.support.ChainingEncryptedKeyResolver;
+import org.opensaml.xmlsec.encryption.support.EncryptedKeyResolver;
+import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
+import org.opensaml.xmlsec.encryption.support.SimpleRetrievalMethodEncryptedKeyResolver;
+import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
+
+/**
+ * Builds the decrypter for EncryptedAssertion and EncryptedID elements sent to this SP.
+ * 
+ * The key encryption key is the SP private key and never changes, so the credential resolver, the encrypted
+ * key resolver chain and the decrypter itself are built once. Once configured, a {@link Decrypter} only reads
+ * its settings, so a single instance serves every request thread.
+ * 
+ * @author ecb_penguin
+ *
+ */
+public class DecrypterUtils {
+
+	public static Decrypter createDecrypter(final Credential serviceProviderCredential) {
+		if (serviceProviderCredential == null || serviceProviderCredential.getPrivateKey() == null) {
+			throw new IllegalArgumentException("Decryption needs the service provider private key!");
+		}
+		// the data encryption key is never known up front, only the key that encrypts it
+		final StaticKeyInfoCredentialResolver kekResolver = new StaticKeyInfoCredentialResolver(serviceProviderCredential);
+		// IDPs put the EncryptedKey inline, next to the EncryptedData, or reference it
+		final EncryptedKeyResolver encryptedKeyResolver = new ChainingEncryptedKeyResolver(Arrays.asList(
+				new InlineEncryptedKeyResolver(),
+				new EncryptedElementTypeEncryptedKeyResolver(),
+				new SimpleRetrievalMethodEncryptedKeyResolver()));
+		final Decrypter decrypter = new Decrypter(null, kekResolver, encryptedKeyResolver);
+		// the decrypted assertion gets its own document, so its enveloped signature can be verified
+		decrypter.setRootInNewDocument(true);
+		return decrypter;
+	}
+}
@@ -0,0 +1,156 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a set of files with the NIO {@link WatchService} and runs a callback once they have stopped changing.
+ *
+ * The directories holding the files are watched, since editors and deployment tools usually replace a file
+ * rather than write to it. Changes are debounced: the callback runs on the watcher thread after no watched file
+ * has changed for the quiet period, so a certificate and key replaced one after the other cause one reload.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class FileChangeWatcher {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileChangeWatcher.class);
+
+	private final WatchService watchService;
+
+	private final long quietMillis;
+
+	private final Runnable onChange;
+
+	// added before registering, so the watcher never sees a key for a directory it doesn't know
+	private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+	private volatile Set<Path> files = new HashSet<>();
+
+	private final Thread watcher;
+
+	/**
+	 * @param quietMillis how long the files must be unchanged before the callback runs
+	 * @param onChange runs on the watcher thread after the files changed
+	 */
+	public FileChangeWatcher(final long quietMillis, final Runnable onChange) throws IOException {
+		if (quietMillis <= 0 || onChange == null) {
+			throw new IllegalArgumentException("quietMillis must be positive and onChange must not be null!");
+		}
+		this.quietMillis = quietMillis;
+		this.onChange = onChange;
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		watcher = new Thread(this::watchLoop, "tiny-saml-client-config-watch");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Replaces the watched files. Directories that no longer hold a watched file stay registered, which only
+	 * costs an ignored event now and then.
+	 *
+	 * @param watchedFiles the files to watch, null entries are skipped
+	 */
+	public synchronized void watch(final Collection<File> watchedFiles) throws IOException {
+		final Set<Path> paths = new HashSet<>();
+		for (final File file : watchedFiles) {
+			if (file == null) {
+				continue;
+			}
+			final Path path = file.getAbsoluteFile().toPath().normalize();
+			final Path directory = path.getParent();
+			if (directory != null && directories.add(directory)) {
+				try {
+					directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				} catch (final IOException | RuntimeException e) {
+					directories.remove(directory);
+					throw e;
+				}
+			}
+			paths.add(path);
+		}
+		files = paths;
+	}
+
+	/**
+	 * Stops watching. A callback already running is not interrupted.
+	 */
+	public void close() {
+		try {
+			watchService.close();
+		} catch (final IOException e) {
+			LOGGER.warn("Unable to close the configuration file watcher: {}", e.toString());
+		}
+	}
+
+	private void watchLoop() {
+		// 0 while nothing has changed
+		long deadlineNanos = 0;
+		try {
+			while (true) {
+				final WatchKey key;
+				if (deadlineNanos == 0) {
+					key = watchService.take();
+				} else {
+					final long remaining = deadlineNanos - System.nanoTime();
+					key = remaining > 0 ? watchService.poll(remaining, TimeUnit.NANOSECONDS) : null;
+				}
+				if (key == null) {
+					deadlineNanos = 0;
+					runCallback();
+					continue;
+				}
+				if (changesWatchedFile(key)) {
+					deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quietMillis);
+				}
+				if (!key.reset()) {
+					directories.remove(key.watchable());
+				}
+			}
+		} catch (final ClosedWatchServiceException e) {
+			// closed
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean changesWatchedFile(final WatchKey key) {
+		final Path directory = (Path) key.watchable();
+		final Set<Path> watched = files;
+		boolean changed = false;
+		for (final WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// events were lost, one of them may have been ours
+				changed = true;
+			} else if (watched.contains(directory.resolve((Path) event.context()))) {
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private void runCallback() {
+		try {
+			onChange.run();
+		} catch (final RuntimeException e) {
+			LOGGER.error("Configuration reload failed", e);
+		}
+	}
+}
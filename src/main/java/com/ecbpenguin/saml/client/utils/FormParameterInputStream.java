@@ -0,0 +1,128 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+/**
+ * Reads the value of one parameter out of an application/x-www-form-urlencoded body, percent decoding it as
+ * it streams, so a POSTed SAMLResponse can go from the request body to the base64 decoder without building a
+ * parameter map or a String.
+ *
+ * Parameters before the wanted one are skipped byte by byte. Parameter names are compared as sent; the SAML
+ * binding parameter names never need encoding.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class FormParameterInputStream extends InputStream {
+
+	/** the POST binding parameter carrying the response */
+	public static final String SAML_RESPONSE = "SAMLResponse";
+
+	private final InputStream body;
+
+	private boolean done;
+
+	/**
+	 * Positions the stream at the start of the parameter's value
+	 *
+	 * @param body the form body, read ahead through a buffer and not closed by this stream
+	 * @param name the parameter to read
+	 * @throws IOException if the body does not contain the parameter
+	 */
+	public FormParameterInputStream(final InputStream body, final String name) throws IOException {
+		this.body = new BufferedInputStream(body, 8192);
+		final byte[] wanted = name.getBytes(StandardCharsets.US_ASCII);
+		while (true) {
+			final int matched = matchName(wanted);
+			if (matched == -1) {
+				throw new SamlValidationException(Reason.MISSING_RESPONSE, "Form body does not contain a " + name + " parameter");
+			}
+			if (matched == wanted.length) {
+				return;
+			}
+			// wrong name, or a name with no value: skip to the next parameter
+			if (matched != -2 && !skipValue()) {
+				throw new SamlValidationException(Reason.MISSING_RESPONSE, "Form body does not contain a " + name + " parameter");
+			}
+		}
+	}
+
+	// returns the full length if the name matched and '=' was consumed, -1 at end of body, -2 at a bare '&'
+	private int matchName(final byte[] wanted) throws IOException {
+		int matched = 0;
+		boolean mismatch = false;
+		while (true) {
+			final int b = body.read();
+			if (b == -1) {
+				return -1;
+			}
+			if (b == '&') {
+				return -2;
+			}
+			if (b == '=') {
+				return !mismatch && matched == wanted.length ? matched : 0;
+			}
+			if (!mismatch && matched < wanted.length && b == wanted[matched]) {
+				matched++;
+			} else {
+				mismatch = true;
+			}
+		}
+	}
+
+	// returns false at end of body
+	private boolean skipValue() throws IOException {
+		while (true) {
+			final int b = body.read();
+			if (b == -1) {
+				return false;
+			}
+			if (b == '&') {
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (done) {
+			return -1;
+		}
+		final int b = body.read();
+		if (b == -1 || b == '&') {
+			done = true;
+			return -1;
+		}
+		if (b == '%') {
+			final int high = Character.digit(body.read(), 16);
+			final int low = Character.digit(body.read(), 16);
+			if (high < 0 || low < 0) {
+				throw new SamlValidationException(Reason.MALFORMED, "Invalid percent encoding in form body");
+			}
+			return high << 4 | low;
+		}
+		// form encoding turns '+' into a space, which can't be part of base64; clients that don't encode '+' mean '+'
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		int count = 0;
+		while (count < length) {
+			final int b = read();
+			if (b == -1) {
+				break;
+			}
+			buffer[offset + count++] = (byte) b;
+		}
+		return count == 0 ? -1 : count;
+	}
+}
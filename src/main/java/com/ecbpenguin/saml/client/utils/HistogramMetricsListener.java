@@ -0,0 +1,155 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link SamlMetricsListener} that keeps a latency histogram per stage, for percentiles without a metrics library.
+ *
+ * Each histogram is a fixed array of log-linear buckets, 16 per power of two, so recording is one atomic
+ * increment and never allocates, and any percentile is reported to within about 6%. Values are nanoseconds.
+ * Counts only ever grow; take the difference of two reads for a rate.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class HistogramMetricsListener implements SamlMetricsListener {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// values below this are counted exactly
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+	// enough buckets for any positive long
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray[] stageHistograms;
+
+	private final AtomicLongArray stageFailures;
+
+	private final AtomicLongArray refreshHistogram = new AtomicLongArray(BUCKETS);
+
+	// forced, scheduled, failed
+	private final AtomicLongArray refreshCounts = new AtomicLongArray(3);
+
+	public HistogramMetricsListener() {
+		final Stage[] stages = Stage.values();
+		stageHistograms = new AtomicLongArray[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			stageHistograms[i] = new AtomicLongArray(BUCKETS);
+		}
+		stageFailures = new AtomicLongArray(stages.length);
+	}
+
+	@Override
+	public void onStageCompleted(final Stage stage, final long nanos) {
+		stageHistograms[stage.ordinal()].incrementAndGet(bucketOf(nanos));
+	}
+
+	@Override
+	public void onStageFailed(final Stage stage, final long nanos) {
+		stageFailures.incrementAndGet(stage.ordinal());
+	}
+
+	@Override
+	public void onMetadataRefresh(final boolean forced, final boolean succeeded, final long nanos) {
+		refreshHistogram.incrementAndGet(bucketOf(nanos));
+		refreshCounts.incrementAndGet(forced ? 0 : 1);
+		if (!succeeded) {
+			refreshCounts.incrementAndGet(2);
+		}
+	}
+
+	/**
+	 * @return how many times the stage completed
+	 */
+	public long getCount(final Stage stage) {
+		return count(stageHistograms[stage.ordinal()]);
+	}
+
+	/**
+	 * @return how many responses or requests the stage rejected
+	 */
+	public long getFailureCount(final Stage stage) {
+		return stageFailures.get(stage.ordinal());
+	}
+
+	/**
+	 * @param percentile from 0 to 100, e.g. 99.9
+	 * @return the completed stage duration in nanos at the percentile, or 0 if the stage never completed
+	 */
+	public long getValueAtPercentile(final Stage stage, final double percentile) {
+		return valueAtPercentile(stageHistograms[stage.ordinal()], percentile);
+	}
+
+	/**
+	 * @param forced true for refreshes forced by a signature failure, false for scheduled ones
+	 * @return how many metadata refreshes ran, whether or not they succeeded
+	 */
+	public long getMetadataRefreshCount(final boolean forced) {
+		return refreshCounts.get(forced ? 0 : 1);
+	}
+
+	public long getMetadataRefreshFailureCount() {
+		return refreshCounts.get(2);
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return the metadata refresh duration in nanos at the percentile, forced and scheduled together
+	 */
+	public long getMetadataRefreshValueAtPercentile(final double percentile) {
+		return valueAtPercentile(refreshHistogram, percentile);
+	}
+
+	static int bucketOf(final long value) {
+		if (value < LINEAR_LIMIT) {
+			return value < 0 ? 0 : (int) value;
+		}
+		// keep the top SUB_BUCKET_BITS + 1 bits, the highest one is implied by the shift
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	// the highest value that lands in the bucket
+	static long highestValueOf(final int bucket) {
+		if (bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		final int shift = bucket / SUB_BUCKETS - 1;
+		final long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	private static long count(final AtomicLongArray histogram) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += histogram.get(i);
+		}
+		return count;
+	}
+
+	private static long valueAtPercentile(final AtomicLongArray histogram, final double percentile) {
+		// a snapshot, so concurrent recording can't push the walk past the end
+		final long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = histogram.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final double clamped = Math.max(0, Math.min(100, percentile));
+		final long rank = Math.max(1, (long) Math.ceil(clamped / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return highestValueOf(i);
+			}
+		}
+		return highestValueOf(BUCKETS - 1);
+	}
+}
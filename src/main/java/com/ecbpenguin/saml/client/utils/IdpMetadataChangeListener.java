@@ -0,0 +1,18 @@
+package com.ecbpenguin.saml.client.utils;
+
+/**
+ * Notified when {@link IdpMetadataUtils} publishes a new {@link IdpMetadataSnapshot}.
+ * 
+ * Called on the thread that performed the refresh, after the new snapshot is visible to readers. Keep it quick.
+ * 
+ * @author ecb_penguin
+ *
+ */
+public interface IdpMetadataChangeListener {
+
+	/**
+	 * @param previous the snapshot being replaced, null on the first load
+	 * @param current the snapshot now in use
+	 */
+	void onIdpMetadataChange(IdpMetadataSnapshot previous, IdpMetadataSnapshot current);
+}
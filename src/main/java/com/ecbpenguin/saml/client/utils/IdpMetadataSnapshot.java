@@ -0,0 +1,106 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.BasicX509Credential;
+
+/**
+ * Immutable view of the IDP metadata the client is currently using.
+ * 
+ * {@link IdpMetadataUtils} publishes a new snapshot, with the next version number, whenever a refresh changes
+ * the endpoint, the signing certificates or the validity. Readers take one snapshot and use it throughout, so
+ * they never see a new endpoint paired with an old credential.
+ * 
+ * @author ecb_penguin
+ *
+ */
+public final class IdpMetadataSnapshot {
+
+	private final long version;
+
+	private final String entityId;
+
+	private final String ssoUrl;
+
+	private final List<X509Certificate> signingCertificates;
+
+	private final List<Credential> signingCredentials;
+
+	private final DateTime validUntil;
+
+	private final long loadedAtMs;
+
+	public IdpMetadataSnapshot(final long version, final String entityId, final String ssoUrl,
+			final List<X509Certificate> signingCertificates, final DateTime validUntil) {
+		this.version = version;
+		this.entityId = entityId;
+		this.ssoUrl = ssoUrl;
+		this.signingCertificates = Collections.unmodifiableList(new ArrayList<>(signingCertificates));
+		final List<Credential> credentials = new ArrayList<>(signingCertificates.size());
+		for (final X509Certificate certificate : signingCertificates) {
+			credentials.add(new BasicX509Credential(certificate));
+		}
+		this.signingCredentials = Collections.unmodifiableList(credentials);
+		this.validUntil = validUntil;
+		this.loadedAtMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return true if the endpoint, certificates and validity match, ignoring version and load time
+	 */
+	public boolean sameContentAs(final IdpMetadataSnapshot other) {
+		if (other == null) {
+			return false;
+		}
+		return equal(entityId, other.entityId)
+				&& equal(ssoUrl, other.ssoUrl)
+				&& signingCertificates.equals(other.signingCertificates)
+				&& equal(validUntil, other.validUntil);
+	}
+
+	private static boolean equal(final Object a, final Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public String getEntityId() {
+		return entityId;
+	}
+
+	public String getSsoUrl() {
+		return ssoUrl;
+	}
+
+	public List<X509Certificate> getSigningCertificates() {
+		return signingCertificates;
+	}
+
+	public List<Credential> getSigningCredentials() {
+		return signingCredentials;
+	}
+
+	/**
+	 * @return the metadata's validUntil, or null if it doesn't say
+	 */
+	public DateTime getValidUntil() {
+		return validUntil;
+	}
+
+	public long getLoadedAtMs() {
+		return loadedAtMs;
+	}
+
+	@Override
+	public String toString() {
+		return "IdpMetadataSnapshot [version=" + version + ", entityId=" + entityId + ", ssoUrl=" + ssoUrl
+				+ ", signingCertificates=" + signingCertificates.size() + ", validUntil=" + validUntil + "]";
+	}
+}
@@ -0,0 +1,203 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact binary copy of an {@link IdpMetadataSnapshot}, so a restarting client can serve logins without
+ * first parsing the metadata XML.
+ *
+ * The file holds the entity ID, SSO endpoint, validUntil, DER encoded signing certificates, the metadata URL
+ * it came from and that download's ETag, followed by a CRC32 of all of it. A file that is damaged, was
+ * written for another metadata URL or has passed its validUntil is ignored. Files are replaced atomically,
+ * so a reader never sees half a snapshot.
+ *
+ * @author ecb_penguin
+ *
+ */
+public final class IdpMetadataSnapshotFile {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IdpMetadataSnapshotFile.class);
+
+	/** "TSMS" */
+	private static final int MAGIC = 0x54534D53;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final long ABSENT = Long.MIN_VALUE;
+
+	private IdpMetadataSnapshotFile() {
+	}
+
+	/**
+	 * A snapshot read back, with the ETag of the download it was built from
+	 */
+	static final class Contents {
+
+		final IdpMetadataSnapshot snapshot;
+
+		// null if the IDP sent none
+		final String etag;
+
+		private Contents(final IdpMetadataSnapshot snapshot, final String etag) {
+			this.snapshot = snapshot;
+			this.etag = etag;
+		}
+	}
+
+	/**
+	 * @param file the snapshot file
+	 * @param metadataUrl the URL the metadata should come from
+	 * @return the snapshot as version 1 with its ETag, or null if the file is missing, damaged, for another URL or expired
+	 */
+	static Contents readContents(final File file, final String metadataUrl) {
+		if (file == null || !file.isFile()) {
+			return null;
+		}
+		try {
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				LOGGER.warn("Ignoring IDP metadata snapshot {}, unknown format", file);
+				return null;
+			}
+			final int payloadLength = in.readInt();
+			if (payloadLength < 0 || payloadLength > in.available()) {
+				LOGGER.warn("Ignoring IDP metadata snapshot {}, it is truncated", file);
+				return null;
+			}
+			final byte[] payload = new byte[payloadLength];
+			in.readFully(payload);
+			if (in.readLong() != checksum(payload)) {
+				LOGGER.warn("Ignoring IDP metadata snapshot {}, checksum mismatch", file);
+				return null;
+			}
+			return readPayload(new DataInputStream(new ByteArrayInputStream(payload)), file, metadataUrl);
+		} catch (final IOException | GeneralSecurityException | RuntimeException e) {
+			LOGGER.warn("Ignoring IDP metadata snapshot {}: {}", file, e.toString());
+			return null;
+		}
+	}
+
+	private static Contents readPayload(final DataInputStream in, final File file, final String metadataUrl)
+			throws IOException, GeneralSecurityException {
+		final String sourceUrl = in.readUTF();
+		if (!sourceUrl.equals(metadataUrl)) {
+			LOGGER.info("Ignoring IDP metadata snapshot {}, it is for {}", file, sourceUrl);
+			return null;
+		}
+		final String etag = readNullableUTF(in);
+		final String entityId = readNullableUTF(in);
+		final String ssoUrl = readNullableUTF(in);
+		final long validUntilMs = in.readLong();
+		final long savedAtMs = in.readLong();
+		if (validUntilMs != ABSENT && validUntilMs <= System.currentTimeMillis()) {
+			LOGGER.info("Ignoring IDP metadata snapshot {}, it expired at {}", file, new DateTime(validUntilMs, DateTimeZone.UTC));
+			return null;
+		}
+
+		final CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+		final int certificateCount = in.readInt();
+		final List<X509Certificate> certificates = new ArrayList<>(certificateCount);
+		for (int i = 0; i < certificateCount; i++) {
+			final byte[] der = new byte[in.readInt()];
+			in.readFully(der);
+			certificates.add((X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(der)));
+		}
+		if (certificates.isEmpty()) {
+			return null;
+		}
+		LOGGER.debug("Read IDP metadata snapshot {} saved at {}, etag {}", file, new DateTime(savedAtMs, DateTimeZone.UTC), etag);
+		return new Contents(new IdpMetadataSnapshot(1, entityId, ssoUrl, certificates,
+				validUntilMs == ABSENT ? null : new DateTime(validUntilMs, DateTimeZone.UTC)), etag);
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file next to the target and moves it into place
+	 *
+	 * @param file the snapshot file
+	 * @param snapshot what to save
+	 * @param metadataUrl the URL the metadata came from
+	 * @param etag the ETag of the download, or null
+	 */
+	public static void write(final File file, final IdpMetadataSnapshot snapshot, final String metadataUrl, final String etag)
+			throws IOException {
+		final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(4096);
+		final DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeUTF(metadataUrl);
+		writeNullableUTF(payload, etag);
+		writeNullableUTF(payload, snapshot.getEntityId());
+		writeNullableUTF(payload, snapshot.getSsoUrl());
+		payload.writeLong(snapshot.getValidUntil() == null ? ABSENT : snapshot.getValidUntil().getMillis());
+		payload.writeLong(System.currentTimeMillis());
+		payload.writeInt(snapshot.getSigningCertificates().size());
+		for (final X509Certificate certificate : snapshot.getSigningCertificates()) {
+			final byte[] der;
+			try {
+				der = certificate.getEncoded();
+			} catch (final GeneralSecurityException e) {
+				throw new IOException("Unable to encode IDP signing certificate", e);
+			}
+			payload.writeInt(der.length);
+			payload.write(der);
+		}
+		payload.flush();
+
+		final ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(payloadBytes.size() + 20);
+		final DataOutputStream out = new DataOutputStream(fileBytes);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(payloadBytes.size());
+		payloadBytes.writeTo(out);
+		out.writeLong(checksum(payloadBytes.toByteArray()));
+		out.flush();
+
+		final Path target = file.getAbsoluteFile().toPath();
+		final Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temporary, fileBytes.toByteArray());
+			try {
+				Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static long checksum(final byte[] payload) {
+		final CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return crc.getValue();
+	}
+
+	private static String readNullableUTF(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeNullableUTF(final DataOutputStream out, final String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+}
@@ -1,17 +1,32 @@
 package com.ecbpenguin.saml.client.utils;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.joda.time.DateTime;
+import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.core.xml.XMLObject;
 import org.opensaml.saml.common.xml.SAMLConstants;
 import org.opensaml.saml.metadata.resolver.impl.FileBackedHTTPMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml.saml2.metadata.SingleSignOnService;
 import org.opensaml.security.credential.Credential;
-import org.opensaml.security.x509.BasicX509Credential;
 import org.opensaml.xmlsec.signature.Signature;
 import org.opensaml.xmlsec.signature.support.SignatureException;
 import org.opensaml.xmlsec.signature.support.SignatureValidator;
@@ -19,37 +34,209 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ecbpenguin.saml.config.TinySamlClientConfig;
-import com.ecbpenguin.utils.FileLogUtils;
+import com.ecbpenguin.utils.AsyncErrorLog;
 
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
 
+/**
+ * Resolves the IDP metadata and validates IDP signatures against it.
+ * 
+ * The current endpoint and signing credentials are held in an immutable {@link IdpMetadataSnapshot} published
+ * through a single atomic reference. Readers never lock; refreshes build a whole new snapshot and swap it in.
+ * 
+ * Each published snapshot is also saved as a small binary file next to the XML cache (see
+ * {@link IdpMetadataSnapshotFile}). On the next start that file is loaded in place of parsing the XML, and the
+ * resolver initializes on a background thread, publishing a new snapshot only if the metadata changed.
+ * 
+ * Refreshes run on the resolver's schedule, every tinySamlClient.metadataRefreshIntervalSeconds at most, each
+ * delay shortened by a random share of up to tinySamlClient.metadataRefreshJitterPercent so a fleet started
+ * together doesn't refresh together. Downloads are conditional: once the IDP has sent an ETag or Last-Modified
+ * (or one was saved with the snapshot), an unchanged document comes back as a 304 with no body and is neither
+ * parsed nor re-extracted. Logins keep using the current snapshot while a refresh runs, and after one fails.
+ * 
+ * With tinySamlClient.idpEntityId set, the IDP is looked up by entity ID in the index the resolver builds once per
+ * load, so the metadata can be a federation aggregate; only that entity's credentials and endpoint are read.
+ * Without it, the last IDP in the metadata is used. For aggregates too big to hold as a DOM,
+ * tinySamlClient.idpMetadataStreaming cuts the configured entity out of each download in one streaming pass
+ * (see {@link MetadataEntityExtractor}) before the resolver parses it.
+ * 
+ * @author ecb_penguin
+ *
+ */
 public class IdpMetadataUtils {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(IdpMetadataUtils.class);
 
-	private static final long METADATA_REFRESH_DELAY_MS = 60 * 60 * 1000; // 1 hour for DEV
+	// connections for the metadata HTTP client an instance builds for itself
+	private static final int OWN_HTTP_CLIENT_MAX_CONNECTIONS = 2;
+
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
 
 	private final FileBackedHTTPMetadataResolver metadataResolver;
 
-	//not final because the class throws this away when validation fails
-	private Credential idpSigningCredential;
+	private final String metadataUrl;
+
+	// null to use the last IDP in the metadata
+	private final String idpEntityId;
+
+	private final boolean streaming;
+
+	// binary copy of the published snapshot, next to the XML cache
+	private final File snapshotFile;
+
+	// false while the resolver loads in the background behind a snapshot read from disk
+	private volatile boolean resolverInitialized;
+
+	// guarded by initializationLock, so destroy never races the background load
+	private boolean destroyed;
+
+	private final Object initializationLock = new Object();
+
+	private volatile String sourceEtag;
+
+	// the ETag saved with the snapshot, sent until the resolver has downloaded the metadata itself
+	private volatile String seededEtag;
+
+	private final int refreshJitterPercent;
+
+	// null when the HTTP client is shared
+	private final CloseableHttpClient ownedHttpClient;
+
+	// replaced wholesale on refresh, never mutated
+	private final AtomicReference<IdpMetadataSnapshot> snapshot = new AtomicReference<>();
+
+	private final List<IdpMetadataChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+	private final long forcedRefreshMinIntervalMs;
+
+	private final long forcedRefreshMaxBackoffMs;
+
+	// only one forced refresh runs at a time, everyone else waits on this lock for its result
+	private final Object forcedRefreshLock = new Object();
+
+	// bumped each time a forced refresh completes, so waiters know someone refreshed on their behalf
+	private volatile long forcedRefreshCount;
 
-	private String idpEndpoint;
+	private volatile long nextForcedRefreshAllowedMs;
+
+	private volatile SamlMetricsListener metricsListener = SamlMetricsListener.NOOP;
+
+	// guarded by forcedRefreshLock
+	private int forcedRefreshFailures;
 
 	public IdpMetadataUtils(final TinySamlClientConfig config) {
-		final HttpClient httpClient = HttpClientBuilder.create().build();
+		this(config, MetadataHttpClientUtils.createHttpClient(OWN_HTTP_CLIENT_MAX_CONNECTIONS,
+				config.getMetadataConnectTimeoutMillis(), config.getMetadataReadTimeoutMillis()));
+	}
+
+	private IdpMetadataUtils(final TinySamlClientConfig config, final CloseableHttpClient ownedHttpClient) {
+		this(config, ownedHttpClient, null, null, ownedHttpClient);
+	}
+
+	/**
+	 * Builds the IDP metadata resolver on shared resources.
+	 * 
+	 * @param config client configuration
+	 * @param httpClient client used to download the metadata
+	 * @param parserPool parser pool for the metadata XML, or null to create one
+	 * @param backgroundTaskTimer timer for scheduled refreshes, or null for the resolver to start its own thread
+	 */
+	public IdpMetadataUtils(final TinySamlClientConfig config, final HttpClient httpClient, final ParserPool parserPool, final Timer backgroundTaskTimer) {
+		this(config, httpClient, parserPool, backgroundTaskTimer, null);
+	}
+
+	private IdpMetadataUtils(final TinySamlClientConfig config, final HttpClient httpClient, final ParserPool parserPool,
+			final Timer backgroundTaskTimer, final CloseableHttpClient ownedHttpClient) {
+		this.ownedHttpClient = ownedHttpClient;
+		refreshJitterPercent = Math.max(0, Math.min(config.getMetadataRefreshJitterPercent(), 100));
+		forcedRefreshMinIntervalMs = config.getMetadataForcedRefreshMinIntervalSeconds() * 1000L;
+		forcedRefreshMaxBackoffMs = Math.max(forcedRefreshMinIntervalMs, config.getMetadataForcedRefreshMaxBackoffSeconds() * 1000L);
+
 		// place to write the cache to, TMP is great because the code by default has r/w access to it, and it 
 		// will exist because the JVM created it
 		final String tmpDir = config.getIdpMetadataCacheLocation();
+		metadataUrl = config.getIdpMetadataUrl();
+		snapshotFile = tmpDir == null ? null : new File(tmpDir + SNAPSHOT_SUFFIX);
+		idpEntityId = config.getIdpEntityId();
+		streaming = config.isIdpMetadataStreaming();
+		if (streaming && idpEntityId == null) {
+			throw new IllegalArgumentException("tinySamlClient.idpMetadataStreaming needs tinySamlClient.idpEntityId");
+		}
 
 		try {
 			// AbstractReoladingMetadataResolver will check the idpMetadataUrl for well-formed-ness
-			metadataResolver = new FileBackedHTTPMetadataResolver(httpClient, config.getIdpMetadataUrl(), tmpDir);
-			metadataResolver.setBackupFileInitNextRefreshDelay(METADATA_REFRESH_DELAY_MS);
+			metadataResolver = new FileBackedHTTPMetadataResolver(backgroundTaskTimer, httpClient, config.getIdpMetadataUrl(), tmpDir) {
+				// the resolver's own scheduled refreshes come through here as well as forced ones
+				@Override
+				public void refresh() throws ResolverException {
+					// forceRefresh() holds the lock around its call, and publishes what it downloads itself
+					final boolean forced = Thread.holdsLock(forcedRefreshLock);
+					final DateTime previousUpdate = getLastUpdate();
+					final SamlMetricsListener listener = metricsListener;
+					final long start = listener == SamlMetricsListener.NOOP ? 0L : System.nanoTime();
+					boolean succeeded = false;
+					try {
+						super.refresh();
+						succeeded = true;
+					} finally {
+						if (listener != SamlMetricsListener.NOOP) {
+							listener.onMetadataRefresh(forced, succeeded, System.nanoTime() - start);
+						}
+					}
+					// a 304 leaves the last update alone, there is nothing new to extract
+					if (!forced && getLastUpdate() != previousUpdate) {
+						updateIdpSigningCredential();
+					}
+				}
+
+				// metadata read from the backup file was downloaded with the saved ETag, ask whether it is still current
+				@Override
+				protected HttpGet buildHttpGet() {
+					final HttpGet get = super.buildHttpGet();
+					final String etag = seededEtag;
+					if (etag != null && getLastUpdate() != null && !get.containsHeader(HttpHeaders.IF_NONE_MATCH)) {
+						get.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+					}
+					return get;
+				}
+
+				// remembered for the snapshot file; only called for a full download, the resolver tracks its own from then on
+				@Override
+				protected void processConditionalRetrievalHeaders(final HttpResponse response) {
+					super.processConditionalRetrievalHeaders(response);
+					final Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+					sourceEtag = etag == null ? null : etag.getValue();
+					seededEtag = null;
+				}
+
+				// downloads and the backup file both come through here; the backup keeps the whole document
+				@Override
+				protected XMLObject unmarshallMetadata(final byte[] metadata) throws ResolverException {
+					if (!streaming) {
+						return super.unmarshallMetadata(metadata);
+					}
+					try {
+						return super.unmarshallMetadata(MetadataEntityExtractor.extract(metadata, idpEntityId));
+					} catch (final IOException e) {
+						throw new ResolverException(e.getMessage(), e);
+					}
+				}
+
+				@Override
+				protected long computeNextRefreshDelay(final DateTime expectedExpiration) {
+					return jitter(super.computeNextRefreshDelay(expectedExpiration));
+				}
+			};
+			final long refreshIntervalMs = config.getMetadataRefreshIntervalSeconds() * 1000L;
+			metadataResolver.setMaxRefreshDelay(refreshIntervalMs);
+			metadataResolver.setMinRefreshDelay(Math.min(metadataResolver.getMinRefreshDelay(), refreshIntervalMs));
+			metadataResolver.setBackupFileInitNextRefreshDelay(jitter(refreshIntervalMs));
 		} catch (final ResolverException e) {
-			FileLogUtils.log(e);
+			AsyncErrorLog.log(e);
 			throw new RuntimeException(e);
 		}
 
@@ -57,104 +244,331 @@ public class IdpMetadataUtils {
 		metadataResolver.setId("saml-idp-metadata-resolver");
 
 		// parser pool is used to marshall / unmarshall XML to and from objects
-		BasicParserPool pp = new BasicParserPool();
 		try {
-			pp.initialize();
-			metadataResolver.setParserPool(pp);
-			metadataResolver.initialize();
+			if (parserPool != null) {
+				metadataResolver.setParserPool(parserPool);
+			} else {
+				final BasicParserPool pp = new BasicParserPool();
+				pp.initialize();
+				metadataResolver.setParserPool(pp);
+			}
 		} catch (final ComponentInitializationException e) {
-			FileLogUtils.log(e);
+			AsyncErrorLog.log(e);
 			throw new RuntimeException(e);
 		}
+
+		// a snapshot saved by an earlier run serves logins straight away, the XML is loaded behind it
+		final long start = System.nanoTime();
+		IdpMetadataSnapshotFile.Contents persisted = IdpMetadataSnapshotFile.readContents(snapshotFile, metadataUrl);
+		if (persisted != null && idpEntityId != null && !idpEntityId.equals(persisted.snapshot.getEntityId())) {
+			LOGGER.info("Ignoring IDP metadata snapshot {}, it is for {}", snapshotFile, persisted.snapshot.getEntityId());
+			persisted = null;
+		}
+		if (persisted == null) {
+			initializeResolver();
+		} else {
+			snapshot.set(persisted.snapshot);
+			seededEtag = persisted.etag;
+			sourceEtag = persisted.etag;
+			LOGGER.info("Loaded IDP metadata snapshot {} in {} us, loading the metadata in the background",
+					snapshotFile, (System.nanoTime() - start) / 1000);
+			// keep the scheduled refreshes going even if neither the URL nor the XML cache can be read right now
+			metadataResolver.setFailFastInitialization(false);
+			final Thread initializer = new Thread(this::initializeResolverInBackground, "tiny-saml-client-metadata-init");
+			initializer.setDaemon(true);
+			initializer.start();
+		}
+	}
+
+	private void initializeResolver() {
+		synchronized (initializationLock) {
+			if (destroyed) {
+				return;
+			}
+			try {
+				metadataResolver.initialize();
+			} catch (final ComponentInitializationException e) {
+				AsyncErrorLog.log(e);
+				throw new RuntimeException(e);
+			}
+			resolverInitialized = true;
+		}
 		updateIdpSigningCredential();
 	}
 
+	// shortens the delay by up to the jitter share, so refreshes never run later than the resolver planned
+	private long jitter(final long delayMs) {
+		if (refreshJitterPercent == 0 || delayMs <= 0) {
+			return delayMs;
+		}
+		return delayMs - (long) (ThreadLocalRandom.current().nextDouble() * delayMs * refreshJitterPercent / 100);
+	}
+
+	private void initializeResolverInBackground() {
+		try {
+			initializeResolver();
+		} catch (final RuntimeException e) {
+			LOGGER.error("Unable to load IDP metadata, still using the snapshot", e);
+		}
+	}
+
 	// synchronizing this prevents duplicate updates and minimizes thrashing when the credential changes
-	private synchronized void updateIdpSigningCredential() {
-		final Iterator<EntityDescriptor> entities = metadataResolver.iterator();
-		java.security.cert.X509Certificate foundCert = null;
+	// readers don't take this lock, they just see the old snapshot until the new one is published
+	// returns true if a new snapshot was published
+	private synchronized boolean updateIdpSigningCredential() {
+		if (!resolverInitialized) {
+			return false;
+		}
+		final EntityDescriptor entity = findIdp();
+		final IDPSSODescriptor idpSsoDescriptor = entity == null ? null : entity.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+		if (idpSsoDescriptor == null) {
+			return false;
+		}
+		final List<X509Certificate> foundCerts = MetadataCertificateUtils.getSigningX509Certificates(idpSsoDescriptor);
+		if (foundCerts.isEmpty()) {
+			return false;
+		}
+		final String entityId = entity.getEntityID();
+		final DateTime validUntil = entity.getValidUntil();
 		String endpointUri = null;
+		for (final SingleSignOnService ssoService : idpSsoDescriptor.getSingleSignOnServices()) {
+			if (SAMLConstants.SAML2_POST_BINDING_URI.equalsIgnoreCase(ssoService.getBinding())) {
+				endpointUri = ssoService.getLocation();
+			}
+		}
+
+		final IdpMetadataSnapshot previous = snapshot.get();
+		final IdpMetadataSnapshot candidate = new IdpMetadataSnapshot(previous == null ? 1 : previous.getVersion() + 1,
+				entityId, endpointUri, foundCerts, validUntil);
+		if (candidate.sameContentAs(previous)) {
+			return false;
+		}
+		LOGGER.info("Updating with endpointURI = {}, signing credentials={}", endpointUri, foundCerts);
+		snapshot.set(candidate);
+		for (final IdpMetadataChangeListener listener : listeners) {
+			try {
+				listener.onIdpMetadataChange(previous, candidate);
+			} catch (final RuntimeException e) {
+				LOGGER.error("IDP metadata change listener failed", e);
+			}
+		}
+		saveSnapshot(candidate);
+		return true;
+	}
+
+	// the configured IDP from the resolver's entity ID index, or the last IDP in the metadata
+	private EntityDescriptor findIdp() {
+		if (idpEntityId != null) {
+			final EntityDescriptor entity;
+			try {
+				entity = metadataResolver.resolveSingle(new CriteriaSet(new EntityIdCriterion(idpEntityId)));
+			} catch (final ResolverException e) {
+				LOGGER.error("Unable to look up IDP {} in the metadata", idpEntityId, e);
+				return null;
+			}
+			if (entity == null) {
+				LOGGER.warn("IDP {} is not in the metadata from {}", idpEntityId, metadataUrl);
+			}
+			return entity;
+		}
+		EntityDescriptor idp = null;
+		int idpCount = 0;
+		final Iterator<EntityDescriptor> entities = metadataResolver.iterator();
 		while (entities.hasNext()) {
 			final EntityDescriptor entity = entities.next();
-			final IDPSSODescriptor idpSsoDescriptor = entity.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
-			if (idpSsoDescriptor != null) {
-				foundCert = MetadataCertificateUtils.getSigningX509Certifate(idpSsoDescriptor);
-				final List<SingleSignOnService> ssoServices = idpSsoDescriptor.getSingleSignOnServices();
-				for (final SingleSignOnService ssoService : ssoServices) {
-					if (SAMLConstants.SAML2_POST_BINDING_URI.equalsIgnoreCase(ssoService.getBinding())) {
-						endpointUri = ssoService.getLocation();
-					}
-				}
+			if (entity.getIDPSSODescriptor(SAMLConstants.SAML20P_NS) != null) {
+				idp = entity;
+				idpCount++;
 			}
 		}
+		if (idpCount > 1) {
+			LOGGER.warn("The metadata from {} has {} IDPs, using {}; set tinySamlClient.idpEntityId to choose one",
+					metadataUrl, idpCount, idp.getEntityID());
+		}
+		return idp;
+	}
+
+	// best effort, the XML cache is still there if this fails
+	private void saveSnapshot(final IdpMetadataSnapshot published) {
+		if (snapshotFile == null) {
+			return;
+		}
+		try {
+			IdpMetadataSnapshotFile.write(snapshotFile, published, metadataUrl, sourceEtag);
+		} catch (final IOException e) {
+			LOGGER.warn("Unable to save IDP metadata snapshot {}: {}", snapshotFile, e.toString());
+		}
+	}
 
-		if (foundCert != null ) {
-			LOGGER.info("Updating with endpointURI = {}, signing credential={}", endpointUri, foundCert);
-			idpSigningCredential = new BasicX509Credential(foundCert);
-			idpEndpoint = endpointUri;
+	/**
+	 * Stops the resolver's scheduled refreshes and releases the parsed metadata. The on disk cache file is kept.
+	 */
+	public void destroy() {
+		synchronized (initializationLock) {
+			destroyed = true;
+			// a resolver that never initialized has nothing to stop
+			if (resolverInitialized) {
+				metadataResolver.destroy();
+			}
+		}
+		if (ownedHttpClient != null) {
+			try {
+				ownedHttpClient.close();
+			} catch (final IOException e) {
+				LOGGER.warn("Unable to close metadata HTTP client: {}", e.toString());
+			}
 		}
 	}
 
+	/**
+	 * @return the IDP metadata currently in use, never locks
+	 */
+	public final IdpMetadataSnapshot getSnapshot() {
+		return snapshot.get();
+	}
 
-	public final String getIdpSsoUrl() {
-		return idpEndpoint;
+	public final void addChangeListener(final IdpMetadataChangeListener listener) {
+		listeners.add(listener);
 	}
 
-	public boolean validateIdpSignature(final Signature signature) throws SignatureException {
-		boolean valid = false;
-		SignatureException rootCause = null;
-		try {
-			SignatureValidator.validate(signature, idpSigningCredential);
-			valid = true;
-		} catch ( final SignatureException e) {
-			LOGGER.warn("Faled to valiate signing credential on first pass: {}", e.getMessage(), e);
-			rootCause = e;
-			valid = false;
+	public final void removeChangeListener(final IdpMetadataChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	// passes if any of the snapshot's signing credentials verifies, so both keys work during a rollover
+	private static void validate(final Signature signature, final IdpMetadataSnapshot current) throws SignatureException {
+		if (current == null) {
+			throw new SignatureException("No IDP signing credential has been loaded");
 		}
-		if (valid) {
-			return true;
+		SignatureException lastFailure = null;
+		for (final Credential credential : current.getSigningCredentials()) {
+			try {
+				SignatureValidator.validate(signature, credential);
+				return;
+			} catch (final SignatureException e) {
+				lastFailure = e;
+			}
 		}
+		throw lastFailure;
+	}
 
-		//not valid, try to refresh the signing credential (e.g. a regular metadata refresh that we've aready cached)
-		updateIdpSigningCredential();
-		try {
-			SignatureValidator.validate(signature, idpSigningCredential);
-			valid = true;
-		} catch ( final SignatureException e) {
-			LOGGER.warn("Faled to valiate signing credential on second pass: {}", e.getMessage(), e);
-			rootCause = e;
-			valid = false;
+	/**
+	 * Forces a metadata download, at most once per cool down window no matter how many threads ask.
+	 * 
+	 * Threads that arrive while a refresh is in flight wait for it and share its result. The window starts at
+	 * the configured minimum interval and doubles, up to the max backoff, each time a forced refresh fails or
+	 * does not produce a new signing certificate.
+	 * 
+	 * @return true if the metadata was refreshed (by this thread or one it waited on), false if in cool down or the refresh failed
+	 */
+	private boolean forceRefresh() {
+		if (!resolverInitialized) {
+			// the background load is already fetching the metadata
+			return false;
 		}
-		
-		if (valid) {
-			return true;
+		final long seenRefreshCount = forcedRefreshCount;
+		if (System.currentTimeMillis() < nextForcedRefreshAllowedMs) {
+			return false;
 		}
+		synchronized (forcedRefreshLock) {
+			if (forcedRefreshCount != seenRefreshCount) {
+				// another thread refreshed while this one waited, use its result
+				return true;
+			}
+			final long now = System.currentTimeMillis();
+			if (now < nextForcedRefreshAllowedMs) {
+				return false;
+			}
 
-		//now try to force refresh the metadata (e.g. we haven't picked up the new cert yet from the IDP)
-		try {
-			metadataResolver.refresh();
-		} catch (final ResolverException e) {
-			//can't refresh, could be in the middle of a ADFS refresh.
-			// fail and let the next iteration try again
-			LOGGER.error("Failed to refresh metadata", e);
-			return false;
+			boolean refreshed = false;
+			boolean changed = false;
+			try {
+				metadataResolver.refresh();
+				refreshed = true;
+				changed = updateIdpSigningCredential();
+			} catch (final ResolverException e) {
+				//can't refresh, could be in the middle of a ADFS refresh.
+				// fail and let the next iteration try again
+				LOGGER.error("Failed to refresh metadata", e);
+			}
+
+			if (changed) {
+				forcedRefreshFailures = 0;
+			} else if (forcedRefreshFailures < 30) {
+				forcedRefreshFailures++;
+			}
+			final long backoffMs = forcedRefreshFailures == 0
+					? forcedRefreshMinIntervalMs
+					: Math.min(forcedRefreshMaxBackoffMs, forcedRefreshMinIntervalMs << (forcedRefreshFailures - 1));
+			nextForcedRefreshAllowedMs = System.currentTimeMillis() + backoffMs;
+			forcedRefreshCount = seenRefreshCount + 1;
+			return refreshed;
 		}
+	}
 
-		updateIdpSigningCredential();
+
+	/**
+	 * @param metricsListener receives the count and duration of metadata refreshes, or null to stop reporting
+	 */
+	public void setMetricsListener(final SamlMetricsListener metricsListener) {
+		this.metricsListener = metricsListener == null ? SamlMetricsListener.NOOP : metricsListener;
+	}
+
+	/**
+	 * @return true if a forced refresh would run now rather than be skipped for the cool down window
+	 */
+	public final boolean isForcedRefreshAllowed() {
+		return System.currentTimeMillis() >= nextForcedRefreshAllowedMs;
+	}
+
+	/**
+	 * Runs a rate limited forced refresh (see {@link #validateIdpSignature(Signature)}) on the given executor,
+	 * so the blocking download never holds the calling thread.
+	 * 
+	 * @param executor executor for blocking I/O
+	 * @return completes with true if the metadata was refreshed
+	 */
+	public final CompletableFuture<Boolean> forceRefreshAsync(final Executor executor) {
+		return CompletableFuture.supplyAsync(this::forceRefresh, executor);
+	}
+
+	public final String getIdpSsoUrl() {
+		final IdpMetadataSnapshot current = snapshot.get();
+		return current == null ? null : current.getSsoUrl();
+	}
+
+	public boolean validateIdpSignature(final Signature signature) throws SignatureException {
+		return validateIdpSignature(signature, true);
+	}
+
+	/**
+	 * @param allowForcedRefresh false to fail rather than force a metadata download when no loaded certificate verifies
+	 */
+	public boolean validateIdpSignature(final Signature signature, final boolean allowForcedRefresh) throws SignatureException {
+		final SignatureException rootCause;
 		try {
-			SignatureValidator.validate(signature, idpSigningCredential);
-			valid = true;
+			validate(signature, snapshot.get());
+			return true;
 		} catch ( final SignatureException e) {
-			LOGGER.warn("Faled to valiate signing credential on final pass: {}", e.getMessage(), e);
+			LOGGER.debug("Failed to validate signing credential on first pass: {}", e.getMessage());
 			rootCause = e;
-			valid = false;
 		}
 
-		if (rootCause != null) {
+		// scheduled refreshes publish new snapshots themselves, so the only way left to a newer certificate is
+		// to force a download. That is rate limited and checks its cool down before taking any lock, so a
+		// flood of bad signatures costs at most one download per cool down window
+		if (!allowForcedRefresh || !forceRefresh()) {
 			throw rootCause;
 		}
-		//this means the refresh was valid and resulted in a successful validation
-		return valid;
+
+		try {
+			validate(signature, snapshot.get());
+		} catch ( final SignatureException e) {
+			LOGGER.debug("Failed to validate signing credential after a forced refresh: {}", e.getMessage());
+			throw e;
+		}
+		//the refresh resulted in a successful validation
+		return true;
 	}
 	
 }
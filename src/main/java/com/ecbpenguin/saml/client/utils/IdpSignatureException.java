@@ -0,0 +1,30 @@
+package com.ecbpenguin.saml.client.utils;
+
+/**
+ * An IDP signature on a response did not verify against the current metadata.
+ *
+ * When the caller asked for validation without a forced metadata refresh, and a refresh is currently allowed,
+ * {@link #isRefreshDeferred()} is true: a new signing certificate may be published, so forcing a refresh
+ * (see {@link IdpMetadataUtils#forceRefreshAsync(java.util.concurrent.Executor)}) and validating again may succeed.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class IdpSignatureException extends SamlValidationException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean refreshDeferred;
+
+	public IdpSignatureException(final String message, final Throwable cause, final boolean refreshDeferred) {
+		super(Reason.SIGNATURE, message, cause);
+		this.refreshDeferred = refreshDeferred;
+	}
+
+	/**
+	 * @return true if a forced metadata refresh was skipped at the caller's request and is allowed now
+	 */
+	public boolean isRefreshDeferred() {
+		return refreshDeferred;
+	}
+}
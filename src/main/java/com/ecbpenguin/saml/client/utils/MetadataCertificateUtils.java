@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
@@ -41,6 +42,26 @@ public class MetadataCertificateUtils {
 		return null;
 	}
 
+	/**
+	 * Extracts every signing X509 Certificate from a metadata file, e.g. both the old and new certificates during a key rollover
+	 * 
+	 * @param roleDescriptor a Metadata descriptor (e.g. SPSSODescriptor, IDPSSODescriptor)
+	 * @return the signing X509Certificates, empty if there are none
+	 */
+	public static List<X509Certificate> getSigningX509Certificates(final RoleDescriptor roleDescriptor) {
+		final List<X509Certificate> certificates = new ArrayList<>();
+		for (final KeyDescriptor kd : roleDescriptor.getKeyDescriptors()) {
+			final UsageType usage = kd.getUse();
+			if (UsageType.SIGNING.equals(usage) || UsageType.UNSPECIFIED.equals(usage)) {
+				final X509Certificate certificate = extractX509Certificate(kd);
+				if (certificate != null && !certificates.contains(certificate)) {
+					certificates.add(certificate);
+				}
+			}
+		}
+		return certificates;
+	}
+
 	private static final X509Certificate extractX509Certificate(final KeyDescriptor keyDescriptor) {
 		final KeyInfo keyInfo = keyDescriptor.getKeyInfo();
 		if (keyInfo == null) {
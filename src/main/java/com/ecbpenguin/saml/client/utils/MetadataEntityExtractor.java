@@ -0,0 +1,311 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Cuts one EntityDescriptor out of a metadata aggregate in a single streaming pass, so a federation file with
+ * thousands of entities never becomes a DOM. Only the wanted entity is held, as text, and the parse stops
+ * once it has been read.
+ *
+ * The entity is written out as a standalone document: namespaces declared on its ancestors are declared on it,
+ * and, unless the entity is signed, the validUntil and cacheDuration of the nearest EntitiesDescriptor carrying
+ * them are copied onto it when it has none of its own. Comments and processing instructions are dropped. A
+ * signature over the whole aggregate does not survive. One on the entity itself does, as exclusive
+ * canonicalization doesn't see where a namespace was declared, but a signed entity keeps only its own validity.
+ *
+ * @author ecb_penguin
+ *
+ */
+final class MetadataEntityExtractor {
+
+	private static final String ENTITY_DESCRIPTOR = "EntityDescriptor";
+
+	private static final String ENTITIES_DESCRIPTOR = "EntitiesDescriptor";
+
+	private static final String VALID_UNTIL = "validUntil";
+
+	private static final String CACHE_DURATION = "cacheDuration";
+
+	private static final String SIGNATURE = "Signature";
+
+	private static final SAXParserFactory PARSER_FACTORY = createParserFactory();
+
+	/** ends the parse once the entity has been read */
+	private static final SAXException ENTITY_READ = new SAXException("entity read") {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	};
+
+	private MetadataEntityExtractor() {
+	}
+
+	private static SAXParserFactory createParserFactory() {
+		final SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			// qualified names for every element and attribute, as written
+			factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+		} catch (final ParserConfigurationException | SAXException e) {
+			throw new RuntimeException(e);
+		}
+		return factory;
+	}
+
+	/**
+	 * @param metadata a metadata document, an aggregate or a single entity
+	 * @param entityId the entity to keep
+	 * @return the entity as a UTF-8 metadata document
+	 * @throws IOException if the metadata doesn't parse or doesn't contain the entity
+	 */
+	static byte[] extract(final byte[] metadata, final String entityId) throws IOException {
+		final EntityHandler handler = new EntityHandler(entityId);
+		try {
+			final SAXParser parser = PARSER_FACTORY.newSAXParser();
+			parser.parse(new ByteArrayInputStream(metadata), handler);
+		} catch (final SAXException e) {
+			if (e != ENTITY_READ) {
+				throw new IOException("Unable to parse IDP metadata", e);
+			}
+		} catch (final ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+		if (!handler.found) {
+			throw new IOException("Entity " + entityId + " not found in IDP metadata");
+		}
+		return handler.out.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static final class EntityHandler extends DefaultHandler {
+
+		private final String entityId;
+
+		private final StringBuilder out = new StringBuilder(16 * 1024);
+
+		private final NamespaceSupport namespaces = new NamespaceSupport();
+
+		// prefixes declared for the next element, as {prefix, uri}
+		private final List<String[]> declarations = new ArrayList<>();
+
+		// validUntil and cacheDuration of each enclosing EntitiesDescriptor, either may be null
+		private final Deque<String[]> inheritedValidity = new ArrayDeque<>();
+
+		private boolean contextPushed;
+
+		// nesting depth inside the wanted entity, 0 outside it
+		private int depth;
+
+		private boolean found;
+
+		// validity inherited by the entity, added to its start tag at the end unless the entity turns out signed
+		private String[] missingValidity;
+
+		// where in out the entity's start tag ends
+		private int validityOffset;
+
+		private EntityHandler(final String entityId) {
+			this.entityId = entityId;
+		}
+
+		@Override
+		public void startPrefixMapping(final String prefix, final String uri) {
+			if (!contextPushed) {
+				namespaces.pushContext();
+				contextPushed = true;
+			}
+			namespaces.declarePrefix(prefix, uri);
+			declarations.add(new String[] { prefix, uri });
+		}
+
+		@Override
+		public void startElement(final String uri, final String localName, final String qName, final Attributes attributes) {
+			if (!contextPushed) {
+				namespaces.pushContext();
+			}
+			contextPushed = false;
+
+			if (depth > 0) {
+				if (++depth == 2 && SignatureConstants.XMLSIG_NS.equals(uri) && SIGNATURE.equals(localName)) {
+					// adding attributes would break the entity's own signature
+					missingValidity = null;
+				}
+				writeStartElement(qName, attributes, declarations);
+			} else if (SAMLConstants.SAML20MD_NS.equals(uri) && ENTITY_DESCRIPTOR.equals(localName)
+					&& entityId.equals(attributes.getValue("entityID"))) {
+				depth = 1;
+				writeStartElement(qName, attributes, inScopeDeclarations());
+				validityOffset = out.length() - 1;
+				missingValidity = missingValidity(attributes);
+			} else if (SAMLConstants.SAML20MD_NS.equals(uri) && ENTITIES_DESCRIPTOR.equals(localName)) {
+				final String[] parent = inheritedValidity.peek();
+				final String validUntil = attributes.getValue(VALID_UNTIL);
+				final String cacheDuration = attributes.getValue(CACHE_DURATION);
+				inheritedValidity.push(new String[] {
+						validUntil != null || parent == null ? validUntil : parent[0],
+						cacheDuration != null || parent == null ? cacheDuration : parent[1] });
+			}
+			declarations.clear();
+		}
+
+		@Override
+		public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+			namespaces.popContext();
+			if (depth > 0) {
+				out.append("</").append(qName).append('>');
+				if (--depth == 0) {
+					insertValidity();
+					found = true;
+					throw ENTITY_READ;
+				}
+			} else if (SAMLConstants.SAML20MD_NS.equals(uri) && ENTITIES_DESCRIPTOR.equals(localName)) {
+				inheritedValidity.pop();
+			}
+		}
+
+		@Override
+		public void characters(final char[] ch, final int start, final int length) {
+			if (depth > 0) {
+				for (int i = start; i < start + length; i++) {
+					final char c = ch[i];
+					switch (c) {
+					case '&':
+						out.append("&amp;");
+						break;
+					case '<':
+						out.append("&lt;");
+						break;
+					case '>':
+						out.append("&gt;");
+						break;
+					case '\r':
+						out.append("&#13;");
+						break;
+					default:
+						out.append(c);
+					}
+				}
+			}
+		}
+
+		@Override
+		public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+			characters(ch, start, length);
+		}
+
+		// the entity becomes the root, so it declares everything its ancestors did
+		private List<String[]> inScopeDeclarations() {
+			final List<String[]> inScope = new ArrayList<>();
+			final Enumeration<?> prefixes = namespaces.getPrefixes();
+			while (prefixes.hasMoreElements()) {
+				final String prefix = (String) prefixes.nextElement();
+				if (!"xml".equals(prefix)) {
+					inScope.add(new String[] { prefix, namespaces.getURI(prefix) });
+				}
+			}
+			final String defaultNamespace = namespaces.getURI("");
+			if (defaultNamespace != null && defaultNamespace.length() > 0) {
+				inScope.add(new String[] { "", defaultNamespace });
+			}
+			return inScope;
+		}
+
+		private String[] missingValidity(final Attributes attributes) {
+			final String[] inherited = inheritedValidity.peek();
+			if (inherited == null) {
+				return null;
+			}
+			return new String[] {
+					attributes.getValue(VALID_UNTIL) == null ? inherited[0] : null,
+					attributes.getValue(CACHE_DURATION) == null ? inherited[1] : null };
+		}
+
+		private void insertValidity() {
+			if (missingValidity == null) {
+				return;
+			}
+			final StringBuilder attributes = new StringBuilder();
+			if (missingValidity[0] != null) {
+				attributes.append(' ').append(VALID_UNTIL);
+				writeAttributeValue(attributes, missingValidity[0]);
+			}
+			if (missingValidity[1] != null) {
+				attributes.append(' ').append(CACHE_DURATION);
+				writeAttributeValue(attributes, missingValidity[1]);
+			}
+			out.insert(validityOffset, attributes);
+		}
+
+		private void writeStartElement(final String qName, final Attributes attributes, final List<String[]> namespaceDeclarations) {
+			out.append('<').append(qName);
+			for (final String[] declaration : namespaceDeclarations) {
+				out.append(declaration[0].isEmpty() ? " xmlns" : " xmlns:" + declaration[0]);
+				writeAttributeValue(out, declaration[1]);
+			}
+			for (int i = 0; i < attributes.getLength(); i++) {
+				final String name = attributes.getQName(i);
+				// declarations come from startPrefixMapping
+				if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+					continue;
+				}
+				out.append(' ').append(name);
+				writeAttributeValue(out, attributes.getValue(i));
+			}
+			out.append('>');
+		}
+
+		private static void writeAttributeValue(final StringBuilder target, final String value) {
+			target.append("=\"");
+			for (int i = 0; i < value.length(); i++) {
+				final char c = value.charAt(i);
+				switch (c) {
+				case '&':
+					target.append("&amp;");
+					break;
+				case '<':
+					target.append("&lt;");
+					break;
+				case '"':
+					target.append("&quot;");
+					break;
+				case '\t':
+					target.append("&#9;");
+					break;
+				case '\n':
+					target.append("&#10;");
+					break;
+				case '\r':
+					target.append("&#13;");
+					break;
+				default:
+					target.append(c);
+				}
+			}
+			target.append('"');
+		}
+	}
+}
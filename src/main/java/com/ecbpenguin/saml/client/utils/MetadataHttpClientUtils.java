@@ -0,0 +1,45 @@
+package com.ecbpenguin.saml.client.utils;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Builds the pooled HTTP clients that download IDP metadata.
+ *
+ * Every request is bounded by the connect and read timeouts, and waits no longer than the connect timeout for
+ * a pooled connection, so a hung IDP fails a refresh instead of holding the refresh thread. Connections are
+ * kept alive between refreshes and checked before reuse once idle.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class MetadataHttpClientUtils {
+
+	// an idle connection is checked before reuse, refreshes are far enough apart that most are
+	private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+	/**
+	 * @param maxConnections the most concurrent metadata downloads
+	 * @param connectTimeoutMillis TCP and TLS connect timeout, 0 for none
+	 * @param readTimeoutMillis longest wait for data once connected, 0 for none
+	 */
+	public static CloseableHttpClient createHttpClient(final int maxConnections, final int connectTimeoutMillis, final int readTimeoutMillis) {
+		final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+		final RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMillis)
+				.setConnectionRequestTimeout(connectTimeoutMillis)
+				.setSocketTimeout(readTimeoutMillis)
+				.build();
+		return HttpClientBuilder.create()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.disableCookieManagement()
+				.build();
+	}
+}
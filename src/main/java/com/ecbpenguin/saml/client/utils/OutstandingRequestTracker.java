@@ -0,0 +1,237 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.util.UUID;
+
+/**
+ * Remembers the IDs of AuthnRequests this client has issued, so a response's InResponseTo can be checked
+ * and consumed exactly once.
+ *
+ * Request IDs are "_" followed by a UUID (see {@link AuthnRequestUtils#buildAuthnRequest(boolean)}), so each is
+ * stored as two longs plus an int expiry in striped, linear probing tables of primitives, roughly 30 bytes per
+ * outstanding request instead of a String keyed map entry. Expired entries are swept in place when a stripe fills.
+ *
+ * Like the replay cache, this is per JVM. In a cluster the response must come back to the node that issued the request.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class OutstandingRequestTracker {
+
+	static final int STRIPE_COUNT = 64;
+
+	// keeps probe sequences short, the table is never more than 3/4 full
+	private static final double MAX_LOAD = 0.75;
+
+	private final Stripe[] stripes;
+
+	private final int ttlSeconds;
+
+	private final long baseMs;
+
+	/**
+	 * @param maxEntries the most outstanding requests held at once
+	 * @param ttlMs how long an issued request may wait for its response
+	 */
+	public OutstandingRequestTracker(final int maxEntries, final long ttlMs) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive!");
+		}
+		if (ttlMs <= 0) {
+			throw new IllegalArgumentException("ttlMs must be positive!");
+		}
+		this.ttlSeconds = (int) Math.max(1, (ttlMs + 999) / 1000);
+		this.baseMs = System.currentTimeMillis();
+		final int perStripe = (maxEntries + STRIPE_COUNT - 1) / STRIPE_COUNT;
+		final int capacity = Integer.highestOneBit(Math.max(2, (int) Math.ceil(perStripe / MAX_LOAD)) - 1) << 1;
+		this.stripes = new Stripe[STRIPE_COUNT];
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			stripes[i] = new Stripe(capacity, perStripe);
+		}
+	}
+
+	/**
+	 * Records an issued request ID.
+	 *
+	 * @return false if the ID is not one this client generates or the tracker is full of live requests
+	 */
+	public boolean record(final String requestId) {
+		return record(requestId, System.currentTimeMillis());
+	}
+
+	final boolean record(final String requestId, final long nowMs) {
+		final UUID uuid = toUuid(requestId);
+		if (uuid == null) {
+			return false;
+		}
+		final long hi = uuid.getMostSignificantBits();
+		final long lo = uuid.getLeastSignificantBits();
+		final int hash = hash(hi, lo);
+		final int now = nowSeconds(nowMs);
+		return stripeFor(hash).add(hi, lo, hash, now + ttlSeconds, now);
+	}
+
+	/**
+	 * Removes an outstanding request ID.
+	 *
+	 * @return true if the ID was issued by this client, has not expired, and has not been consumed before
+	 */
+	public boolean consume(final String requestId) {
+		return consume(requestId, System.currentTimeMillis());
+	}
+
+	final boolean consume(final String requestId, final long nowMs) {
+		final UUID uuid = toUuid(requestId);
+		if (uuid == null) {
+			return false;
+		}
+		final long hi = uuid.getMostSignificantBits();
+		final long lo = uuid.getLeastSignificantBits();
+		final int hash = hash(hi, lo);
+		return stripeFor(hash).remove(hi, lo, hash, nowSeconds(nowMs));
+	}
+
+	/**
+	 * @return the number of tracked requests, including expired ones not yet swept
+	 */
+	public int size() {
+		int size = 0;
+		for (final Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	private int nowSeconds(final long nowMs) {
+		return (int) ((nowMs - baseMs) / 1000);
+	}
+
+	private Stripe stripeFor(final int hash) {
+		// the low bits pick the slot inside the stripe, so use the high bits here
+		return stripes[(hash >>> 26) & (STRIPE_COUNT - 1)];
+	}
+
+	private static UUID toUuid(final String requestId) {
+		if (requestId == null || requestId.length() != 37 || requestId.charAt(0) != '_') {
+			return null;
+		}
+		try {
+			return UUID.fromString(requestId.substring(1));
+		} catch (final IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	static int hash(final long hi, final long lo) {
+		long h = hi ^ Long.rotateLeft(lo, 32);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	/**
+	 * One linear probing table. A slot is empty when its expiry is 0; live expiries are always at least 1.
+	 */
+	private static final class Stripe {
+
+		private final long[] keys;
+
+		private final int[] expiries;
+
+		private final int mask;
+
+		private final int maxSize;
+
+		private int size;
+
+		private Stripe(final int capacity, final int maxSize) {
+			this.keys = new long[capacity * 2];
+			this.expiries = new int[capacity];
+			this.mask = capacity - 1;
+			this.maxSize = Math.min(maxSize, (int) (capacity * MAX_LOAD));
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized boolean add(final long hi, final long lo, final int hash, final int expiry, final int now) {
+			if (size >= maxSize) {
+				sweep(now);
+				if (size >= maxSize) {
+					return false;
+				}
+			}
+			int slot = hash & mask;
+			while (expiries[slot] != 0) {
+				if (keys[slot * 2] == hi && keys[slot * 2 + 1] == lo) {
+					expiries[slot] = Math.max(1, expiry);
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot * 2] = hi;
+			keys[slot * 2 + 1] = lo;
+			expiries[slot] = Math.max(1, expiry);
+			size++;
+			return true;
+		}
+
+		private synchronized boolean remove(final long hi, final long lo, final int hash, final int now) {
+			int slot = hash & mask;
+			while (expiries[slot] != 0) {
+				if (keys[slot * 2] == hi && keys[slot * 2 + 1] == lo) {
+					final boolean live = expiries[slot] > now;
+					deleteAt(slot);
+					return live;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+
+		// drops every expired entry in one pass, starting after an empty slot so no probe run wraps past the start
+		private void sweep(final int now) {
+			int start = 0;
+			while (expiries[start] != 0) {
+				start = (start + 1) & mask;
+			}
+			int slot = (start + 1) & mask;
+			for (int visited = 0; visited < mask; ) {
+				if (expiries[slot] != 0 && expiries[slot] <= now) {
+					// an entry further along may have shifted into this slot, so look at it again
+					deleteAt(slot);
+					continue;
+				}
+				slot = (slot + 1) & mask;
+				visited++;
+			}
+		}
+
+		// backward shift deletion, keeps probe runs unbroken without tombstones
+		private void deleteAt(final int slot) {
+			int hole = slot;
+			int next = slot;
+			while (true) {
+				next = (next + 1) & mask;
+				if (expiries[next] == 0) {
+					break;
+				}
+				final int home = hash(keys[next * 2], keys[next * 2 + 1]) & mask;
+				final boolean stays = hole <= next
+						? hole < home && home <= next
+						: hole < home || home <= next;
+				if (!stays) {
+					keys[hole * 2] = keys[next * 2];
+					keys[hole * 2 + 1] = keys[next * 2 + 1];
+					expiries[hole] = expiries[next];
+					hole = next;
+				}
+			}
+			keys[hole * 2] = 0;
+			keys[hole * 2 + 1] = 0;
+			expiries[hole] = 0;
+			size--;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.ecbpenguin.saml.client.utils;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+
+/**
+ * Builds the bounded, thread safe parser pools used to turn XML into DOM trees.
+ * 
+ * A {@link javax.xml.parsers.DocumentBuilder} is not thread safe, so each parse checks a builder out of the
+ * pool and returns it when done. Builders beyond the max pool size are discarded on return rather than retained.
+ * 
+ * @author ecb_penguin
+ *
+ */
+public class ParserPoolUtils {
+
+	public static BasicParserPool createParserPool(final int maxPoolSize) {
+		final BasicParserPool parserPool = new BasicParserPool();
+		parserPool.setMaxPoolSize(maxPoolSize > 0 ? maxPoolSize : Runtime.getRuntime().availableProcessors());
+		parserPool.setNamespaceAware(true);
+		try {
+			parserPool.initialize();
+		} catch (final ComponentInitializationException e) {
+			throw new RuntimeException(e);
+		}
+		return parserPool;
+	}
+}
@@ -0,0 +1,166 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signed, base64 encoded POST binding AuthnRequests prepared ahead of time by a background thread, so a burst
+ * of logins doesn't wait on one XML signature each.
+ *
+ * Every request has its own ID and is signed with the time it was built as its IssueInstant. A request older
+ * than the freshness window is discarded rather than sent, both when it is taken and by the background thread,
+ * which keeps the queue full. Keeping it full costs up to capacity signatures per freshness window while idle.
+ * When the queue has nothing fresh, {@link #take()} returns null and the caller signs inline. Request IDs
+ * are recorded in the request tracker when taken, not when built, so discarded requests never fill it.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class PreSignedRequestPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PreSignedRequestPool.class);
+
+	private static final long MIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final long FAILURE_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final class Entry {
+
+		private final String id;
+
+		private final String encoded;
+
+		private final long builtNanos;
+
+		private Entry(final String id, final String encoded, final long builtNanos) {
+			this.id = id;
+			this.encoded = encoded;
+			this.builtNanos = builtNanos;
+		}
+	}
+
+	private final AuthnRequestUtils authnRequestUtils;
+
+	private final ArrayBlockingQueue<Entry> queue;
+
+	private final long maxAgeNanos;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder discarded = new LongAdder();
+
+	private final Thread signer;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param authnRequestUtils builds and signs the requests, must have a signing key
+	 * @param capacity how many signed requests to keep ready
+	 * @param maxAgeMillis the oldest request that may be sent
+	 */
+	public PreSignedRequestPool(final AuthnRequestUtils authnRequestUtils, final int capacity, final long maxAgeMillis) {
+		if (authnRequestUtils.getServiceProviderCredential() == null) {
+			throw new IllegalArgumentException("Pre-signing requests needs the service provider private key!");
+		}
+		if (capacity <= 0 || maxAgeMillis <= 0) {
+			throw new IllegalArgumentException("capacity and maxAgeMillis must be positive!");
+		}
+		this.authnRequestUtils = authnRequestUtils;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+
+		signer = new Thread(this::fillLoop, "tiny-saml-client-request-signer");
+		signer.setDaemon(true);
+		signer.start();
+	}
+
+	/**
+	 * @return a fresh signed request, base64 encoded for the POST binding, or null if none is ready
+	 */
+	public String take() {
+		final long now = System.nanoTime();
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			if (now - entry.builtNanos <= maxAgeNanos) {
+				hits.increment();
+				authnRequestUtils.trackRequest(entry.id);
+				LockSupport.unpark(signer);
+				return entry.encoded;
+			}
+			discarded.increment();
+		}
+		misses.increment();
+		LockSupport.unpark(signer);
+		return null;
+	}
+
+	/**
+	 * @return how many times {@link #take()} returned a request
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return how many times {@link #take()} found nothing fresh, so the caller signed inline
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return how many signed requests expired before they were taken
+	 */
+	public long getDiscardedCount() {
+		return discarded.sum();
+	}
+
+	/**
+	 * Stops the background thread. Requests still queued can be taken until they expire.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(signer);
+	}
+
+	private void fillLoop() {
+		while (!closed) {
+			final long now = System.nanoTime();
+			// expired requests only leave from the head, the queue is in build order
+			Entry head = queue.peek();
+			while (head != null && now - head.builtNanos > maxAgeNanos) {
+				if (queue.remove(head)) {
+					discarded.increment();
+				}
+				head = queue.peek();
+			}
+			if (queue.remainingCapacity() > 0) {
+				try {
+					queue.offer(build());
+				} catch (final RuntimeException e) {
+					LOGGER.error("Unable to pre-sign an AuthnRequest", e);
+					LockSupport.parkNanos(this, FAILURE_BACKOFF_NANOS);
+				}
+			} else {
+				// full: wake up when the oldest expires, or earlier when a request is taken
+				LockSupport.parkNanos(this, Math.max(head.builtNanos + maxAgeNanos - now, MIN_PARK_NANOS));
+			}
+		}
+	}
+
+	private Entry build() {
+		final String id = AuthnRequestTemplate.newId();
+		final long builtNanos = System.nanoTime();
+		final AuthnRequest request = authnRequestUtils.buildAuthnRequest(true, id, new DateTime());
+		return new Entry(id, authnRequestUtils.wireEncodePostRequest(request), builtNanos);
+	}
+}
@@ -0,0 +1,192 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+
+/**
+ * Encodes a SAML message for the HTTP-Redirect binding.
+ *
+ * The marshalled DOM is serialized straight into a DEFLATE stream feeding a base64 stream, with no intermediate
+ * String. Deflaters hold native memory until ended, so they are pooled and reset rather than created per
+ * message. Signed redirects carry SigAlg and Signature query parameters (SAML bindings 3.4.4.1) rather than
+ * an embedded XML signature, computed with a per thread {@link Signature} initialized once with the key.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class RedirectBindingEncoder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RedirectBindingEncoder.class);
+
+	private static final int MAX_POOLED_DEFLATERS = Runtime.getRuntime().availableProcessors() * 2;
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger pooledDeflaters = new AtomicInteger();
+
+	private final String sigAlg;
+
+	private final ThreadLocal<Signature> signatures;
+
+	/**
+	 * @param signingKey key for signed redirects, or null if redirects are never signed
+	 */
+	public RedirectBindingEncoder(final PrivateKey signingKey) {
+		if (signingKey == null) {
+			sigAlg = null;
+			signatures = null;
+		} else {
+			sigAlg = SigningKeyUtils.getSignatureAlgorithmUri(signingKey);
+			final String algorithm = SigningKeyUtils.getJcaSignatureAlgorithm(signingKey);
+			signatures = ThreadLocal.withInitial(() -> {
+				try {
+					final Signature signature = Signature.getInstance(algorithm);
+					signature.initSign(signingKey);
+					return signature;
+				} catch (final GeneralSecurityException e) {
+					throw new IllegalStateException("Unable to initialize redirect signing", e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Builds the redirect URL for a message
+	 *
+	 * @param message the message, without an embedded signature
+	 * @param endpointUrl the IDP endpoint
+	 * @param sign whether to add SigAlg and Signature parameters; ignored when there is no signing key
+	 * @return the full redirect URL
+	 * @throws IOException if the message can't be marshalled, encoded or signed
+	 */
+	public String encode(final SAMLObject message, final String endpointUrl, final boolean sign) throws IOException {
+		final Element element;
+		try {
+			element = XMLObjectProviderRegistrySupport.getMarshallerFactory().getMarshaller(message).marshall(message);
+		} catch (final MarshallingException e) {
+			throw new IOException("Unable to marshall SAML message", e);
+		}
+
+		final QueryBuffer query = new QueryBuffer(1024);
+		query.append("SAMLRequest=");
+		query.appendUrlEncoded(deflateAndBase64Encode(element));
+
+		if (sign && signatures != null) {
+			query.append("&SigAlg=");
+			query.appendUrlEncoded(sigAlg.getBytes(StandardCharsets.US_ASCII));
+			final byte[] signatureValue;
+			try {
+				// the signature covers the query string exactly as sent
+				final Signature signature = signatures.get();
+				signature.update(query.buffer(), 0, query.size());
+				signatureValue = signature.sign();
+			} catch (final GeneralSecurityException e) {
+				throw new IOException("Unable to sign redirect", e);
+			}
+			query.append("&Signature=");
+			query.appendUrlEncoded(Base64.getEncoder().encode(signatureValue));
+		}
+
+		final StringBuilder url = new StringBuilder(endpointUrl.length() + 1 + query.size());
+		url.append(endpointUrl).append(endpointUrl.indexOf('?') < 0 ? '?' : '&');
+		for (int i = 0; i < query.size(); i++) {
+			url.append((char) query.buffer()[i]);
+		}
+		final String redirectUrl = url.toString();
+		LOGGER.debug("Returning redirect URL {}", redirectUrl);
+		return redirectUrl;
+	}
+
+	private byte[] deflateAndBase64Encode(final Element element) throws IOException {
+		final Deflater deflater = borrowDeflater();
+		try {
+			final ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(1024);
+			final OutputStream base64Out = Base64.getEncoder().wrap(bytesOut);
+			final DeflaterOutputStream deflaterOut = new DeflaterOutputStream(base64Out, deflater, 512);
+			SerializeSupport.writeNode(element, deflaterOut);
+			deflaterOut.finish();
+			// writes the final base64 quantum; closing a ByteArrayOutputStream is a no-op
+			base64Out.close();
+			return bytesOut.toByteArray();
+		} finally {
+			returnDeflater(deflater);
+		}
+	}
+
+	private Deflater borrowDeflater() {
+		final Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			// raw DEFLATE, no zlib header, per the redirect binding
+			return new Deflater(Deflater.DEFLATED, true);
+		}
+		pooledDeflaters.decrementAndGet();
+		return deflater;
+	}
+
+	private void returnDeflater(final Deflater deflater) {
+		deflater.reset();
+		if (pooledDeflaters.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+			deflaters.offer(deflater);
+		} else {
+			pooledDeflaters.decrementAndGet();
+			// release the native memory now rather than at finalization
+			deflater.end();
+		}
+	}
+
+	/**
+	 * ASCII query string under construction, readable in place for signing
+	 */
+	private static final class QueryBuffer extends ByteArrayOutputStream {
+
+		private QueryBuffer(final int size) {
+			super(size);
+		}
+
+		private byte[] buffer() {
+			return buf;
+		}
+
+		private void append(final String ascii) {
+			for (int i = 0; i < ascii.length(); i++) {
+				write(ascii.charAt(i));
+			}
+		}
+
+		// percent encodes everything but unreserved characters, which covers base64 and URIs
+		private void appendUrlEncoded(final byte[] ascii) {
+			for (final byte b : ascii) {
+				if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9')
+						|| b == '-' || b == '_' || b == '.' || b == '~') {
+					write(b);
+				} else {
+					write('%');
+					write(HEX[(b >> 4) & 0xf]);
+					write(HEX[b & 0xf]);
+				}
+			}
+		}
+	}
+}
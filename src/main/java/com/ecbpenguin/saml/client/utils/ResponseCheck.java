@@ -0,0 +1,32 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.IOException;
+
+import com.ecbpenguin.saml.client.utils.SamlMetricsListener.Stage;
+
+/**
+ * One stage of SAML response validation, see {@link SAMLResponseUtils}.
+ *
+ * Checks are built once per client and shared by every request thread, so they must be thread safe; anything
+ * about the response being validated comes from the {@link ResponseContext}. Custom checks run after the
+ * signature is verified and before InResponseTo and replay detection consume any IDs.
+ *
+ * @author ecb_penguin
+ *
+ */
+public interface ResponseCheck {
+
+	/**
+	 * @param context the response being validated
+	 * @throws SamlValidationException if the response must be rejected
+	 * @throws IOException if the check itself failed
+	 */
+	void check(ResponseContext context) throws IOException;
+
+	/**
+	 * @return the stage timings and failures of this check are reported under
+	 */
+	default Stage getStage() {
+		return Stage.CUSTOM_CHECK;
+	}
+}
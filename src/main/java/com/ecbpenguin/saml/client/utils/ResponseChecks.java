@@ -0,0 +1,438 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Audience;
+import org.opensaml.saml.saml2.core.AudienceRestriction;
+import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.Subject;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml.saml2.core.SubjectConfirmationData;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+
+import com.ecbpenguin.saml.client.utils.ResponseValidationPolicy.RequiredSignatures;
+import com.ecbpenguin.saml.client.utils.SamlMetricsListener.Stage;
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+/**
+ * The built in {@link ResponseCheck}s and the order they run in, cheapest first. Checks that don't apply to a
+ * client, such as replay detection without a replay cache, are left out of its pipeline altogether.
+ *
+ * @author ecb_penguin
+ *
+ */
+final class ResponseChecks {
+
+	/** run on the response, before the assertion is decrypted */
+	final ResponseCheck[] responseChecks;
+
+	/** run once the assertion is available */
+	final ResponseCheck[] assertionChecks;
+
+	ResponseChecks(final ResponseValidationPolicy policy, final ServiceProviderMetadataUtils serviceProviderMetadataUtils,
+			final IdpMetadataUtils idpMetadataUtils, final OutstandingRequestTracker requestTracker,
+			final AssertionReplayCache replayCache, final List<ResponseCheck> customChecks) {
+		final String acsUrl = serviceProviderMetadataUtils.getAssertionConsumerServiceUrl();
+		final long skewMs = policy.getClockSkewMs();
+
+		responseChecks = new ResponseCheck[] { new StatusCheck(), new AssertionCountCheck(), new DestinationCheck(acsUrl),
+				new IssuerCheck(idpMetadataUtils) };
+
+		final List<ResponseCheck> checks = new ArrayList<>();
+		checks.add(new ConditionsCheck(serviceProviderMetadataUtils.getSpEntityId(), policy, skewMs));
+		checks.add(new SubjectConfirmationCheck(acsUrl, skewMs));
+		checks.add(new SignatureCheck(idpMetadataUtils, policy.getRequiredSignatures()));
+		if (customChecks != null) {
+			checks.addAll(customChecks);
+		}
+		// these consume IDs, so they only see responses that passed everything else
+		if (requestTracker != null) {
+			checks.add(new InResponseToCheck(requestTracker));
+		}
+		if (replayCache != null) {
+			checks.add(new ReplayCheck(replayCache, skewMs));
+		}
+		assertionChecks = checks.toArray(new ResponseCheck[checks.size()]);
+	}
+
+	private static final class StatusCheck implements ResponseCheck {
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			final Status status = context.getResponse().getStatus();
+			if (status == null) {
+				throw new SamlValidationException(Reason.STATUS, "Response does not contain a status");
+			}
+			final StatusCode statusCode = status.getStatusCode();
+			if (statusCode == null) {
+				throw new SamlValidationException(Reason.STATUS, "Status must contain a status code");
+			}
+			final String codeValue = statusCode.getValue();
+			if (codeValue == null || !StatusCode.SUCCESS.equalsIgnoreCase(codeValue)) {
+				throw new SamlValidationException(Reason.STATUS, "Status code was not successful");
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_STATUS;
+		}
+	}
+
+	private static final class AssertionCountCheck implements ResponseCheck {
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			// a response can only have one assertion, plain or encrypted
+			final List<Assertion> assertions = context.getResponse().getAssertions();
+			final List<EncryptedAssertion> encryptedAssertions = context.getResponse().getEncryptedAssertions();
+			final int count = (assertions == null ? 0 : assertions.size()) + (encryptedAssertions == null ? 0 : encryptedAssertions.size());
+			if (count != 1) {
+				throw new SamlValidationException(Reason.ASSERTION, "Response must contain at least one assertion!");
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_ASSERTIONS;
+		}
+	}
+
+	private static final class DestinationCheck implements ResponseCheck {
+
+		private final String acsUrl;
+
+		private DestinationCheck(final String acsUrl) {
+			this.acsUrl = acsUrl;
+		}
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			final String destination = context.getResponse().getDestination();
+			if (destination == null || !destination.equalsIgnoreCase(acsUrl)) {
+				throw new SamlValidationException(Reason.DESTINATION, "Response did not have the appropriate destionation = " + acsUrl);
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_DESTINATION;
+		}
+	}
+
+	// the same rule as the streaming pre-pass, so turning pre-validation on or off never changes what is accepted
+	private static final class IssuerCheck implements ResponseCheck {
+
+		private final IdpMetadataUtils idpMetadataUtils;
+
+		private IssuerCheck(final IdpMetadataUtils idpMetadataUtils) {
+			this.idpMetadataUtils = idpMetadataUtils;
+		}
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			// Issuer is optional on the Response itself, it is only checked when present
+			final Issuer issuer = context.getResponse().getIssuer();
+			if (issuer == null) {
+				return;
+			}
+			final IdpMetadataSnapshot snapshot = idpMetadataUtils.getSnapshot();
+			final String idpEntityId = snapshot == null ? null : snapshot.getEntityId();
+			final String value = issuer.getValue() == null ? "" : issuer.getValue().trim();
+			if (idpEntityId != null && !idpEntityId.equals(value)) {
+				throw new SamlValidationException(Reason.ISSUER, "Response issuer " + value + " is not the IDP " + idpEntityId);
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_ISSUER;
+		}
+	}
+
+	private static final class ConditionsCheck implements ResponseCheck {
+
+		private final String spEntityId;
+
+		private final Set<String> additionalAudiences;
+
+		private final boolean requireAudienceRestriction;
+
+		private final long skewMs;
+
+		private ConditionsCheck(final String spEntityId, final ResponseValidationPolicy policy, final long skewMs) {
+			this.spEntityId = spEntityId;
+			this.additionalAudiences = policy.getAdditionalAudiences();
+			this.requireAudienceRestriction = policy.isRequireAudienceRestriction();
+			this.skewMs = skewMs;
+		}
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			final Conditions conditions = context.getAssertion().getConditions();
+			if (conditions == null) {
+				if (requireAudienceRestriction) {
+					throw new SamlValidationException(Reason.AUDIENCE, "Assertion has no audience restriction");
+				}
+				//optional element
+				return;
+			}
+
+			final List<AudienceRestriction> audienceRestrictions = conditions.getAudienceRestrictions();
+			if (audienceRestrictions != null && audienceRestrictions.size() > 0) {
+				if (!hasAcceptedAudience(audienceRestrictions)) {
+					throw new SamlValidationException(Reason.AUDIENCE, "Audience not found in restrictions");
+				}
+			} else if (requireAudienceRestriction) {
+				throw new SamlValidationException(Reason.AUDIENCE, "Assertion has no audience restriction");
+			}
+			checkValidity(conditions.getNotBefore(), conditions.getNotOnOrAfter(), context.getNowMs(), skewMs);
+		}
+
+		private boolean hasAcceptedAudience(final List<AudienceRestriction> audienceRestrictions) {
+			for (final AudienceRestriction audienceRestriction : audienceRestrictions) {
+				final List<Audience> audiences = audienceRestriction.getAudiences();
+				if (audiences == null) {
+					continue;
+				}
+				for (final Audience audience : audiences) {
+					final String audienceUri = audience.getAudienceURI();
+					if (audienceUri != null && (spEntityId.equalsIgnoreCase(audienceUri)
+							|| (!additionalAudiences.isEmpty() && additionalAudiences.contains(audienceUri.toLowerCase(Locale.ROOT))))) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_CONDITIONS;
+		}
+	}
+
+	private static final class SubjectConfirmationCheck implements ResponseCheck {
+
+		private final String acsUrl;
+
+		private final long skewMs;
+
+		private SubjectConfirmationCheck(final String acsUrl, final long skewMs) {
+			this.acsUrl = acsUrl;
+			this.skewMs = skewMs;
+		}
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			final Subject subject = context.getSubject();
+			if (subject == null) {
+				throw new SamlValidationException(Reason.SUBJECT, "Assertion did not contain a subject");
+			}
+			boolean hasScd = false;
+			final List<SubjectConfirmation> subjectConfirmations = subject.getSubjectConfirmations();
+			if (subjectConfirmations != null) {
+				for (final SubjectConfirmation subjectConfirmation : subjectConfirmations) {
+					final SubjectConfirmationData scd = subjectConfirmation.getSubjectConfirmationData();
+					if (scd == null) {
+						continue;
+					}
+					hasScd = true;
+					// InResponseTo is checked against the request tracker by InResponseToCheck, once the signature is verified
+					checkValidity(scd.getNotBefore(), scd.getNotOnOrAfter(), context.getNowMs(), skewMs);
+					final String recipient = scd.getRecipient();
+					if (recipient != null && !acsUrl.equalsIgnoreCase(recipient)) {
+						throw new SamlValidationException(Reason.SUBJECT, "Recipient did not match assertion consumer service URL!");
+					}
+				}
+			}
+			if (!hasScd) {
+				throw new SamlValidationException(Reason.SUBJECT, "Subject MUST contain a subject confirmation data element!");
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_SUBJECT_CONFIRMATION;
+		}
+	}
+
+	private static final class SignatureCheck implements ResponseCheck {
+
+		private final IdpMetadataUtils idpMetadataUtils;
+
+		private final RequiredSignatures requiredSignatures;
+
+		private SignatureCheck(final IdpMetadataUtils idpMetadataUtils, final RequiredSignatures requiredSignatures) {
+			this.idpMetadataUtils = idpMetadataUtils;
+			this.requiredSignatures = requiredSignatures;
+		}
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			if (!context.isCheckSignature()) {
+				return;
+			}
+			final Signature responseSignature = context.getResponse().getSignature();
+			final Signature assertionSignature = context.getAssertion().getSignature();
+			checkRequired(responseSignature != null, assertionSignature != null);
+			if (responseSignature != null) {
+				checkSignature(responseSignature, context.isAllowMetadataRefresh());
+			}
+			if (assertionSignature != null) {
+				checkSignature(assertionSignature, context.isAllowMetadataRefresh());
+			}
+		}
+
+		private void checkRequired(final boolean responseSigned, final boolean assertionSigned) throws IOException {
+			final boolean missing;
+			switch (requiredSignatures) {
+			case EITHER:
+				missing = !responseSigned && !assertionSigned;
+				break;
+			case RESPONSE:
+				missing = !responseSigned;
+				break;
+			case ASSERTION:
+				missing = !assertionSigned;
+				break;
+			case BOTH:
+				missing = !responseSigned || !assertionSigned;
+				break;
+			default:
+				missing = false;
+			}
+			if (missing) {
+				throw new SamlValidationException(Reason.SIGNATURE, "Response is missing a required signature, policy is " + requiredSignatures);
+			}
+		}
+
+		private void checkSignature(final Signature signature, final boolean allowMetadataRefresh) throws IOException {
+			boolean valid = false;
+			try {
+				valid = idpMetadataUtils.validateIdpSignature(signature, allowMetadataRefresh);
+			} catch (final SignatureException e) {
+				throw new IdpSignatureException(e.getMessage(), e, !allowMetadataRefresh && idpMetadataUtils.isForcedRefreshAllowed());
+			}
+			if (!valid) {
+				throw new IdpSignatureException("SAML Signature not valid!", null, false);
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_SIGNATURE;
+		}
+	}
+
+	private static final class InResponseToCheck implements ResponseCheck {
+
+		private final OutstandingRequestTracker requestTracker;
+
+		private InResponseToCheck(final OutstandingRequestTracker requestTracker) {
+			this.requestTracker = requestTracker;
+		}
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			final Response response = context.getResponse();
+			String inResponseTo = null;
+			for (final SubjectConfirmation subjectConfirmation : context.getSubject().getSubjectConfirmations()) {
+				final SubjectConfirmationData scd = subjectConfirmation.getSubjectConfirmationData();
+				if (scd != null && scd.getInResponseTo() != null) {
+					inResponseTo = scd.getInResponseTo();
+				}
+			}
+			if (inResponseTo == null) {
+				inResponseTo = response.getInResponseTo();
+			}
+			if (inResponseTo == null) {
+				throw new SamlValidationException(Reason.IN_RESPONSE_TO, "Unsolicited responses are not accepted, InResponseTo is missing");
+			}
+			if (response.getInResponseTo() != null && !inResponseTo.equals(response.getInResponseTo())) {
+				throw new SamlValidationException(Reason.IN_RESPONSE_TO, "Response and subject confirmation InResponseTo do not match");
+			}
+			if (!requestTracker.consume(inResponseTo)) {
+				throw new SamlValidationException(Reason.IN_RESPONSE_TO, "InResponseTo does not match an outstanding request, id = " + inResponseTo);
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_IN_RESPONSE_TO;
+		}
+	}
+
+	private static final class ReplayCheck implements ResponseCheck {
+
+		private final AssertionReplayCache replayCache;
+
+		private final long skewMs;
+
+		private ReplayCheck(final AssertionReplayCache replayCache, final long skewMs) {
+			this.replayCache = replayCache;
+			this.skewMs = skewMs;
+		}
+
+		@Override
+		public void check(final ResponseContext context) throws IOException {
+			final Assertion assertion = context.getAssertion();
+			// hold the IDs until the earliest point the assertion stops being valid
+			long expiresAtMs = Long.MAX_VALUE;
+			final Conditions conditions = assertion.getConditions();
+			if (conditions != null && conditions.getNotOnOrAfter() != null) {
+				expiresAtMs = conditions.getNotOnOrAfter().getMillis();
+			}
+			for (final SubjectConfirmation subjectConfirmation : context.getSubject().getSubjectConfirmations()) {
+				final SubjectConfirmationData scd = subjectConfirmation.getSubjectConfirmationData();
+				if (scd != null && scd.getNotOnOrAfter() != null) {
+					expiresAtMs = Math.min(expiresAtMs, scd.getNotOnOrAfter().getMillis());
+				}
+			}
+			if (expiresAtMs != Long.MAX_VALUE) {
+				expiresAtMs += skewMs;
+			}
+
+			final String assertionId = assertion.getID();
+			if (assertionId == null) {
+				throw new SamlValidationException(Reason.REPLAY, "Assertion has no ID to check for replay");
+			}
+			// the response ID goes first: an IDP never reuses one, so consuming it for a rejected message costs
+			// nothing, whereas a consumed assertion ID would fail a correct retry of that assertion
+			final String responseId = context.getResponse().getID();
+			if (responseId != null && !responseId.equals(assertionId) && !replayCache.markSeen(responseId, expiresAtMs)) {
+				throw new SamlValidationException(Reason.REPLAY, "Response has already been used, id = " + responseId);
+			}
+			if (!replayCache.markSeen(assertionId, expiresAtMs)) {
+				throw new SamlValidationException(Reason.REPLAY, "Assertion has already been used, id = " + assertionId);
+			}
+		}
+
+		@Override
+		public Stage getStage() {
+			return Stage.CHECK_REPLAY;
+		}
+	}
+
+	// the skew allowance widens the window both ways
+	private static void checkValidity(final DateTime notBefore, final DateTime notOnOrAfter, final long nowMs, final long skewMs) throws IOException {
+		if (notBefore != null && nowMs + skewMs < notBefore.getMillis()) {
+			throw new SamlValidationException(Reason.NOT_YET_VALID, "Not before condition violated for time = " + notBefore);
+		}
+		if (notOnOrAfter != null && nowMs - skewMs >= notOnOrAfter.getMillis()) {
+			throw new SamlValidationException(Reason.EXPIRED, "Not on or after condition violated for time = " + notOnOrAfter);
+		}
+	}
+}
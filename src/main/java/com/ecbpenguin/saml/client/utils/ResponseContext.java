@@ -0,0 +1,78 @@
+package com.ecbpenguin.saml.client.utils;
+
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Subject;
+
+/**
+ * What every {@link ResponseCheck} of one response validation sees: the response, its assertion and the one
+ * time all the time based checks compare against.
+ *
+ * The assertion is only set once the pipeline has decrypted it, so checks that run on the response alone
+ * (status, assertion count, destination) see null.
+ *
+ * @author ecb_penguin
+ *
+ */
+public final class ResponseContext {
+
+	private final Response response;
+
+	private final long nowMs;
+
+	private final boolean checkSignature;
+
+	private final boolean allowMetadataRefresh;
+
+	private Assertion assertion;
+
+	ResponseContext(final Response response, final long nowMs, final boolean checkSignature, final boolean allowMetadataRefresh) {
+		this.response = response;
+		this.nowMs = nowMs;
+		this.checkSignature = checkSignature;
+		this.allowMetadataRefresh = allowMetadataRefresh;
+	}
+
+	void setAssertion(final Assertion assertion) {
+		this.assertion = assertion;
+	}
+
+	public Response getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return the assertion, decrypted if it was encrypted, or null before decryption
+	 */
+	public Assertion getAssertion() {
+		return assertion;
+	}
+
+	/**
+	 * @return the subject of the assertion, or null
+	 */
+	public Subject getSubject() {
+		return assertion == null ? null : assertion.getSubject();
+	}
+
+	/**
+	 * @return the time, in epoch milliseconds, captured once when validation of this response started
+	 */
+	public long getNowMs() {
+		return nowMs;
+	}
+
+	/**
+	 * @return false only when the caller asked for IDP signatures not to be verified
+	 */
+	public boolean isCheckSignature() {
+		return checkSignature;
+	}
+
+	/**
+	 * @return whether a failing signature may force an IDP metadata download on this thread
+	 */
+	public boolean isAllowMetadataRefresh() {
+		return allowMetadataRefresh;
+	}
+}
@@ -0,0 +1,216 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.StatusCode;
+
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+/**
+ * Streaming checks run over a decoded SAML response before any DOM is built.
+ *
+ * Rejects responses that are too large, nest too deeply, carry too many attributes on one element, declare a
+ * DTD, or are not a successful {@code samlp:Response} addressed to this SP from the current IDP. The status,
+ * Destination and Issuer are checked again, by the same rules, on the full object tree; the point is that junk
+ * costs one StAX pass over bounded input instead of a DOM, an OpenSAML object tree and a signature verification.
+ * Only the size, depth and attribute limits are enforced here alone.
+ *
+ * Instances are thread safe.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class ResponsePreValidator {
+
+	private static final String RESPONSE = "Response";
+
+	private static final String STATUS = "Status";
+
+	private static final String STATUS_CODE = "StatusCode";
+
+	private static final String ISSUER = "Issuer";
+
+	private final int maxBytes;
+
+	private final int maxElementDepth;
+
+	private final int maxAttributesPerElement;
+
+	private final ServiceProviderMetadataUtils serviceProviderMetadataUtils;
+
+	private final IdpMetadataUtils idpMetadataUtils;
+
+	private final XMLInputFactory inputFactory;
+
+	/**
+	 * @param maxBytes the largest decoded response accepted
+	 * @param maxElementDepth the deepest element nesting accepted, the root element is depth 1
+	 * @param maxAttributesPerElement the most attributes, namespace declarations included, on any one element
+	 * @param serviceProviderMetadataUtils source of the expected Destination
+	 * @param idpMetadataUtils source of the expected Issuer, or null to skip the Issuer check
+	 */
+	public ResponsePreValidator(final int maxBytes, final int maxElementDepth, final int maxAttributesPerElement,
+			final ServiceProviderMetadataUtils serviceProviderMetadataUtils, final IdpMetadataUtils idpMetadataUtils) {
+		if (maxBytes <= 0 || maxElementDepth <= 0 || maxAttributesPerElement <= 0) {
+			throw new IllegalArgumentException("Response limits must be positive!");
+		}
+		if (serviceProviderMetadataUtils == null) {
+			throw new IllegalArgumentException("serviceProviderMetadataUtils must not be null!");
+		}
+		this.maxBytes = maxBytes;
+		this.maxElementDepth = maxElementDepth;
+		this.maxAttributesPerElement = maxAttributesPerElement;
+		this.serviceProviderMetadataUtils = serviceProviderMetadataUtils;
+		this.idpMetadataUtils = idpMetadataUtils;
+
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	}
+
+	/**
+	 * @return the largest decoded response accepted
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the longest base64 encoded response that can decode to at most the maximum size
+	 */
+	public int getMaxEncodedLength() {
+		return (int) Math.min(Integer.MAX_VALUE, ((long) maxBytes + 2) / 3 * 4 + 4);
+	}
+
+	/**
+	 * Streams over a decoded response
+	 *
+	 * @param decodedResponse the response XML
+	 * @param length the number of bytes of the response in the array
+	 * @throws IOException if the response fails any check
+	 */
+	public void validate(final byte[] decodedResponse, final int length) throws IOException {
+		if (length > maxBytes) {
+			throw new SamlValidationException(Reason.TOO_LARGE, "Response is " + length + " bytes, the limit is " + maxBytes);
+		}
+
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(decodedResponse, 0, length));
+			validate(reader);
+		} catch (final XMLStreamException e) {
+			throw new SamlValidationException(Reason.MALFORMED, "Response is not well formed XML", e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (final XMLStreamException e) {
+					// nothing was opened that needs releasing
+				}
+			}
+		}
+	}
+
+	private void validate(final XMLStreamReader reader) throws XMLStreamException, IOException {
+		int depth = 0;
+		boolean statusChecked = false;
+		// depth of the Status element, 0 when outside it
+		int statusDepth = 0;
+		boolean topStatusCodeSeen = false;
+		boolean readingIssuer = false;
+		// Issuer is optional on the Response itself, it is only checked when present
+		final StringBuilder issuer = new StringBuilder();
+
+		while (reader.hasNext()) {
+			final int event = reader.next();
+			switch (event) {
+			case XMLStreamConstants.DTD:
+				throw new SamlValidationException(Reason.MALFORMED, "Response must not contain a DTD");
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				if (depth > maxElementDepth) {
+					throw new SamlValidationException(Reason.MALFORMED, "Response nests deeper than " + maxElementDepth + " elements");
+				}
+				if (reader.getAttributeCount() + reader.getNamespaceCount() > maxAttributesPerElement) {
+					throw new SamlValidationException(Reason.MALFORMED, "Response element " + reader.getLocalName() + " has more than " + maxAttributesPerElement + " attributes");
+				}
+				final String namespace = reader.getNamespaceURI();
+				final String name = reader.getLocalName();
+				if (depth == 1) {
+					if (!RESPONSE.equals(name) || !SAMLConstants.SAML20P_NS.equals(namespace)) {
+						throw new SamlValidationException(Reason.MALFORMED, "Root element is not a SAML 2.0 protocol Response");
+					}
+					checkDestination(reader.getAttributeValue(XMLConstants.NULL_NS_URI, "Destination"));
+				} else if (depth == 2) {
+					if (STATUS.equals(name) && SAMLConstants.SAML20P_NS.equals(namespace)) {
+						statusDepth = depth;
+					} else if (ISSUER.equals(name) && SAMLConstants.SAML20_NS.equals(namespace)) {
+						readingIssuer = true;
+					}
+				} else if (depth == statusDepth + 1 && statusDepth > 0 && !topStatusCodeSeen
+						&& STATUS_CODE.equals(name) && SAMLConstants.SAML20P_NS.equals(namespace)) {
+					// only the top level code says whether the request succeeded, nested ones are detail
+					topStatusCodeSeen = true;
+					final String codeValue = reader.getAttributeValue(XMLConstants.NULL_NS_URI, "Value");
+					if (codeValue == null || !StatusCode.SUCCESS.equalsIgnoreCase(codeValue)) {
+						throw new SamlValidationException(Reason.STATUS, "Status code was not successful");
+					}
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+				if (readingIssuer) {
+					issuer.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (readingIssuer && depth == 2) {
+					readingIssuer = false;
+					checkIssuer(issuer.toString().trim());
+				}
+				if (depth == statusDepth) {
+					if (!topStatusCodeSeen) {
+						throw new SamlValidationException(Reason.STATUS, "Status must contain a status code");
+					}
+					statusDepth = 0;
+					statusChecked = true;
+				}
+				depth--;
+				break;
+			default:
+				break;
+			}
+		}
+
+		if (!statusChecked) {
+			throw new SamlValidationException(Reason.STATUS, "Response does not contain a status");
+		}
+	}
+
+	private void checkDestination(final String destination) throws IOException {
+		if (destination == null || !destination.equalsIgnoreCase(serviceProviderMetadataUtils.getAssertionConsumerServiceUrl())) {
+			throw new SamlValidationException(Reason.DESTINATION, "Response did not have the appropriate destionation = " + serviceProviderMetadataUtils.getAssertionConsumerServiceUrl());
+		}
+	}
+
+	private void checkIssuer(final String issuer) throws IOException {
+		if (idpMetadataUtils == null) {
+			return;
+		}
+		final IdpMetadataSnapshot snapshot = idpMetadataUtils.getSnapshot();
+		final String idpEntityId = snapshot == null ? null : snapshot.getEntityId();
+		if (idpEntityId != null && !idpEntityId.equals(issuer)) {
+			throw new SamlValidationException(Reason.ISSUER, "Response issuer " + issuer + " is not the IDP " + idpEntityId);
+		}
+	}
+}
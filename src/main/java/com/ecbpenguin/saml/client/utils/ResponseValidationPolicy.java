@@ -0,0 +1,101 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import com.ecbpenguin.saml.config.TinySamlClientConfig;
+
+/**
+ * Per deployment rules for SAML response validation: the allowed clock skew, which signatures must be present
+ * and which audiences are accepted. Immutable; {@link SAMLResponseUtils} builds its checks from it once.
+ *
+ * @author ecb_penguin
+ *
+ */
+public final class ResponseValidationPolicy {
+
+	public enum RequiredSignatures {
+		/** signatures that are present are verified, an unsigned response is accepted */
+		NONE,
+		/** the response, the assertion or both are signed */
+		EITHER,
+		RESPONSE,
+		ASSERTION,
+		BOTH
+	}
+
+	/** 30 seconds of skew, signatures verified where present, SP entity ID audience */
+	public static final ResponseValidationPolicy DEFAULT = new ResponseValidationPolicy(30, RequiredSignatures.NONE, false, null);
+
+	private final long clockSkewMs;
+
+	private final RequiredSignatures requiredSignatures;
+
+	private final boolean requireAudienceRestriction;
+
+	// lower case, the SP entity ID is always accepted as well
+	private final Set<String> additionalAudiences;
+
+	/**
+	 * @param clockSkewSeconds how far the IDP clock may be from ours, both ways
+	 * @param requiredSignatures which signatures a response must carry
+	 * @param requireAudienceRestriction whether an assertion without an AudienceRestriction is rejected
+	 * @param additionalAudiences audiences accepted besides the SP entity ID, or null
+	 */
+	public ResponseValidationPolicy(final int clockSkewSeconds, final RequiredSignatures requiredSignatures,
+			final boolean requireAudienceRestriction, final Collection<String> additionalAudiences) {
+		if (clockSkewSeconds < 0 || requiredSignatures == null) {
+			throw new IllegalArgumentException("clockSkewSeconds must not be negative and requiredSignatures must not be null!");
+		}
+		this.clockSkewMs = clockSkewSeconds * 1000L;
+		this.requiredSignatures = requiredSignatures;
+		this.requireAudienceRestriction = requireAudienceRestriction;
+		final Set<String> audiences = new HashSet<>();
+		if (additionalAudiences != null) {
+			for (final String audience : additionalAudiences) {
+				audiences.add(audience.toLowerCase(Locale.ROOT));
+			}
+		}
+		this.additionalAudiences = Collections.unmodifiableSet(audiences);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if tinySamlClient.requiredSignatures isn't one of {@link RequiredSignatures}
+	 */
+	public static ResponseValidationPolicy from(final TinySamlClientConfig config) {
+		final RequiredSignatures requiredSignatures;
+		try {
+			requiredSignatures = config.getRequiredSignatures() == null
+					? RequiredSignatures.NONE
+					: RequiredSignatures.valueOf(config.getRequiredSignatures().trim().toUpperCase(Locale.ROOT));
+		} catch (final IllegalArgumentException e) {
+			throw new IllegalArgumentException("tinySamlClient.requiredSignatures must be one of " + Arrays.toString(RequiredSignatures.values()), e);
+		}
+		final String audiences = config.getAdditionalAudiences();
+		return new ResponseValidationPolicy(config.getClockSkewSeconds(), requiredSignatures,
+				config.isRequireAudienceRestriction(), audiences == null ? null : Arrays.asList(audiences.trim().split("\\s*,\\s*")));
+	}
+
+	public long getClockSkewMs() {
+		return clockSkewMs;
+	}
+
+	public RequiredSignatures getRequiredSignatures() {
+		return requiredSignatures;
+	}
+
+	public boolean isRequireAudienceRestriction() {
+		return requireAudienceRestriction;
+	}
+
+	/**
+	 * @return lower case audiences accepted besides the SP entity ID
+	 */
+	public Set<String> getAdditionalAudiences() {
+		return additionalAudiences;
+	}
+}
@@ -1,44 +1,61 @@
 package com.ecbpenguin.saml.client.utils;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.joda.time.DateTime;
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.opensaml.core.xml.io.Unmarshaller;
 import org.opensaml.core.xml.io.UnmarshallerFactory;
 import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.schema.XSAny;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.schema.XSURI;
+import org.opensaml.saml.common.SAMLObject;
 import org.opensaml.saml.saml2.core.Assertion;
-import org.opensaml.saml.saml2.core.Audience;
-import org.opensaml.saml.saml2.core.AudienceRestriction;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AuthnContext;
+import org.opensaml.saml.saml2.core.AuthnStatement;
 import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.EncryptedID;
 import org.opensaml.saml.saml2.core.NameID;
 import org.opensaml.saml.saml2.core.Response;
-import org.opensaml.saml.saml2.core.Status;
-import org.opensaml.saml.saml2.core.StatusCode;
 import org.opensaml.saml.saml2.core.Subject;
-import org.opensaml.saml.saml2.core.SubjectConfirmation;
-import org.opensaml.saml.saml2.core.SubjectConfirmationData;
-import org.opensaml.xmlsec.signature.Signature;
-import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.saml.saml2.encryption.Decrypter;
+import org.opensaml.xmlsec.encryption.support.DecryptionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
+
+import com.ecbpenguin.saml.client.utils.SamlMetricsListener.Stage;
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+import net.shibboleth.utilities.java.support.xml.ParserPool;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
 
 /**
  * This class employs OpenSAML classes to validate a SAML Response. It needs augmentation for
- * 1. In Response To metrics = the caller would need to retain the original SAML request to perform this validation
- * 2. Message replay: in a clustered scenario, there needs to be a shared state mechanism (e.g. a database table) 
- * to store message IDs in a replay cache.
+ * 1. In Response To: an optional {@link OutstandingRequestTracker}, shared with {@link AuthnRequestUtils}, checks and consumes
+ * the ID of the original request. Without one, InResponseTo is not validated.
+ * 2. Message replay: an optional {@link AssertionReplayCache} rejects reuse of Response / Assertion IDs within this JVM.
+ * In a clustered scenario, there needs to be a shared state mechanism (e.g. a database table) to store message IDs.
+ *
+ * Instances are thread safe; XML parsing goes through a bounded {@link ParserPool}. An optional
+ * {@link ResponsePreValidator} streams over the decoded bytes first, so junk is rejected before any DOM is built.
+ * With a {@link Decrypter} (see {@link DecrypterUtils}), EncryptedAssertion and EncryptedID are decrypted with the SP key.
+ *
+ * The checks themselves are {@link ResponseCheck}s, put in order once per instance from a {@link ResponseValidationPolicy}
+ * (clock skew, required signatures, audiences) and any custom checks, cheapest first. Every time based check of one
+ * response compares against the same timestamp, taken once.
  *
  * @author ecbpenguin
  *
@@ -46,266 +63,519 @@ import org.xml.sax.SAXException;
 public class SAMLResponseUtils {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(SAMLResponseUtils.class);
-	
-	private static final int CLOCK_SKEW_SECONDS = 30;
 
-	private final DocumentBuilder documentBuilder; 
+	private final ParserPool parserPool;
 
 	private final UnmarshallerFactory unmarshallerFactory;
 
 	private final IdpMetadataUtils idpMetadataUtils;
 
 	private final ServiceProviderMetadataUtils serviceProviderMetadataUtils;
-	
+
+	private final AssertionReplayCache replayCache;
+
+	private final OutstandingRequestTracker requestTracker;
+
+	private final ResponsePreValidator preValidator;
+
+	private final Decrypter decrypter;
+
+	private final ResponseValidationPolicy policy;
+
+	private volatile ResponseChecks checks;
+
+	private volatile SamlMetricsListener metricsListener = SamlMetricsListener.NOOP;
+
 	public SAMLResponseUtils(final IdpMetadataUtils idpMetadataUtils, final ServiceProviderMetadataUtils serviceProviderMetadataUtils) {
+		this(idpMetadataUtils, serviceProviderMetadataUtils, ParserPoolUtils.createParserPool(Runtime.getRuntime().availableProcessors()));
+	}
+
+	public SAMLResponseUtils(final IdpMetadataUtils idpMetadataUtils, final ServiceProviderMetadataUtils serviceProviderMetadataUtils, final ParserPool parserPool) {
+		this(idpMetadataUtils, serviceProviderMetadataUtils, parserPool, null, null);
+	}
+
+	/**
+	 * @param replayCache cache of consumed message IDs, or null to skip replay detection
+	 * @param requestTracker IDs of issued AuthnRequests, or null to skip InResponseTo validation
+	 */
+	public SAMLResponseUtils(final IdpMetadataUtils idpMetadataUtils, final ServiceProviderMetadataUtils serviceProviderMetadataUtils,
+			final ParserPool parserPool, final AssertionReplayCache replayCache, final OutstandingRequestTracker requestTracker) {
+		this(idpMetadataUtils, serviceProviderMetadataUtils, parserPool, replayCache, requestTracker, null);
+	}
+
+	/**
+	 * @param replayCache cache of consumed message IDs, or null to skip replay detection
+	 * @param requestTracker IDs of issued AuthnRequests, or null to skip InResponseTo validation
+	 * @param preValidator streaming checks run before the DOM is built, or null to parse every response in full
+	 */
+	public SAMLResponseUtils(final IdpMetadataUtils idpMetadataUtils, final ServiceProviderMetadataUtils serviceProviderMetadataUtils,
+			final ParserPool parserPool, final AssertionReplayCache replayCache, final OutstandingRequestTracker requestTracker,
+			final ResponsePreValidator preValidator) {
+		this(idpMetadataUtils, serviceProviderMetadataUtils, parserPool, replayCache, requestTracker, preValidator, null);
+	}
+
+	/**
+	 * @param replayCache cache of consumed message IDs, or null to skip replay detection
+	 * @param requestTracker IDs of issued AuthnRequests, or null to skip InResponseTo validation
+	 * @param preValidator streaming checks run before the DOM is built, or null to parse every response in full
+	 * @param decrypter decrypter holding the SP key, or null to reject encrypted assertions and name IDs
+	 */
+	public SAMLResponseUtils(final IdpMetadataUtils idpMetadataUtils, final ServiceProviderMetadataUtils serviceProviderMetadataUtils,
+			final ParserPool parserPool, final AssertionReplayCache replayCache, final OutstandingRequestTracker requestTracker,
+			final ResponsePreValidator preValidator, final Decrypter decrypter) {
+		this(idpMetadataUtils, serviceProviderMetadataUtils, parserPool, replayCache, requestTracker, preValidator, decrypter,
+				ResponseValidationPolicy.DEFAULT);
+	}
+
+	/**
+	 * @param replayCache cache of consumed message IDs, or null to skip replay detection
+	 * @param requestTracker IDs of issued AuthnRequests, or null to skip InResponseTo validation
+	 * @param preValidator streaming checks run before the DOM is built, or null to parse every response in full
+	 * @param decrypter decrypter holding the SP key, or null to reject encrypted assertions and name IDs
+	 * @param policy clock skew, required signatures and accepted audiences
+	 */
+	public SAMLResponseUtils(final IdpMetadataUtils idpMetadataUtils, final ServiceProviderMetadataUtils serviceProviderMetadataUtils,
+			final ParserPool parserPool, final AssertionReplayCache replayCache, final OutstandingRequestTracker requestTracker,
+			final ResponsePreValidator preValidator, final Decrypter decrypter, final ResponseValidationPolicy policy) {
 		if (serviceProviderMetadataUtils == null) {
 			throw new IllegalArgumentException("serviceProviderMetadataUtils must not be null!");
 		}
 		if (idpMetadataUtils == null) {
 			throw new IllegalArgumentException("idpMetadataUtils must not be null!");
 		}
-		final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		documentBuilderFactory.setNamespaceAware(true);
-
-		try {
-			documentBuilder = documentBuilderFactory.newDocumentBuilder();
-		} catch (final ParserConfigurationException e) {
-			LOGGER.error("Count not initialize SAML Response Utils", e);
-			throw new RuntimeException(e);
+		if (parserPool == null) {
+			throw new IllegalArgumentException("parserPool must not be null!");
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null!");
 		}
 
+		this.parserPool = parserPool;
 		this.unmarshallerFactory = XMLObjectProviderRegistrySupport.getUnmarshallerFactory();
 		this.idpMetadataUtils = idpMetadataUtils;
 		this.serviceProviderMetadataUtils = serviceProviderMetadataUtils;
+		this.replayCache = replayCache;
+		this.requestTracker = requestTracker;
+		this.preValidator = preValidator;
+		this.decrypter = decrypter;
+		this.policy = policy;
+		this.checks = new ResponseChecks(policy, serviceProviderMetadataUtils, idpMetadataUtils, requestTracker, replayCache, null);
 	}
 
-	private void checkAssertions(final Response response) throws IOException {
-		// a response can only have one assertion
-		final List<Assertion> assertions = response.getAssertions();
-		if (assertions == null || assertions.size() != 1) {
-			throw new IOException("Response must contain at least one assertion!");
-		}
+	/**
+	 * Adds checks of your own, run in order after the IDP signature is verified and before InResponseTo and replay
+	 * detection. Replaces any custom checks set before.
+	 *
+	 * @param customChecks thread safe checks, or null for none
+	 */
+	public void setCustomChecks(final List<ResponseCheck> customChecks) {
+		checks = new ResponseChecks(policy, serviceProviderMetadataUtils, idpMetadataUtils, requestTracker, replayCache,
+				customChecks == null ? null : new ArrayList<>(customChecks));
 	}
 
-	private void checkConditions(final Assertion assertion) throws IOException {
-		final Conditions conditions = assertion.getConditions();
-		if (conditions == null) {
-			//optional element
-			return;
+	/**
+	 * @param metricsListener receives per stage timings and failures, or null to stop reporting
+	 */
+	public void setMetricsListener(final SamlMetricsListener metricsListener) {
+		this.metricsListener = metricsListener == null ? SamlMetricsListener.NOOP : metricsListener;
+	}
+
+	// HAS to be called after the assertion count check
+	private Assertion getAssertion(final Response response) throws IOException {
+		if (!response.getAssertions().isEmpty()) {
+			return response.getAssertions().get(0);
 		}
-		
-		final List<AudienceRestriction> audienceRestrictions =conditions.getAudienceRestrictions();
-		final String spEntityId =serviceProviderMetadataUtils.getSpEntityId();
-		if (audienceRestrictions != null && audienceRestrictions.size() > 0) {
-			boolean found = false;
-			for (final AudienceRestriction audienceRestriction : audienceRestrictions) {
-				final List<Audience> audiences=  audienceRestriction.getAudiences();
-				if (audiences != null && audiences.size() > 0) {
-					for (final Audience audience : audiences) {
-						final String audienceUri = audience.getAudienceURI();
-						if (audienceUri != null && spEntityId.equalsIgnoreCase(audienceUri)) {
-							found = true;
-						}
-					}
-				}
-			}
-			
-			if (!found ) {
-				throw new IOException("Audience not found in restrictions");
-			}
+		if (decrypter == null) {
+			throw new SamlValidationException(Reason.DECRYPTION, "Response contains an encrypted assertion, but no service provider key is configured to decrypt it");
+		}
+		try {
+			return decrypter.decrypt(response.getEncryptedAssertions().get(0));
+		} catch (final DecryptionException e) {
+			throw new SamlValidationException(Reason.DECRYPTION, "Unable to decrypt assertion", e);
 		}
-		final DateTime notBefore = conditions.getNotBefore();
-		final DateTime notOnOrAfter = conditions.getNotOnOrAfter();
-		
-		checkNotBefore(notBefore);
-		checkNotOnOrAfter(notOnOrAfter);
 	}
 
-	private void checkNotOnOrAfter(final DateTime notOnOrAfter) throws IOException {
-		final DateTime skewedTime = getSkewedTime();
-		if (notOnOrAfter != null && skewedTime.isAfter(notOnOrAfter)) {
-			throw new IOException("Not on or after condition violated for time = " + notOnOrAfter);
+	private final byte[] decodeBase64Response(final String base64EncodedRespnse) throws IOException {
+		if (preValidator != null && base64EncodedRespnse.length() > preValidator.getMaxEncodedLength()) {
+			// too big to pass the size limit, don't spend time decoding it
+			throw new SamlValidationException(Reason.TOO_LARGE, "Encoded response is " + base64EncodedRespnse.length() + " characters, too large to accept");
+		}
+		try {
+			return Base64.getDecoder().decode(base64EncodedRespnse);
+		} catch (final IllegalArgumentException e) {
+			throw new SamlValidationException(Reason.MALFORMED, "Response is not valid base64", e);
 		}
 	}
 
-	private void checkNotBefore(final DateTime notBefore) throws IOException {
-		final DateTime skewedTime = getSkewedTime();
-		if (notBefore != null && skewedTime.isBefore(notBefore)) {
-			throw new IOException("Not before condition violated for time = " + notBefore);
+	/**
+	 * Returns the name ID associated with the response, decrypting an EncryptedID if that is what was sent.
+	 * 
+	 * @param assertion
+	 * @return
+	 * @throws IOException
+	 */
+	private final NameID getNameID(final Subject subject) throws IOException {
+		final NameID nameId =subject.getNameID();
+		if (nameId != null) {
+			return nameId;
+		}
+		final EncryptedID encryptedId = subject.getEncryptedID();
+		if (encryptedId == null) {
+			throw new SamlValidationException(Reason.SUBJECT, "Name ID not included in subject");
+		}
+		if (decrypter == null) {
+			throw new SamlValidationException(Reason.DECRYPTION, "Subject contains an encrypted name ID, but no service provider key is configured to decrypt it");
+		}
+		final SAMLObject decryptedId;
+		try {
+			decryptedId = decrypter.decrypt(encryptedId);
+		} catch (final DecryptionException e) {
+			throw new SamlValidationException(Reason.DECRYPTION, "Unable to decrypt name ID", e);
+		}
+		if (!(decryptedId instanceof NameID)) {
+			throw new SamlValidationException(Reason.SUBJECT, "Encrypted ID in subject is not a name ID");
 		}
+		return (NameID) decryptedId;
 	}
 
-	private void checkSignature(final Response response) throws IOException {
-		final Signature responseSignature = response.getSignature();
-		if (responseSignature != null ) {
-			boolean valid = false;
-			try {
-				valid = idpMetadataUtils.validateIdpSignature(responseSignature);
-			} catch (final SignatureException e) {
-				throw new IOException(e);
-			}
-			if (!valid) {
-				throw new IOException("SAML Signature not valid!");
+	/**
+	 * Method to validate a SAML response and extract the name id for mapping by other entities
+	 * 
+	 * See {@link #authenticateSAMLResponsePostBinding(String)} for attributes and session details.
+	 * 
+	 * @param SAMLResponse
+	 * @return
+	 */
+	public final String validateSAMLResponsePostBinding(final String samlResponse) throws IOException {
+		return validateSAMLResponsePostBinding(samlResponse, true);
+	}
+
+	protected final String validateSAMLResponsePostBinding(final String samlResponse, final boolean checkSignature) throws IOException {
+		return authenticateSAMLResponsePostBinding(samlResponse, checkSignature).getNameId();
+	}
+
+	/**
+	 * Validates a SAML response and extracts everything it says about the user
+	 * 
+	 * @param samlResponse the base64 encoded response
+	 * @return the validated NameID, session details and attributes
+	 * @throws IOException when the response fails validation
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final String samlResponse) throws IOException {
+		return authenticateSAMLResponsePostBinding(samlResponse, true);
+	}
+
+	protected final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final String samlResponse, final boolean checkSignature) throws IOException {
+		return authenticateSAMLResponsePostBinding(samlResponse, checkSignature, true);
+	}
+
+	/**
+	 * Validates a SAML response, optionally without forcing an IDP metadata download on a signature failure.
+	 * 
+	 * Asynchronous callers pass false, so the crypto thread never blocks on the network; if the failure is an
+	 * {@link IdpSignatureException} with a deferred refresh, they refresh on an I/O thread and validate again.
+	 * 
+	 * @param samlResponse the base64 encoded response
+	 * @param checkSignature whether or not to verify the IDP signatures
+	 * @param allowMetadataRefresh whether a signature failure may force a metadata download on this thread
+	 * @return the validated NameID, session details and attributes
+	 * @throws IOException when the response fails validation
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final String samlResponse, final boolean checkSignature,
+			final boolean allowMetadataRefresh) throws IOException {
+		if (samlResponse == null) {
+			throw new SamlValidationException(Reason.MISSING_RESPONSE, "Unable to extract SAML Response!");
+		}
+		final StageTimer timer = StageTimer.start(metricsListener, Stage.BASE64_DECODE, Stage.RESPONSE_TOTAL);
+		try {
+			final byte[] samlResponseBytes = decodeBase64Response(samlResponse);
+			if (preValidator != null) {
+				timer.next(Stage.PRE_VALIDATE);
+				preValidator.validate(samlResponseBytes, samlResponseBytes.length);
 			}
+			timer.next(Stage.DOM_PARSE);
+			final Response response = unmarshallSamlResponse(new ByteArrayInputStream(samlResponseBytes), timer);
+			timer.next(Stage.CHECK_STATUS);
+			final SamlAuthenticationResult result = authenticateSAMLResponse(response, checkSignature, allowMetadataRefresh, timer);
+			timer.done();
+			return result;
+		} catch (final IOException | RuntimeException e) {
+			timer.failed();
+			throw e;
 		}
+	}
 
-		// HAS to be called after you check assertions 
-		final Assertion assertion = response.getAssertions().get(0);
-		final Signature assertionSignature = assertion.getSignature();
-		if (assertionSignature != null ) {
-			boolean valid = false;
-			try {
-				valid = idpMetadataUtils.validateIdpSignature(assertionSignature);
-			} catch (final SignatureException e) {
-				throw new IOException(e);
-			}
-			if (!valid) {
-				throw new IOException("SAML Signature not valid!");
+	/**
+	 * Validates a base64 encoded SAML response read from a stream, e.g. the SAMLResponse value of a form body.
+	 * 
+	 * The base64 is decoded as the XML parser reads it. With pre-validation on, the decoded response is first
+	 * read into one buffer, no larger than the size limit, so it can be streamed twice.
+	 * 
+	 * @param encodedSamlResponse the base64 encoded response, not closed by this method
+	 * @return the name id in the response
+	 * @throws IOException when the response can't be read or fails validation
+	 */
+	public final String validateSAMLResponsePostBinding(final InputStream encodedSamlResponse) throws IOException {
+		return authenticateSAMLResponsePostBinding(encodedSamlResponse).getNameId();
+	}
+
+	/**
+	 * Stream variant of {@link #authenticateSAMLResponsePostBinding(String)}, see {@link #validateSAMLResponsePostBinding(InputStream)}
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final InputStream encodedSamlResponse) throws IOException {
+		if (encodedSamlResponse == null) {
+			throw new SamlValidationException(Reason.MISSING_RESPONSE, "Unable to extract SAML Response!");
+		}
+		final InputStream decoded = Base64.getDecoder().wrap(encodedSamlResponse);
+		final StageTimer timer = StageTimer.start(metricsListener, preValidator == null ? Stage.DOM_PARSE : Stage.BASE64_DECODE,
+				Stage.RESPONSE_TOTAL);
+		try {
+			final Response response;
+			if (preValidator == null) {
+				response = unmarshallSamlResponse(decoded, timer);
+			} else {
+				final BoundedBuffer buffer = new BoundedBuffer(preValidator.getMaxBytes());
+				buffer.readFrom(decoded);
+				timer.next(Stage.PRE_VALIDATE);
+				preValidator.validate(buffer.buffer(), buffer.size());
+				timer.next(Stage.DOM_PARSE);
+				response = unmarshallSamlResponse(new ByteArrayInputStream(buffer.buffer(), 0, buffer.size()), timer);
 			}
+			timer.next(Stage.CHECK_STATUS);
+			final SamlAuthenticationResult result = authenticateSAMLResponse(response, true, true, timer);
+			timer.done();
+			return result;
+		} catch (final IOException | RuntimeException e) {
+			timer.failed();
+			throw e;
 		}
 	}
-	private void checkStatus(final Response response) throws IOException {
-		final Status status = response.getStatus();
-		if (status == null) {
-			throw new IOException ("Response does not contain a status");
+
+	/**
+	 * Validates a base64 encoded SAML response held in a buffer
+	 * 
+	 * @param encodedSamlResponse the base64 encoded response, from position to limit; the position is not moved
+	 * @return the name id in the response
+	 * @throws IOException when the response fails validation
+	 */
+	public final String validateSAMLResponsePostBinding(final ByteBuffer encodedSamlResponse) throws IOException {
+		return authenticateSAMLResponsePostBinding(encodedSamlResponse).getNameId();
+	}
+
+	/**
+	 * Buffer variant of {@link #authenticateSAMLResponsePostBinding(String)}, see {@link #validateSAMLResponsePostBinding(ByteBuffer)}
+	 */
+	public final SamlAuthenticationResult authenticateSAMLResponsePostBinding(final ByteBuffer encodedSamlResponse) throws IOException {
+		if (encodedSamlResponse == null) {
+			throw new SamlValidationException(Reason.MISSING_RESPONSE, "Unable to extract SAML Response!");
 		}
-		final StatusCode statusCode = status.getStatusCode();
-		if (statusCode == null) {
-			throw new IOException("Status must contain a status code");
+		if (encodedSamlResponse.hasArray()) {
+			return authenticateSAMLResponsePostBinding(new ByteArrayInputStream(encodedSamlResponse.array(),
+					encodedSamlResponse.arrayOffset() + encodedSamlResponse.position(), encodedSamlResponse.remaining()));
 		}
+		return authenticateSAMLResponsePostBinding(new ByteBufferInputStream(encodedSamlResponse.duplicate()));
+	}
 
-		final String codeValue =statusCode.getValue();
-		if (codeValue == null || !StatusCode.SUCCESS.equalsIgnoreCase(codeValue)) {
-			throw new IOException("Status code was not successful");
+	/**
+	 * Collects a decoded response for pre-validation, refusing to grow past the size limit
+	 */
+	private static final class BoundedBuffer extends ByteArrayOutputStream {
+
+		private final int maxBytes;
+
+		private BoundedBuffer(final int maxBytes) {
+			super(Math.min(maxBytes, 16 * 1024));
+			this.maxBytes = maxBytes;
+		}
+
+		private byte[] buffer() {
+			return buf;
 		}
-	}
 
-	private void checkSubjectConfirmationData(final Subject subject) throws IOException {
-		boolean hasScd = false;
-		final List<SubjectConfirmation> subjectConfirmations = subject.getSubjectConfirmations();
-		if (subjectConfirmations != null && subjectConfirmations.size() > 0) {
-			for (final SubjectConfirmation subjectConfirmation : subjectConfirmations) {
-				hasScd = true;
-				final SubjectConfirmationData scd = subjectConfirmation.getSubjectConfirmationData();
-				// don't have the state to check InResponseTo
-				// scd.getInResponseTo();
-				// check timings in subject confirmation data as well
-				final DateTime notBefore = scd.getNotBefore();
-				final DateTime notOnOrAfter = scd.getNotOnOrAfter();
-				checkNotBefore(notBefore);
-				checkNotOnOrAfter(notOnOrAfter);
-				final String recipient = scd.getRecipient();
-				if (recipient != null && !serviceProviderMetadataUtils.getAssertionConsumerServiceUrl().equalsIgnoreCase(recipient) ) {
-					throw new IOException("Recipient did not match assertion consumer service URL!");
+		private void readFrom(final InputStream in) throws IOException {
+			final byte[] chunk = new byte[4096];
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				if (count + read > maxBytes) {
+					throw new SamlValidationException(Reason.TOO_LARGE, "Response is larger than the limit of " + maxBytes + " bytes");
 				}
+				write(chunk, 0, read);
 			}
 		}
-		if (!hasScd) {
-			throw new IOException("Subject MUST contain a subject confirmation data element!");
-		}
 	}
 
-	private void checkDestination(final Response response) throws IOException {
-		final String destination = response.getDestination();
-		if (destination == null || ! destination.equalsIgnoreCase(serviceProviderMetadataUtils.getAssertionConsumerServiceUrl())) {
-			throw new IOException("Response did not have the appropriate destionation = " + serviceProviderMetadataUtils.getAssertionConsumerServiceUrl());
+	/**
+	 * Reads a direct buffer without copying it to the heap first
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] destination, final int offset, final int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int count = Math.min(length, buffer.remaining());
+			buffer.get(destination, offset, count);
+			return count;
 		}
 	}
-	private final String decodeBase64Response(final String base64EncodedRespnse) {
-		final byte[] decodedBytes = Base64.getDecoder().decode(base64EncodedRespnse);
-		return new String(decodedBytes);
+
+	/**
+	 * Validates an already unmarshalled SAML response and extracts the name id.
+	 * 
+	 * @param response the unmarshalled response
+	 * @param checkSignature whether or not to verify the IDP signatures
+	 * @return the name id in the response
+	 * @throws IOException when the response fails validation
+	 */
+	public final String validateSAMLResponse(final Response response, final boolean checkSignature) throws IOException {
+		return authenticateSAMLResponse(response, checkSignature).getNameId();
 	}
 
 	/**
-	 * Returns the name ID associated with the response.
+	 * Validates an already unmarshalled SAML response and extracts everything it says about the user.
 	 * 
-	 * Does NOT support encrypted Name IDs.
+	 * The result holds no reference to the response, which can be discarded once this returns.
 	 * 
-	 * @param assertion
-	 * @return
-	 * @throws IOException
+	 * @param response the unmarshalled response
+	 * @param checkSignature whether or not to verify the IDP signatures
+	 * @return the validated NameID, session details and attributes
+	 * @throws IOException when the response fails validation
 	 */
-	private final String getNameID(final Subject subject) throws IOException {
-		final NameID nameId =subject.getNameID();
-		if (nameId == null) {
-			throw new IOException("Name ID not included in subject");
+	public final SamlAuthenticationResult authenticateSAMLResponse(final Response response, final boolean checkSignature) throws IOException {
+		final StageTimer timer = StageTimer.start(metricsListener, Stage.CHECK_STATUS, Stage.RESPONSE_TOTAL);
+		try {
+			final SamlAuthenticationResult result = authenticateSAMLResponse(response, checkSignature, true, timer);
+			timer.done();
+			return result;
+		} catch (final IOException | RuntimeException e) {
+			timer.failed();
+			throw e;
 		}
-		return nameId.getValue();
-	}
-
-	private final DateTime getSkewedTime() {
-		return DateTime.now().plusSeconds(SAMLResponseUtils.CLOCK_SKEW_SECONDS);
 	}
 
-	private final Subject getSubject(final Assertion assertion) throws IOException {
-		final Subject subject = assertion.getSubject();
-		if (subject == null) {
-			throw new IOException("Assertion did not contain a subject");
+	// the timer is at CHECK_STATUS on the way in; the caller reports the last stage, or the failing one
+	private final SamlAuthenticationResult authenticateSAMLResponse(final Response response, final boolean checkSignature,
+			final boolean allowMetadataRefresh, final StageTimer timer) throws IOException {
+		if (response == null ) {
+			throw new SamlValidationException(Reason.MISSING_RESPONSE, "Unable to extract SAML Response!");
 		}
-		return subject;
-	}
 
-	/**
-	 * Method to validate a SAML response and extract the name id for mapping by other entities
-	 * 
-	 * This can be expanded to additional attributes via a wrapper class, should requirements warrant.
-	 * 
-	 * @param SAMLResponse
-	 * @return
-	 */
-	public final String validateSAMLResponsePostBinding(final String samlResponse) throws IOException {
-		return validateSAMLResponsePostBinding(samlResponse, true);
+		final ResponseChecks pipeline = checks;
+		final ResponseContext context = new ResponseContext(response, System.currentTimeMillis(), checkSignature, allowMetadataRefresh);
+		// the first check is the status check, which the timer is already on
+		final ResponseCheck[] responseChecks = pipeline.responseChecks;
+		for (int i = 0; i < responseChecks.length; i++) {
+			if (i > 0) {
+				timer.next(responseChecks[i].getStage());
+			}
+			responseChecks[i].check(context);
+		}
+		timer.next(Stage.DECRYPT);
+		final Assertion assertion = getAssertion(response);
+		context.setAssertion(assertion);
+		for (final ResponseCheck check : pipeline.assertionChecks) {
+			timer.next(check.getStage());
+			check.check(context);
+		}
+		timer.next(Stage.EXTRACT_RESULT);
+		return buildResult(assertion, assertion.getSubject());
 	}
 
-	protected final String validateSAMLResponsePostBinding(final String samlResponse, final boolean checkSignature) throws IOException {
-		final String samlResponseString = decodeBase64Response(samlResponse);
-		final Response response = unmarshallSamlResponse(samlResponseString);
+	private final SamlAuthenticationResult buildResult(final Assertion assertion, final Subject subject) throws IOException {
+		final NameID nameId = getNameID(subject);
 
-		if (response == null ) {
-			throw new IOException("Unable to extract SAML Response!");
+		String sessionIndex = null;
+		String authnContextClassRef = null;
+		DateTime authnInstant = null;
+		final List<AuthnStatement> authnStatements = assertion.getAuthnStatements();
+		if (authnStatements != null && authnStatements.size() > 0) {
+			final AuthnStatement authnStatement = authnStatements.get(0);
+			sessionIndex = authnStatement.getSessionIndex();
+			authnInstant = authnStatement.getAuthnInstant();
+			final AuthnContext authnContext = authnStatement.getAuthnContext();
+			if (authnContext != null && authnContext.getAuthnContextClassRef() != null) {
+				authnContextClassRef = authnContext.getAuthnContextClassRef().getAuthnContextClassRef();
+			}
 		}
 
-		checkStatus(response);
-		checkAssertions(response);
-		checkDestination(response);
-		final Assertion assertion = response.getAssertions().get(0);
-		checkConditions(assertion);
-		final Subject subject = getSubject(assertion);
-		checkSubjectConfirmationData(subject);
+		final Conditions conditions = assertion.getConditions();
+		final DateTime notBefore = conditions == null ? null : conditions.getNotBefore();
+		final DateTime notOnOrAfter = conditions == null ? null : conditions.getNotOnOrAfter();
+
+		return new SamlAuthenticationResult(nameId.getValue(), nameId.getFormat(), sessionIndex, authnContextClassRef,
+				authnInstant, notBefore, notOnOrAfter, getAttributeNamesAndValues(assertion));
+	}
+
+	// flattened so a result costs one array however many attributes it has; names repeat across users, so intern them
+	private static String[] getAttributeNamesAndValues(final Assertion assertion) {
+		final List<String> namesAndValues = new ArrayList<>();
+		for (final AttributeStatement attributeStatement : assertion.getAttributeStatements()) {
+			for (final Attribute attribute : attributeStatement.getAttributes()) {
+				if (attribute.getName() == null) {
+					continue;
+				}
+				final String name = attribute.getName().intern();
+				for (final XMLObject value : attribute.getAttributeValues()) {
+					final String text = getAttributeValue(value);
+					if (text != null) {
+						namesAndValues.add(name);
+						namesAndValues.add(text);
+					}
+				}
+			}
+		}
+		return namesAndValues.toArray(new String[namesAndValues.size()]);
+	}
 
-		if (checkSignature) {
-			checkSignature(response);
+	private static String getAttributeValue(final XMLObject value) {
+		if (value instanceof XSString) {
+			return ((XSString) value).getValue();
+		}
+		if (value instanceof XSURI) {
+			return ((XSURI) value).getValue();
 		}
-		return getNameID(subject);
+		if (value instanceof XSAny) {
+			return ((XSAny) value).getTextContent();
+		}
+		// other schema types (integer, boolean, dateTime...), as written in the response
+		final Element dom = value.getDOM();
+		return dom == null ? null : dom.getTextContent();
 	}
 	
-	private final Response unmarshallSamlResponse(final String samlResponse) {
-		ByteArrayInputStream bais = null;
+	private final Response unmarshallSamlResponse(final InputStream samlResponse, final StageTimer timer) throws IOException {
 		Document samlResponseDocument = null;
 		try {
-			bais =new ByteArrayInputStream(samlResponse.getBytes());
-			samlResponseDocument = documentBuilder.parse(bais);
-		} catch (final SAXException | IOException e) {
-			throw new RuntimeException(e);
-		} finally {
-			if (bais != null) {
-				try {
-					bais.close();
-				} catch (final IOException e) {
-					// TODO log me
-				}
-			}
+			// the pool checks out a builder for this parse only and returns it when done
+			samlResponseDocument = parserPool.parse(samlResponse);
+		} catch (final XMLParserException e) {
+			// includes base64 and read errors from a streamed response
+			throw new SamlValidationException(Reason.MALFORMED, "Unable to parse SAML Response", e);
 		}
-		
+		timer.next(Stage.UNMARSHALL);
 
 		final Element element = samlResponseDocument.getDocumentElement();
 		final Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(element);
+		if (unmarshaller == null) {
+			throw new SamlValidationException(Reason.MALFORMED, "Unable to extract SAML Response, unknown root element " + element.getLocalName());
+		}
 		
 		XMLObject xmlResponseObject = null;
 		try {
 			xmlResponseObject = unmarshaller.unmarshall(element);
 		} catch ( final UnmarshallingException e) {
-			throw new RuntimeException(e);
+			throw new SamlValidationException(Reason.MALFORMED, "Unable to unmarshall SAML Response", e);
 		}
 
 		if (xmlResponseObject instanceof Response) {
@@ -0,0 +1,165 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * What a validated SAML response says about the authenticated user.
+ *
+ * Built once validation succeeds and holds no reference to the DOM or the OpenSAML objects, so both can be
+ * collected as soon as the response has been checked. Timestamps are kept as epoch millis and attributes as
+ * one flat array of interned names and values; the attribute map is only built if {@link #getAttributes()}
+ * is called. That keeps results small enough to hold in a session store.
+ *
+ * Instances are immutable and thread safe.
+ *
+ * @author ecb_penguin
+ *
+ */
+public final class SamlAuthenticationResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** marks a timestamp the response did not carry */
+	private static final long ABSENT = Long.MIN_VALUE;
+
+	private final String nameId;
+
+	private final String nameIdFormat;
+
+	private final String sessionIndex;
+
+	private final String authnContextClassRef;
+
+	private final long authnInstantMs;
+
+	private final long notBeforeMs;
+
+	private final long notOnOrAfterMs;
+
+	// name, value, name, value... a multi valued attribute repeats its name
+	private final String[] attributeNamesAndValues;
+
+	private transient volatile Map<String, List<String>> attributes;
+
+	SamlAuthenticationResult(final String nameId, final String nameIdFormat, final String sessionIndex, final String authnContextClassRef,
+			final DateTime authnInstant, final DateTime notBefore, final DateTime notOnOrAfter, final String[] attributeNamesAndValues) {
+		this.nameId = nameId;
+		this.nameIdFormat = nameIdFormat;
+		this.sessionIndex = sessionIndex;
+		this.authnContextClassRef = authnContextClassRef;
+		this.authnInstantMs = toMillis(authnInstant);
+		this.notBeforeMs = toMillis(notBefore);
+		this.notOnOrAfterMs = toMillis(notOnOrAfter);
+		this.attributeNamesAndValues = attributeNamesAndValues;
+	}
+
+	// names come back as fresh copies, share them again
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		for (int i = 0; i < attributeNamesAndValues.length; i += 2) {
+			attributeNamesAndValues[i] = attributeNamesAndValues[i].intern();
+		}
+	}
+
+	private static long toMillis(final DateTime dateTime) {
+		return dateTime == null ? ABSENT : dateTime.getMillis();
+	}
+
+	private static DateTime toDateTime(final long ms) {
+		return ms == ABSENT ? null : new DateTime(ms, DateTimeZone.UTC);
+	}
+
+	public String getNameId() {
+		return nameId;
+	}
+
+	/**
+	 * @return the NameID Format, or null if the IDP didn't send one
+	 */
+	public String getNameIdFormat() {
+		return nameIdFormat;
+	}
+
+	/**
+	 * @return the SessionIndex of the first AuthnStatement, or null
+	 */
+	public String getSessionIndex() {
+		return sessionIndex;
+	}
+
+	/**
+	 * @return the AuthnContextClassRef of the first AuthnStatement, or null
+	 */
+	public String getAuthnContextClassRef() {
+		return authnContextClassRef;
+	}
+
+	/**
+	 * @return the AuthnInstant of the first AuthnStatement, or null
+	 */
+	public DateTime getAuthnInstant() {
+		return toDateTime(authnInstantMs);
+	}
+
+	/**
+	 * @return the assertion's Conditions NotBefore, or null
+	 */
+	public DateTime getNotBefore() {
+		return toDateTime(notBeforeMs);
+	}
+
+	/**
+	 * @return the assertion's Conditions NotOnOrAfter, or null
+	 */
+	public DateTime getNotOnOrAfter() {
+		return toDateTime(notOnOrAfterMs);
+	}
+
+	/**
+	 * @return the first value of the named attribute, or null
+	 */
+	public String getAttribute(final String name) {
+		for (int i = 0; i < attributeNamesAndValues.length; i += 2) {
+			if (attributeNamesAndValues[i].equals(name)) {
+				return attributeNamesAndValues[i + 1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return every attribute by name, in document order, built on first use; unmodifiable
+	 */
+	public Map<String, List<String>> getAttributes() {
+		Map<String, List<String>> result = attributes;
+		if (result == null) {
+			// racing threads build equal maps, either one may win
+			final Map<String, List<String>> built = new LinkedHashMap<>();
+			for (int i = 0; i < attributeNamesAndValues.length; i += 2) {
+				built.computeIfAbsent(attributeNamesAndValues[i], k -> new ArrayList<>(1)).add(attributeNamesAndValues[i + 1]);
+			}
+			for (final Map.Entry<String, List<String>> entry : built.entrySet()) {
+				entry.setValue(Collections.unmodifiableList(entry.getValue()));
+			}
+			result = Collections.unmodifiableMap(built);
+			attributes = result;
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "SamlAuthenticationResult [nameId=" + nameId + ", sessionIndex=" + sessionIndex
+				+ ", attributeValues=" + attributeNamesAndValues.length / 2 + "]";
+	}
+}
@@ -0,0 +1,71 @@
+package com.ecbpenguin.saml.client.utils;
+
+/**
+ * Receives per stage timings and failures from {@link SAMLResponseUtils}, {@link AuthnRequestUtils} and
+ * {@link IdpMetadataUtils}.
+ *
+ * Callbacks run on the request thread, so implementations must be thread safe and quick. With {@link #NOOP}
+ * installed (the default) no timestamps are taken and nothing is allocated.
+ *
+ * @author ecb_penguin
+ *
+ */
+public interface SamlMetricsListener {
+
+	/** discards everything, the default */
+	SamlMetricsListener NOOP = new SamlMetricsListener() {
+	};
+
+	enum Stage {
+		/** base64 decoding of a response held in memory; streamed responses decode during {@link #DOM_PARSE} */
+		BASE64_DECODE,
+		PRE_VALIDATE,
+		DOM_PARSE,
+		UNMARSHALL,
+		CHECK_STATUS,
+		CHECK_ASSERTIONS,
+		CHECK_DESTINATION,
+		CHECK_ISSUER,
+		DECRYPT,
+		CHECK_CONDITIONS,
+		CHECK_SUBJECT_CONFIRMATION,
+		/** includes any metadata refresh forced by a failing signature */
+		CHECK_SIGNATURE,
+		/** every custom {@link ResponseCheck} */
+		CUSTOM_CHECK,
+		CHECK_IN_RESPONSE_TO,
+		CHECK_REPLAY,
+		EXTRACT_RESULT,
+		/** the whole response, from the first stage to the last */
+		RESPONSE_TOTAL,
+		REQUEST_BUILD,
+		REQUEST_SIGN,
+		REQUEST_TEMPLATE,
+		REQUEST_ENCODE_POST,
+		REQUEST_ENCODE_REDIRECT
+	}
+
+	/**
+	 * @param stage the stage that completed
+	 * @param nanos how long it took
+	 */
+	default void onStageCompleted(final Stage stage, final long nanos) {
+	}
+
+	/**
+	 * Called once per failed response or request, with the stage that rejected it
+	 *
+	 * @param stage the stage that failed, which is the failure reason
+	 * @param nanos how long the stage ran before failing
+	 */
+	default void onStageFailed(final Stage stage, final long nanos) {
+	}
+
+	/**
+	 * @param forced true for a refresh forced by a signature failure, false for a scheduled one
+	 * @param succeeded whether the metadata was downloaded and parsed
+	 * @param nanos how long the refresh took
+	 */
+	default void onMetadataRefresh(final boolean forced, final boolean succeeded, final long nanos) {
+	}
+}
@@ -0,0 +1,64 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.IOException;
+
+/**
+ * A SAML response was rejected by one of the validation checks.
+ *
+ * These are expected under attack (junk, replays, forged or expired responses) so they don't capture a stack
+ * trace: the reason and message say which check failed, and a cause, if any, keeps its own trace. That
+ * keeps a rejection down to microseconds. Log them with {@link ValidationFailureLog} rather than one by one.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class SamlValidationException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Reason {
+		/** no response, or no SAMLResponse form parameter */
+		MISSING_RESPONSE,
+		TOO_LARGE,
+		/** not base64, not well formed, or not a SAML response */
+		MALFORMED,
+		/** the IDP reported an error */
+		STATUS,
+		/** missing, or more than one, assertion */
+		ASSERTION,
+		DESTINATION,
+		ISSUER,
+		DECRYPTION,
+		AUDIENCE,
+		EXPIRED,
+		NOT_YET_VALID,
+		/** missing or invalid subject, subject confirmation or name ID */
+		SUBJECT,
+		SIGNATURE,
+		IN_RESPONSE_TO,
+		REPLAY,
+		/** a bounded cache is full, so the response can't be checked */
+		CAPACITY
+	}
+
+	private final Reason reason;
+
+	public SamlValidationException(final Reason reason, final String message) {
+		this(reason, message, null);
+	}
+
+	public SamlValidationException(final Reason reason, final String message, final Throwable cause) {
+		super(message, cause);
+		this.reason = reason;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+
+	// the expensive part of throwing, and not needed to tell which check failed
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
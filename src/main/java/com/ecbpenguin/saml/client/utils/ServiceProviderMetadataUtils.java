@@ -17,6 +17,7 @@ import org.slf4j.LoggerFactory;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import net.shibboleth.utilities.java.support.xml.BasicParserPool;
+import net.shibboleth.utilities.java.support.xml.ParserPool;
 
 public class ServiceProviderMetadataUtils {
 
@@ -33,18 +34,30 @@ public class ServiceProviderMetadataUtils {
 	private final X509Certificate signingCertificate;
 
 	public ServiceProviderMetadataUtils(final String spMetadata) {
+		this(spMetadata, null);
+	}
+
+	/**
+	 * @param spMetadata location of the service provider metadata file
+	 * @param parserPool parser pool to read it with, or null to create one
+	 */
+	public ServiceProviderMetadataUtils(final String spMetadata, final ParserPool parserPool) {
 		SPSSODescriptor spSSODescriptor = null;
 		String serviceProviderEntityId = null;
 		LOGGER.debug("Loading Service Provider Metadata file from: {}", spMetadata)
 ;
+		FilesystemMetadataResolver serviceProviderMetadataResolver = null;
 		try {
 			final File spMetadataFile = new File(spMetadata);
-			final FilesystemMetadataResolver serviceProviderMetadataResolver = new FilesystemMetadataResolver(spMetadataFile);
-			final BasicParserPool pp = new BasicParserPool();
-			pp.initialize();
-
+			serviceProviderMetadataResolver = new FilesystemMetadataResolver(spMetadataFile);
 			serviceProviderMetadataResolver.setId(spMetadataFile.getName());
-			serviceProviderMetadataResolver.setParserPool(pp);
+			if (parserPool != null) {
+				serviceProviderMetadataResolver.setParserPool(parserPool);
+			} else {
+				final BasicParserPool pp = new BasicParserPool();
+				pp.initialize();
+				serviceProviderMetadataResolver.setParserPool(pp);
+			}
 			serviceProviderMetadataResolver.initialize();
 			
 			final Iterator<EntityDescriptor> ei = serviceProviderMetadataResolver.iterator();
@@ -63,6 +76,12 @@ public class ServiceProviderMetadataUtils {
 		} catch (final ResolverException | ComponentInitializationException e) {
 			LOGGER.error(e.getMessage(), e);
 			throw new IllegalArgumentException(e);
+		} finally {
+			// the file is read once, don't leave the resolver's reload timer thread running for every client,
+			// nor for a file that failed to load
+			if (serviceProviderMetadataResolver != null) {
+				serviceProviderMetadataResolver.destroy();
+			}
 		}
 		if (spSSODescriptor == null) {
 			// configuration error
@@ -0,0 +1,82 @@
+package com.ecbpenguin.saml.client.utils;
+
+import com.ecbpenguin.saml.client.utils.SamlMetricsListener.Stage;
+
+/**
+ * Times consecutive stages of one response or request for a {@link SamlMetricsListener}.
+ *
+ * With the no-op listener every caller gets the same shared, disabled instance, so an uninstrumented call
+ * neither allocates nor reads the clock. Not thread safe, one instance per call.
+ *
+ * @author ecb_penguin
+ *
+ */
+final class StageTimer {
+
+	private static final StageTimer DISABLED = new StageTimer(SamlMetricsListener.NOOP, null, null);
+
+	private final SamlMetricsListener listener;
+
+	private final Stage totalStage;
+
+	private final long begin;
+
+	private Stage stage;
+
+	private long start;
+
+	private StageTimer(final SamlMetricsListener listener, final Stage firstStage, final Stage totalStage) {
+		this.listener = listener;
+		this.totalStage = totalStage;
+		this.stage = firstStage;
+		this.begin = firstStage == null ? 0L : System.nanoTime();
+		this.start = begin;
+	}
+
+	/**
+	 * @param totalStage stage to report the whole run under, or null
+	 */
+	static StageTimer start(final SamlMetricsListener listener, final Stage firstStage, final Stage totalStage) {
+		if (listener == SamlMetricsListener.NOOP) {
+			return DISABLED;
+		}
+		return new StageTimer(listener, firstStage, totalStage);
+	}
+
+	/**
+	 * Reports the current stage as completed and starts timing the next one
+	 */
+	void next(final Stage nextStage) {
+		if (this == DISABLED) {
+			return;
+		}
+		final long now = System.nanoTime();
+		listener.onStageCompleted(stage, now - start);
+		stage = nextStage;
+		start = now;
+	}
+
+	/**
+	 * Reports the current, last stage as completed, and the total
+	 */
+	void done() {
+		if (this == DISABLED) {
+			return;
+		}
+		final long now = System.nanoTime();
+		listener.onStageCompleted(stage, now - start);
+		if (totalStage != null) {
+			listener.onStageCompleted(totalStage, now - begin);
+		}
+	}
+
+	/**
+	 * Reports the current stage as the one that failed
+	 */
+	void failed() {
+		if (this == DISABLED) {
+			return;
+		}
+		listener.onStageFailed(stage, System.nanoTime() - start);
+	}
+}
@@ -20,7 +20,9 @@ import net.shibboleth.utilities.java.support.xml.SerializeSupport;
  * 
  * @author ecbpenguin
  *
+ * @deprecated allocates a Deflater and a String copy of the message per call; use {@link RedirectBindingEncoder}
  */
+@Deprecated
 public class StringHTTPRedirectDeflateEncoder extends HTTPRedirectDeflateEncoder {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(StringHTTPRedirectDeflateEncoder.class);
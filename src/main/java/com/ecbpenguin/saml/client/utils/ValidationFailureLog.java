@@ -0,0 +1,73 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+/**
+ * Logs rejected SAML responses as a periodic summary instead of one entry each, so a flood of bad responses
+ * can't turn into a flood of log writes.
+ *
+ * Failures are counted by reason. The first failure after a quiet interval logs one WARN line with the counts
+ * since the last summary and the latest message; the rest only increment a counter. Each failure is logged
+ * at DEBUG, without a stack trace, when that is enabled.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class ValidationFailureLog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ValidationFailureLog.class);
+
+	private static final Reason[] REASONS = Reason.values();
+
+	private final long intervalMs;
+
+	private final AtomicLongArray counts = new AtomicLongArray(REASONS.length);
+
+	private final AtomicLong nextSummaryMs = new AtomicLong();
+
+	/**
+	 * @param intervalSeconds the least time between summaries, 0 to log every failure
+	 */
+	public ValidationFailureLog(final int intervalSeconds) {
+		if (intervalSeconds < 0) {
+			throw new IllegalArgumentException("intervalSeconds must not be negative!");
+		}
+		this.intervalMs = intervalSeconds * 1000L;
+	}
+
+	public void record(final SamlValidationException e) {
+		counts.incrementAndGet(e.getReason().ordinal());
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Response failed validation, {}: {}", e.getReason(), e.getMessage());
+		}
+
+		final long now = System.currentTimeMillis();
+		final long next = nextSummaryMs.get();
+		// one thread per interval wins the summary
+		if (now >= next && nextSummaryMs.compareAndSet(next, now + intervalMs)) {
+			logSummary(e);
+		}
+	}
+
+	private void logSummary(final SamlValidationException latest) {
+		final StringBuilder byReason = new StringBuilder();
+		long total = 0;
+		for (int i = 0; i < REASONS.length; i++) {
+			final long count = counts.getAndSet(i, 0);
+			if (count > 0) {
+				if (total > 0) {
+					byReason.append(", ");
+				}
+				byReason.append(REASONS[i]).append('=').append(count);
+				total += count;
+			}
+		}
+		LOGGER.warn("Rejected {} SAML responses since the last summary ({}), latest: {}", total, byReason, latest.getMessage());
+	}
+}
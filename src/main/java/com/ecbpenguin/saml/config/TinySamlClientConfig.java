@@ -18,10 +18,70 @@ public class TinySamlClientConfig {
 
 	private static final String SP_SIGNING_KEY_LOCATION_KEY = "tinySamlClient.serviceProviderSigningKeyLocation";
 
+	private static final String SP_SIGNING_KEY_PASSWORD_KEY = "tinySamlClient.serviceProviderSigningKeyPassword";
+
+	private static final String SP_SIGNING_KEY_ALIAS_KEY = "tinySamlClient.serviceProviderSigningKeyAlias";
+
 	private static final String IDP_METADATA_URL_KEY = "tinySamlClient.idpMetadataUrl";
 
 	private static final String IDP_METADATA_CACHE_LOCATION = "tinySamlClient.idpFileCacheLocation";
 
+	private static final String PARSER_POOL_MAX_SIZE_KEY = "tinySamlClient.parserPoolMaxSize";
+
+	private static final String REPLAY_CACHE_MAX_ENTRIES_KEY = "tinySamlClient.replayCacheMaxEntries";
+
+	private static final String REPLAY_CACHE_MAX_TTL_SECONDS_KEY = "tinySamlClient.replayCacheMaxTtlSeconds";
+
+	private static final String REQUEST_TRACKER_MAX_ENTRIES_KEY = "tinySamlClient.requestTrackerMaxEntries";
+
+	private static final String REQUEST_TRACKER_TTL_SECONDS_KEY = "tinySamlClient.requestTrackerTtlSeconds";
+
+	private static final String METADATA_FORCED_REFRESH_MIN_INTERVAL_SECONDS_KEY = "tinySamlClient.metadataForcedRefreshMinIntervalSeconds";
+
+	private static final String METADATA_FORCED_REFRESH_MAX_BACKOFF_SECONDS_KEY = "tinySamlClient.metadataForcedRefreshMaxBackoffSeconds";
+
+	private static final String RESPONSE_MAX_BYTES_KEY = "tinySamlClient.responseMaxBytes";
+
+	private static final String RESPONSE_MAX_ELEMENT_DEPTH_KEY = "tinySamlClient.responseMaxElementDepth";
+
+	private static final String RESPONSE_MAX_ATTRIBUTES_PER_ELEMENT_KEY = "tinySamlClient.responseMaxAttributesPerElement";
+
+	private static final String ASYNC_CRYPTO_THREADS_KEY = "tinySamlClient.asyncCryptoThreads";
+
+	private static final String ASYNC_CRYPTO_QUEUE_SIZE_KEY = "tinySamlClient.asyncCryptoQueueSize";
+
+	private static final String ASYNC_IO_THREADS_KEY = "tinySamlClient.asyncIoThreads";
+
+	private static final String VALIDATION_FAILURE_LOG_INTERVAL_SECONDS_KEY = "tinySamlClient.validationFailureLogIntervalSeconds";
+
+	private static final String CONFIG_RELOAD_QUIET_MILLIS_KEY = "tinySamlClient.configReloadQuietMillis";
+
+	private static final String PRE_SIGNED_REQUEST_POOL_SIZE_KEY = "tinySamlClient.preSignedRequestPoolSize";
+
+	private static final String PRE_SIGNED_REQUEST_MAX_AGE_SECONDS_KEY = "tinySamlClient.preSignedRequestMaxAgeSeconds";
+
+	private static final String CLOCK_SKEW_SECONDS_KEY = "tinySamlClient.clockSkewSeconds";
+
+	private static final String REQUIRED_SIGNATURES_KEY = "tinySamlClient.requiredSignatures";
+
+	private static final String REQUIRE_AUDIENCE_RESTRICTION_KEY = "tinySamlClient.requireAudienceRestriction";
+
+	private static final String ADDITIONAL_AUDIENCES_KEY = "tinySamlClient.additionalAudiences";
+
+	private static final String METADATA_CONNECT_TIMEOUT_MILLIS_KEY = "tinySamlClient.metadataConnectTimeoutMillis";
+
+	private static final String METADATA_READ_TIMEOUT_MILLIS_KEY = "tinySamlClient.metadataReadTimeoutMillis";
+
+	private static final String METADATA_REFRESH_INTERVAL_SECONDS_KEY = "tinySamlClient.metadataRefreshIntervalSeconds";
+
+	private static final String METADATA_REFRESH_JITTER_PERCENT_KEY = "tinySamlClient.metadataRefreshJitterPercent";
+
+	private static final String IDP_ENTITY_ID_KEY = "tinySamlClient.idpEntityId";
+
+	private static final String IDP_METADATA_STREAMING_KEY = "tinySamlClient.idpMetadataStreaming";
+
+	private final String configFile;
+
 	private final String serviceProviderMetadataFile;
 
 	private final String idpMetadataCacheLocation;
@@ -30,9 +90,68 @@ public class TinySamlClientConfig {
 
 	private final String serviceProviderSigningKeyLocation;
 
+	private final String serviceProviderSigningKeyPassword;
+
+	private final String serviceProviderSigningKeyAlias;
+
+	private final int parserPoolMaxSize;
+
+	private final int replayCacheMaxEntries;
+
+	private final int replayCacheMaxTtlSeconds;
+
+	private final int requestTrackerMaxEntries;
+
+	private final int requestTrackerTtlSeconds;
+
+	private final int metadataForcedRefreshMinIntervalSeconds;
+
+	private final int metadataForcedRefreshMaxBackoffSeconds;
+
+	private final int responseMaxBytes;
+
+	private final int responseMaxElementDepth;
+
+	private final int responseMaxAttributesPerElement;
+
+	private final int asyncCryptoThreads;
+
+	private final int asyncCryptoQueueSize;
+
+	private final int asyncIoThreads;
+
+	private final int validationFailureLogIntervalSeconds;
+
+	private final int configReloadQuietMillis;
+
+	private final int preSignedRequestPoolSize;
+
+	private final int preSignedRequestMaxAgeSeconds;
+
+	private final int clockSkewSeconds;
+
+	private final String requiredSignatures;
+
+	private final boolean requireAudienceRestriction;
+
+	private final String additionalAudiences;
+
+	private final int metadataConnectTimeoutMillis;
+
+	private final int metadataReadTimeoutMillis;
+
+	private final int metadataRefreshIntervalSeconds;
+
+	private final int metadataRefreshJitterPercent;
+
+	private final String idpEntityId;
+
+	private final boolean idpMetadataStreaming;
+
 	public TinySamlClientConfig(final String tinySamlClientConfigFile) {
 
 		final File f = new File(tinySamlClientConfigFile).getAbsoluteFile();
+		configFile = f.getPath();
 		final Properties tinySamlClientProps = new Properties();
 		InputStream is = null;
 		try {
@@ -79,6 +198,96 @@ public class TinySamlClientConfig {
 		} else {
 			serviceProviderSigningKeyLocation = null;
 		}
+
+		// only used when the signing key is in a PKCS#12 or JKS keystore
+		serviceProviderSigningKeyPassword = getStringProperty(tinySamlClientProps, SP_SIGNING_KEY_PASSWORD_KEY);
+		serviceProviderSigningKeyAlias = getStringProperty(tinySamlClientProps, SP_SIGNING_KEY_ALIAS_KEY);
+
+		// defaults to one parser per core, so every request thread can parse without waiting on the pool
+		parserPoolMaxSize = getIntProperty(tinySamlClientProps, PARSER_POOL_MAX_SIZE_KEY, Runtime.getRuntime().availableProcessors(), tinySamlClientConfigFile);
+
+		// 0 turns the replay cache off
+		replayCacheMaxEntries = getIntProperty(tinySamlClientProps, REPLAY_CACHE_MAX_ENTRIES_KEY, 100000, tinySamlClientConfigFile);
+		replayCacheMaxTtlSeconds = getIntProperty(tinySamlClientProps, REPLAY_CACHE_MAX_TTL_SECONDS_KEY, 3600, tinySamlClientConfigFile);
+
+		// off by default: turning it on rejects IDP initiated (unsolicited) responses
+		requestTrackerMaxEntries = getIntProperty(tinySamlClientProps, REQUEST_TRACKER_MAX_ENTRIES_KEY, 0, tinySamlClientConfigFile);
+		requestTrackerTtlSeconds = getIntProperty(tinySamlClientProps, REQUEST_TRACKER_TTL_SECONDS_KEY, 600, tinySamlClientConfigFile);
+
+		// bounds how often a failed signature may force an IDP metadata download
+		metadataForcedRefreshMinIntervalSeconds = getIntProperty(tinySamlClientProps, METADATA_FORCED_REFRESH_MIN_INTERVAL_SECONDS_KEY, 60, tinySamlClientConfigFile);
+		metadataForcedRefreshMaxBackoffSeconds = getIntProperty(tinySamlClientProps, METADATA_FORCED_REFRESH_MAX_BACKOFF_SECONDS_KEY, 3600, tinySamlClientConfigFile);
+
+		// 0 turns the streaming pre-validation of responses off, the limits only apply when it is on
+		responseMaxBytes = getIntProperty(tinySamlClientProps, RESPONSE_MAX_BYTES_KEY, 0, tinySamlClientConfigFile);
+		responseMaxElementDepth = getIntProperty(tinySamlClientProps, RESPONSE_MAX_ELEMENT_DEPTH_KEY, 32, tinySamlClientConfigFile);
+		responseMaxAttributesPerElement = getIntProperty(tinySamlClientProps, RESPONSE_MAX_ATTRIBUTES_PER_ELEMENT_KEY, 32, tinySamlClientConfigFile);
+
+		// pools behind the *Async methods, no threads are started until they are used
+		asyncCryptoThreads = getIntProperty(tinySamlClientProps, ASYNC_CRYPTO_THREADS_KEY, Runtime.getRuntime().availableProcessors(), tinySamlClientConfigFile);
+		asyncCryptoQueueSize = getIntProperty(tinySamlClientProps, ASYNC_CRYPTO_QUEUE_SIZE_KEY, 1024, tinySamlClientConfigFile);
+		asyncIoThreads = getIntProperty(tinySamlClientProps, ASYNC_IO_THREADS_KEY, 2, tinySamlClientConfigFile);
+
+		// rejected responses are logged as one summary per interval
+		validationFailureLogIntervalSeconds = getIntProperty(tinySamlClientProps, VALIDATION_FAILURE_LOG_INTERVAL_SECONDS_KEY, 10, tinySamlClientConfigFile);
+
+		// 0 turns watching the configuration files off, otherwise how long they must be unchanged before reloading
+		configReloadQuietMillis = getIntProperty(tinySamlClientProps, CONFIG_RELOAD_QUIET_MILLIS_KEY, 0, tinySamlClientConfigFile);
+
+		// 0 signs every signed POST request inline, otherwise how many a background thread keeps ready
+		preSignedRequestPoolSize = getIntProperty(tinySamlClientProps, PRE_SIGNED_REQUEST_POOL_SIZE_KEY, 0, tinySamlClientConfigFile);
+		preSignedRequestMaxAgeSeconds = getIntProperty(tinySamlClientProps, PRE_SIGNED_REQUEST_MAX_AGE_SECONDS_KEY, 60, tinySamlClientConfigFile);
+
+		// response validation policy: NONE, EITHER, RESPONSE, ASSERTION or BOTH signed; comma separated audiences besides the SP entity ID
+		clockSkewSeconds = getIntProperty(tinySamlClientProps, CLOCK_SKEW_SECONDS_KEY, 30, tinySamlClientConfigFile);
+		requiredSignatures = getStringProperty(tinySamlClientProps, REQUIRED_SIGNATURES_KEY);
+		requireAudienceRestriction = getBooleanProperty(tinySamlClientProps, REQUIRE_AUDIENCE_RESTRICTION_KEY, false, tinySamlClientConfigFile);
+		additionalAudiences = getStringProperty(tinySamlClientProps, ADDITIONAL_AUDIENCES_KEY);
+
+		// IDP metadata downloads: timeouts (0 waits forever), the longest time between refreshes, and how much of each delay is randomized
+		metadataConnectTimeoutMillis = getIntProperty(tinySamlClientProps, METADATA_CONNECT_TIMEOUT_MILLIS_KEY, 5000, tinySamlClientConfigFile);
+		metadataReadTimeoutMillis = getIntProperty(tinySamlClientProps, METADATA_READ_TIMEOUT_MILLIS_KEY, 10000, tinySamlClientConfigFile);
+		metadataRefreshIntervalSeconds = getIntProperty(tinySamlClientProps, METADATA_REFRESH_INTERVAL_SECONDS_KEY, 3600, tinySamlClientConfigFile);
+		metadataRefreshJitterPercent = getIntProperty(tinySamlClientProps, METADATA_REFRESH_JITTER_PERCENT_KEY, 10, tinySamlClientConfigFile);
+
+		// picks the IDP out of a metadata aggregate; streaming keeps only that entity from each download, never the whole DOM
+		idpEntityId = getStringProperty(tinySamlClientProps, IDP_ENTITY_ID_KEY);
+		idpMetadataStreaming = getBooleanProperty(tinySamlClientProps, IDP_METADATA_STREAMING_KEY, false, tinySamlClientConfigFile);
+	}
+
+	private static String getStringProperty(final Properties props, final String key) {
+		final Object value = props.getOrDefault(key, null);
+		if (value == null || !(value instanceof String) || ((String)value).length() == 0) {
+			return null;
+		}
+		return (String)value;
+	}
+
+	private static int getIntProperty(final Properties props, final String key, final int defaultValue, final String configFile) {
+		final Object value = props.getOrDefault(key, null);
+		if (value == null || !(value instanceof String) || ((String)value).trim().length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(((String)value).trim());
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Property " + key + " is not an integer in " + configFile, e);
+		}
+	}
+
+	private static boolean getBooleanProperty(final Properties props, final String key, final boolean defaultValue, final String configFile) {
+		final Object value = props.getOrDefault(key, null);
+		if (value == null || !(value instanceof String) || ((String)value).trim().length() == 0) {
+			return defaultValue;
+		}
+		final String trimmed = ((String)value).trim();
+		if ("true".equalsIgnoreCase(trimmed)) {
+			return true;
+		}
+		if ("false".equalsIgnoreCase(trimmed)) {
+			return false;
+		}
+		throw new IllegalArgumentException("Property " + key + " is not true or false in " + configFile);
 	}
 
 	public String getServiceProviderMetadataFile() {
@@ -96,4 +305,130 @@ public class TinySamlClientConfig {
 	public String getServiceProviderSigningKeyLocation() {
 		return serviceProviderSigningKeyLocation;
 	}
+
+	public String getServiceProviderSigningKeyPassword() {
+		return serviceProviderSigningKeyPassword;
+	}
+
+	public String getServiceProviderSigningKeyAlias() {
+		return serviceProviderSigningKeyAlias;
+	}
+
+	public int getParserPoolMaxSize() {
+		return parserPoolMaxSize;
+	}
+
+	public int getReplayCacheMaxEntries() {
+		return replayCacheMaxEntries;
+	}
+
+	public int getReplayCacheMaxTtlSeconds() {
+		return replayCacheMaxTtlSeconds;
+	}
+
+	public int getRequestTrackerMaxEntries() {
+		return requestTrackerMaxEntries;
+	}
+
+	public int getRequestTrackerTtlSeconds() {
+		return requestTrackerTtlSeconds;
+	}
+
+	public int getMetadataForcedRefreshMinIntervalSeconds() {
+		return metadataForcedRefreshMinIntervalSeconds;
+	}
+
+	public int getMetadataForcedRefreshMaxBackoffSeconds() {
+		return metadataForcedRefreshMaxBackoffSeconds;
+	}
+
+	public int getResponseMaxBytes() {
+		return responseMaxBytes;
+	}
+
+	public int getResponseMaxElementDepth() {
+		return responseMaxElementDepth;
+	}
+
+	public int getResponseMaxAttributesPerElement() {
+		return responseMaxAttributesPerElement;
+	}
+
+	public int getAsyncCryptoThreads() {
+		return asyncCryptoThreads;
+	}
+
+	public int getAsyncCryptoQueueSize() {
+		return asyncCryptoQueueSize;
+	}
+
+	public int getAsyncIoThreads() {
+		return asyncIoThreads;
+	}
+
+	public int getValidationFailureLogIntervalSeconds() {
+		return validationFailureLogIntervalSeconds;
+	}
+
+	public int getConfigReloadQuietMillis() {
+		return configReloadQuietMillis;
+	}
+
+	public int getPreSignedRequestPoolSize() {
+		return preSignedRequestPoolSize;
+	}
+
+	public int getPreSignedRequestMaxAgeSeconds() {
+		return preSignedRequestMaxAgeSeconds;
+	}
+
+	public int getClockSkewSeconds() {
+		return clockSkewSeconds;
+	}
+
+	public String getRequiredSignatures() {
+		return requiredSignatures;
+	}
+
+	public boolean isRequireAudienceRestriction() {
+		return requireAudienceRestriction;
+	}
+
+	public String getAdditionalAudiences() {
+		return additionalAudiences;
+	}
+
+	public int getMetadataConnectTimeoutMillis() {
+		return metadataConnectTimeoutMillis;
+	}
+
+	public int getMetadataReadTimeoutMillis() {
+		return metadataReadTimeoutMillis;
+	}
+
+	public int getMetadataRefreshIntervalSeconds() {
+		return metadataRefreshIntervalSeconds;
+	}
+
+	public int getMetadataRefreshJitterPercent() {
+		return metadataRefreshJitterPercent;
+	}
+
+	/**
+	 * @return the entity ID of the IDP, or null to use the last IDP in the metadata
+	 */
+	public String getIdpEntityId() {
+		return idpEntityId;
+	}
+
+	public boolean isIdpMetadataStreaming() {
+		return idpMetadataStreaming;
+	}
+
+	/**
+	 * @return the absolute path of the properties file this configuration was read from
+	 */
+	public String getConfigFile() {
+		return configFile;
+	}
 }
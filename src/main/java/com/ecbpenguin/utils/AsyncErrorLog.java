@@ -0,0 +1,310 @@
+package com.ecbpenguin.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Error log file written by one background thread, replacing the synchronous writes of the old FileLogUtils.
+ *
+ * Request threads only put the throwable in a bounded, lock free ring buffer; formatting and file I/O happen on
+ * the writer thread, which writes whatever has queued up as one batch. When the buffer is full the entry is
+ * dropped and counted rather than blocking the caller, and the writer notes how many were dropped in the file.
+ * The file is rotated by size, keeping a fixed number of old files (.1 is the newest), and whatever is queued
+ * is written when the log is closed, or when the JVM exits for the default log.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class AsyncErrorLog {
+
+	private static final String DEFAULT_LOG_FILE = "saml-Client-Error.log";
+
+	private static final long DEFAULT_MAX_FILE_BYTES = 10L * 1024 * 1024;
+
+	private static final int DEFAULT_MAX_FILES = 5;
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private static final int MAX_BATCH = 256;
+
+	private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final long CLOSE_TIMEOUT_MS = 5000;
+
+	// built on first use, so an application that never logs an error never starts the thread
+	private static final class DefaultLog {
+		private static final AsyncErrorLog INSTANCE = new AsyncErrorLog(new File(DEFAULT_LOG_FILE), DEFAULT_MAX_FILE_BYTES,
+				DEFAULT_MAX_FILES, DEFAULT_CAPACITY);
+
+		static {
+			Runtime.getRuntime().addShutdownHook(new Thread(INSTANCE::close, "tiny-saml-client-error-log-shutdown"));
+		}
+	}
+
+	private static final class Entry {
+
+		private final long timeMs = System.currentTimeMillis();
+
+		private final String threadName = Thread.currentThread().getName();
+
+		private final Throwable throwable;
+
+		private Entry(final Throwable throwable) {
+			this.throwable = throwable;
+		}
+	}
+
+	private final File file;
+
+	private final long maxFileBytes;
+
+	private final int maxFiles;
+
+	private final int mask;
+
+	// bounded multi producer ring: a slot's sequence says whether it is free for the producer at that position
+	// or filled for the consumer, see https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+	private final AtomicReferenceArray<Entry> entries;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	// only the writer thread moves the head
+	private long head;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private long droppedReported;
+
+	private final Thread writer;
+
+	private volatile boolean closed;
+
+	// only touched by the writer thread
+	private FileOutputStream out;
+
+	private long fileBytes;
+
+	private final StringBuilder batch = new StringBuilder();
+
+	private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+	/**
+	 * @param file the log file, created if it doesn't exist and appended to if it does
+	 * @param maxFileBytes size at which the file is rotated
+	 * @param maxFiles how many rotated files are kept besides the current one
+	 * @param capacity the most entries waiting to be written, rounded up to a power of two
+	 */
+	public AsyncErrorLog(final File file, final long maxFileBytes, final int maxFiles, final int capacity) {
+		if (file == null) {
+			throw new IllegalArgumentException("file must not be null!");
+		}
+		if (maxFileBytes <= 0 || maxFiles < 0 || capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Error log sizes are out of range!");
+		}
+		this.file = file.getAbsoluteFile();
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		final int slots = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = slots - 1;
+		this.entries = new AtomicReferenceArray<>(slots);
+		this.sequences = new AtomicLongArray(slots);
+		for (int i = 0; i < slots; i++) {
+			sequences.set(i, i);
+		}
+		timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		writer = new Thread(this::writeLoop, "tiny-saml-client-error-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a throwable for the default log, saml-Client-Error.log in the working directory. Never blocks.
+	 */
+	public static void log(final Throwable t) {
+		DefaultLog.INSTANCE.append(t);
+	}
+
+	/**
+	 * Queues a throwable, with its causes and suppressed exceptions, to be written. Never blocks.
+	 *
+	 * @return false if the entry was dropped because the buffer is full or the log is closed
+	 */
+	public boolean append(final Throwable t) {
+		if (t == null) {
+			return true;
+		}
+		if (closed || !offer(new Entry(t))) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		LockSupport.unpark(writer);
+		return true;
+	}
+
+	/**
+	 * @return how many entries have been dropped since the log was created
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops accepting entries and waits a few seconds for the queued ones to be written
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(CLOSE_TIMEOUT_MS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean offer(final Entry entry) {
+		while (true) {
+			final long position = tail.get();
+			final int index = (int) position & mask;
+			final long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					entries.lazySet(index, entry);
+					// publishes the entry to the writer
+					sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (sequence < position) {
+				// the writer hasn't freed this slot yet, the buffer is full
+				return false;
+			}
+			// another producer took this position, try the next one
+		}
+	}
+
+	private Entry poll() {
+		final int index = (int) head & mask;
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		final Entry entry = entries.get(index);
+		entries.lazySet(index, null);
+		sequences.set(index, head + mask + 1);
+		head++;
+		return entry;
+	}
+
+	private void writeLoop() {
+		while (true) {
+			// read before draining, so an entry queued before close is always written
+			final boolean closing = closed;
+			if (writeBatch() == 0) {
+				if (closing) {
+					break;
+				}
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+		}
+		closeFile();
+	}
+
+	private int writeBatch() {
+		batch.setLength(0);
+		int count = 0;
+		Entry entry;
+		while (count < MAX_BATCH && (entry = poll()) != null) {
+			format(entry);
+			count++;
+		}
+		final long droppedNow = dropped.get();
+		if (droppedNow != droppedReported) {
+			batch.append(timestampFormat.format(new Date())).append(" dropped ").append(droppedNow - droppedReported)
+					.append(" error log entries, the buffer was full").append(System.lineSeparator());
+			droppedReported = droppedNow;
+		}
+		if (batch.length() > 0) {
+			write(batch.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		return count;
+	}
+
+	private void format(final Entry entry) {
+		batch.append(timestampFormat.format(new Date(entry.timeMs))).append(" [").append(entry.threadName).append("] ");
+		formatThrowable(entry.throwable, true);
+	}
+
+	// same layout as the old FileLogUtils: one level of suppressed exceptions per cause
+	private void formatThrowable(final Throwable t, final boolean recurse) {
+		batch.append(t).append(System.lineSeparator());
+		for (final StackTraceElement ste : t.getStackTrace()) {
+			batch.append("    at ").append(ste.getClassName()).append('.').append(ste.getMethodName()).append("():")
+					.append(ste.getLineNumber()).append(System.lineSeparator());
+		}
+		if (recurse) {
+			for (final Throwable suppressed : t.getSuppressed()) {
+				formatThrowable(suppressed, false);
+			}
+		}
+		final Throwable cause = t.getCause();
+		if (cause != null && cause != t) {
+			batch.append("caused by ");
+			formatThrowable(cause, true);
+		}
+	}
+
+	private void write(final byte[] bytes) {
+		try {
+			if (out != null && fileBytes > 0 && fileBytes + bytes.length > maxFileBytes) {
+				rotate();
+			}
+			if (out == null) {
+				out = new FileOutputStream(file, true);
+				fileBytes = file.length();
+			}
+			out.write(bytes);
+			fileBytes += bytes.length;
+		} catch (final IOException e) {
+			System.out.println("Could not write error log due to exception : " + e);
+			closeFile();
+		}
+	}
+
+	private void rotate() {
+		closeFile();
+		if (maxFiles == 0) {
+			file.delete();
+			return;
+		}
+		new File(file.getPath() + "." + maxFiles).delete();
+		for (int i = maxFiles - 1; i >= 1; i--) {
+			final File older = new File(file.getPath() + "." + i);
+			if (older.exists()) {
+				older.renameTo(new File(file.getPath() + "." + (i + 1)));
+			}
+		}
+		file.renameTo(new File(file.getPath() + ".1"));
+	}
+
+	private void closeFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (final IOException e) {
+				System.out.println("Could not close error log due to exception : " + e);
+			}
+			out = null;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.ecbpenguin.saml.client.utils;
+
+import com.ecbpenguin.saml.client.utils.SamlValidationException.Reason;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives the replay cache with explicit times, including clocks that run several times round the bucket ring.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class AssertionReplayCacheTest extends TestCase {
+
+	private static final long NOW = 1_000_000L;
+
+	public void testReplayIsDetected() throws Exception {
+		final AssertionReplayCache cache = new AssertionReplayCache(100, 60_000L);
+		assertTrue(cache.markSeen("a", NOW + 5_000L, NOW));
+		assertFalse(cache.markSeen("a", NOW + 5_000L, NOW + 1_000L));
+		// a later expiry on the replay makes no difference
+		assertFalse(cache.markSeen("a", NOW + 50_000L, NOW + 2_000L));
+		assertTrue(cache.markSeen("b", NOW + 5_000L, NOW + 2_000L));
+		assertEquals(2, cache.size());
+	}
+
+	public void testAlreadyExpiredIsNotRemembered() throws Exception {
+		final AssertionReplayCache cache = new AssertionReplayCache(100, 60_000L);
+		assertTrue(cache.markSeen("a", NOW, NOW));
+		assertEquals(0, cache.size());
+	}
+
+	public void testReinsertAfterExpiry() throws Exception {
+		final AssertionReplayCache cache = new AssertionReplayCache(100, 60_000L);
+		assertTrue(cache.markSeen("a", NOW + 5_000L, NOW));
+		// held until exactly its expiry, not past it
+		assertFalse(cache.markSeen("a", NOW + 20_000L, NOW + 4_999L));
+		assertTrue(cache.markSeen("a", NOW + 20_000L, NOW + 5_000L));
+		assertEquals(1, cache.size());
+		assertFalse(cache.markSeen("a", NOW + 20_000L, NOW + 19_000L));
+		assertTrue(cache.markSeen("b", NOW + 30_000L, NOW + 21_000L));
+		assertEquals(1, cache.size());
+	}
+
+	public void testHeldNoLongerThanMaxTtl() throws Exception {
+		final AssertionReplayCache cache = new AssertionReplayCache(100, 10_000L);
+		assertTrue(cache.markSeen("a", NOW + 3_600_000L, NOW));
+		assertFalse(cache.markSeen("a", NOW + 3_600_000L, NOW + 9_000L));
+		assertTrue(cache.markSeen("a", NOW + 3_600_000L, NOW + 10_000L));
+	}
+
+	public void testReinsertedIdIsCountedOnceAcrossTheRing() throws Exception {
+		// a four bucket ring, so the later bucket of the ID sits in an earlier slot and is swept first
+		final AssertionReplayCache cache = new AssertionReplayCache(100, 2_000L);
+		assertTrue(cache.markSeen("x", 63_500L, 63_000L));
+		assertTrue(cache.markSeen("x", 66_000L, 63_600L));
+		assertTrue(cache.markSeen("y", 80_000L, 70_000L));
+		assertEquals(1, cache.size());
+		assertFalse(cache.markSeen("y", 80_000L, 70_500L));
+	}
+
+	public void testBucketsExpireAcrossRingWraps() throws Exception {
+		final long maxTtlMs = 5_000L;
+		final AssertionReplayCache cache = new AssertionReplayCache(1_000, maxTtlMs);
+		int live = 0;
+		// twenty turns of the ring, a new ID every 250ms, each held between one and three seconds
+		for (int i = 0; i < 400; i++) {
+			final long now = NOW + i * 250L;
+			assertTrue(cache.markSeen("id-" + i, now + 1_000L + (i % 9) * 250L, now));
+			if (i > 0) {
+				assertFalse(cache.markSeen("id-" + (i - 1), now + 1_000L, now));
+			}
+			live = cache.size();
+			// nothing outlives three seconds plus a bucket waiting to be swept
+			assertTrue("size " + live + " at " + i, live <= 17);
+		}
+		assertTrue(live > 0);
+		// one ID inserted after everything else expired clears the rest
+		assertTrue(cache.markSeen("last", NOW + 200_000L, NOW + 190_000L));
+		assertEquals(1, cache.size());
+		assertTrue(cache.markSeen("later", NOW + 200_000L, NOW + 199_999L));
+		assertTrue(cache.markSeen("final", NOW + 400_000L, NOW + 300_000L));
+		assertEquals(1, cache.size());
+	}
+
+	public void testCapacity() throws Exception {
+		final AssertionReplayCache cache = new AssertionReplayCache(2, 60_000L);
+		assertTrue(cache.markSeen("a", NOW + 5_000L, NOW));
+		assertTrue(cache.markSeen("b", NOW + 10_000L, NOW));
+		try {
+			cache.markSeen("c", NOW + 5_000L, NOW);
+			fail("inserted past the cap");
+		} catch (final SamlValidationException e) {
+			assertEquals(Reason.CAPACITY, e.getReason());
+		}
+		// a replay is still reported as one while full
+		assertFalse(cache.markSeen("a", NOW + 5_000L, NOW + 1_000L));
+		assertEquals(2, cache.size());
+		// room again once the first bucket lapses
+		assertTrue(cache.markSeen("c", NOW + 20_000L, NOW + 6_000L));
+		assertEquals(2, cache.size());
+	}
+
+	public void testSizeReturnsToZero() throws Exception {
+		final AssertionReplayCache cache = new AssertionReplayCache(1_000, 60_000L);
+		for (int i = 0; i < 500; i++) {
+			assertTrue(cache.markSeen("id-" + i, NOW + 1_000L + i * 100L, NOW + i * 10L));
+		}
+		// the same IDs again after they expired, each counted once
+		for (int i = 0; i < 500; i++) {
+			assertTrue(cache.markSeen("id-" + i, NOW + 60_000L + i * 10L, NOW + 55_000L + i * 10L));
+		}
+		assertEquals(500, cache.size());
+		// already expired, so only the sweep runs
+		assertTrue(cache.markSeen("late", NOW + 200_000L, NOW + 200_000L));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,59 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.opensaml.core.config.InitializationService;
+
+import junit.framework.TestCase;
+
+/**
+ * The template must produce byte for byte what the full build does for the same ID and IssueInstant, across
+ * a spread of instants including leap days and year ends.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class AuthnRequestTemplateTest extends TestCase {
+
+	private static final long[] EDGE_INSTANTS = {
+			0L,
+			951782400000L, // 2000-02-29
+			1709251199999L, // 2024-02-29T23:59:59.999
+			1735689599999L, // 2024-12-31T23:59:59.999
+			4102444800000L, // 2100-01-01
+			253402300799999L, // 9999-12-31T23:59:59.999
+	};
+
+	private AuthnRequestUtils authnRequestUtils;
+
+	@Override
+	protected void setUp() throws Exception {
+		InitializationService.initialize();
+		final String spMetadata = new File(getClass().getResource("/sp-metadata.xml").toURI()).getAbsolutePath();
+		authnRequestUtils = new AuthnRequestUtils(new ServiceProviderMetadataUtils(spMetadata), null);
+	}
+
+	public void testTemplateMatchesFullBuild() {
+		final AuthnRequestTemplate template = authnRequestUtils.getPostRequestTemplate();
+		final Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			final long instant = i < EDGE_INSTANTS.length ? EDGE_INSTANTS[i] : (random.nextLong() >>> 1) % 253402300800000L;
+			final String id = AuthnRequestTemplate.newId();
+			final String expected = authnRequestUtils.wireEncodePostRequest(authnRequestUtils.buildAuthnRequest(false, id, new DateTime(instant)));
+			assertEquals("id " + id + " instant " + instant, expected, template.encode(id, instant));
+		}
+	}
+
+	public void testBufferOutputMatchesString() {
+		final AuthnRequestTemplate template = authnRequestUtils.getPostRequestTemplate();
+		final String id = AuthnRequestTemplate.newId();
+		final long instant = 1709251199999L;
+		final byte[] buffer = new byte[template.getEncodedLength() + 3];
+		final int written = template.encode(id, instant, buffer, 3);
+		assertEquals(template.getEncodedLength(), written);
+		assertEquals(template.encode(id, instant), new String(buffer, 3, written, StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,110 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * Writes snapshot files and reads them back, intact and damaged. The certificate is the SP's test one from
+ * keys/sp.jks, any certificate will do.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class IdpMetadataSnapshotFileTest extends TestCase {
+
+	private static final String METADATA_URL = "https://idp.example.com/metadata";
+
+	// magic, format version and payload length come before the payload
+	private static final int HEADER_LENGTH = 12;
+
+	private X509Certificate certificate;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		try (InputStream in = new FileInputStream(new File(getClass().getResource("/keys/sp.jks").toURI()))) {
+			keyStore.load(in, "changeit".toCharArray());
+		}
+		certificate = (X509Certificate) keyStore.getCertificate("sp");
+		file = File.createTempFile("idp-metadata", ".snapshot");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private IdpMetadataSnapshot snapshot(final DateTime validUntil) {
+		return new IdpMetadataSnapshot(7, "https://idp.example.com/idp", "https://idp.example.com/sso",
+				Collections.singletonList(certificate), validUntil);
+	}
+
+	public void testRoundTrip() throws Exception {
+		final IdpMetadataSnapshot written = snapshot(new DateTime(DateTimeZone.UTC).plusDays(1).withMillisOfSecond(0));
+		IdpMetadataSnapshotFile.write(file, written, METADATA_URL, "\"v7\"");
+		final IdpMetadataSnapshotFile.Contents read = IdpMetadataSnapshotFile.readContents(file, METADATA_URL);
+		assertNotNull(read);
+		assertTrue(read.snapshot.sameContentAs(written));
+		assertEquals(1, read.snapshot.getVersion());
+		assertEquals("\"v7\"", read.etag);
+		assertEquals(written.getValidUntil().getMillis(), read.snapshot.getValidUntil().getMillis());
+	}
+
+	public void testRoundTripWithoutEtagOrValidUntil() throws Exception {
+		final IdpMetadataSnapshot written = snapshot(null);
+		IdpMetadataSnapshotFile.write(file, written, METADATA_URL, null);
+		final IdpMetadataSnapshotFile.Contents read = IdpMetadataSnapshotFile.readContents(file, METADATA_URL);
+		assertNotNull(read);
+		assertTrue(read.snapshot.sameContentAs(written));
+		assertNull(read.etag);
+		assertNull(read.snapshot.getValidUntil());
+	}
+
+	public void testFlippedPayloadByte() throws Exception {
+		IdpMetadataSnapshotFile.write(file, snapshot(null), METADATA_URL, "\"v7\"");
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		// inside the certificate, where nothing but the checksum would notice
+		bytes[bytes.length - 8 - 100] ^= 0x01;
+		Files.write(file.toPath(), bytes);
+		assertNull(IdpMetadataSnapshotFile.readContents(file, METADATA_URL));
+	}
+
+	public void testTruncatedFile() throws Exception {
+		IdpMetadataSnapshotFile.write(file, snapshot(null), METADATA_URL, "\"v7\"");
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		for (final int length : new int[] { bytes.length - 1, bytes.length - 8, bytes.length / 2, HEADER_LENGTH, 6, 0 }) {
+			Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+			assertNull("truncated to " + length, IdpMetadataSnapshotFile.readContents(file, METADATA_URL));
+		}
+	}
+
+	public void testOtherMetadataUrl() throws Exception {
+		IdpMetadataSnapshotFile.write(file, snapshot(null), METADATA_URL, "\"v7\"");
+		assertNull(IdpMetadataSnapshotFile.readContents(file, "https://other.example.com/metadata"));
+		assertNotNull(IdpMetadataSnapshotFile.readContents(file, METADATA_URL));
+	}
+
+	public void testExpired() throws Exception {
+		IdpMetadataSnapshotFile.write(file, snapshot(new DateTime(DateTimeZone.UTC).minusMinutes(1)), METADATA_URL, "\"v7\"");
+		assertNull(IdpMetadataSnapshotFile.readContents(file, METADATA_URL));
+	}
+
+	public void testMissingFile() throws Exception {
+		file.delete();
+		assertNull(IdpMetadataSnapshotFile.readContents(file, METADATA_URL));
+		assertNull(IdpMetadataSnapshotFile.readContents(null, METADATA_URL));
+	}
+}
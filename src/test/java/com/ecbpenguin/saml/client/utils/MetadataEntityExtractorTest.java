@@ -0,0 +1,89 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import junit.framework.TestCase;
+
+/**
+ * Cuts entities out of a small aggregate whose namespaces are all declared on ancestors of the entities.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class MetadataEntityExtractorTest extends TestCase {
+
+	private static final String MDUI_NS = "urn:oasis:names:tc:SAML:metadata:ui";
+
+	private static final String AGGREGATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<!-- federation aggregate -->\n"
+			+ "<md:EntitiesDescriptor xmlns:md=\"" + SAMLConstants.SAML20MD_NS + "\" xmlns:ds=\"" + SignatureConstants.XMLSIG_NS + "\""
+			+ " Name=\"federation\" validUntil=\"2030-01-01T00:00:00Z\" cacheDuration=\"PT6H\">\n"
+			+ "  <md:EntitiesDescriptor Name=\"idps\" xmlns:mdui=\"" + MDUI_NS + "\" validUntil=\"2029-01-01T00:00:00Z\">\n"
+			+ "    <md:EntityDescriptor entityID=\"https://other.example.com/idp\"/>\n"
+			+ "    <md:EntityDescriptor entityID=\"https://idp.example.com/idp\">\n"
+			+ "      <md:IDPSSODescriptor protocolSupportEnumeration=\"" + SAMLConstants.SAML20P_NS + "\">\n"
+			+ "        <md:Extensions><mdui:UIInfo><mdui:DisplayName xml:lang=\"en\">Example &amp; Co &lt;IdP&gt;</mdui:DisplayName></mdui:UIInfo></md:Extensions>\n"
+			+ "        <md:SingleSignOnService Binding=\"" + SAMLConstants.SAML2_POST_BINDING_URI + "\" Location=\"https://idp.example.com/sso?a=1&amp;b=&quot;2&quot;\"/>\n"
+			+ "      </md:IDPSSODescriptor>\n"
+			+ "    </md:EntityDescriptor>\n"
+			+ "    <md:EntityDescriptor entityID=\"https://signed.example.com/idp\" ID=\"signed\">\n"
+			+ "      <ds:Signature><ds:SignedInfo/></ds:Signature>\n"
+			+ "      <md:IDPSSODescriptor protocolSupportEnumeration=\"" + SAMLConstants.SAML20P_NS + "\"/>\n"
+			+ "    </md:EntityDescriptor>\n"
+			+ "  </md:EntitiesDescriptor>\n"
+			+ "</md:EntitiesDescriptor>\n";
+
+	private static Element extract(final String entityId) throws Exception {
+		final byte[] entity = MetadataEntityExtractor.extract(AGGREGATE.getBytes(StandardCharsets.UTF_8), entityId);
+		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		final Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(entity));
+		final Element root = document.getDocumentElement();
+		assertEquals(SAMLConstants.SAML20MD_NS, root.getNamespaceURI());
+		assertEquals("EntityDescriptor", root.getLocalName());
+		assertEquals(entityId, root.getAttribute("entityID"));
+		return root;
+	}
+
+	public void testEntityParsesStandalone() throws Exception {
+		final Element entity = extract("https://idp.example.com/idp");
+		final Element displayName = (Element) entity.getElementsByTagNameNS(MDUI_NS, "DisplayName").item(0);
+		assertNotNull("prefix declared on an ancestor", displayName);
+		assertEquals("Example & Co <IdP>", displayName.getTextContent());
+		assertEquals("en", displayName.getAttributeNS("http://www.w3.org/XML/1998/namespace", "lang"));
+		final Element sso = (Element) entity.getElementsByTagNameNS(SAMLConstants.SAML20MD_NS, "SingleSignOnService").item(0);
+		assertEquals("https://idp.example.com/sso?a=1&b=\"2\"", sso.getAttribute("Location"));
+	}
+
+	public void testNearestValidityIsInherited() throws Exception {
+		final Element entity = extract("https://idp.example.com/idp");
+		assertEquals("2029-01-01T00:00:00Z", entity.getAttribute("validUntil"));
+		assertEquals("PT6H", entity.getAttribute("cacheDuration"));
+	}
+
+	public void testSignedEntityIsLeftAsSigned() throws Exception {
+		final Element entity = extract("https://signed.example.com/idp");
+		assertFalse(entity.hasAttribute("validUntil"));
+		assertFalse(entity.hasAttribute("cacheDuration"));
+		assertEquals("signed", entity.getAttribute("ID"));
+		assertEquals(1, entity.getElementsByTagNameNS(SignatureConstants.XMLSIG_NS, "SignedInfo").getLength());
+	}
+
+	public void testMissingEntity() throws Exception {
+		try {
+			MetadataEntityExtractor.extract(AGGREGATE.getBytes(StandardCharsets.UTF_8), "https://missing.example.com/idp");
+			fail("extracted an entity that isn't there");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("missing.example.com"));
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+/**
+ * Exercises the probing tables through request IDs picked to land in one stripe at chosen slots. With 6
+ * entries per stripe every stripe is an 8 slot table, so probe runs starting at slot 7 wrap round to slot 0.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class OutstandingRequestTrackerTest extends TestCase {
+
+	private static final int PER_STRIPE = 6;
+
+	private static final int SLOTS = 8;
+
+	private static final long TTL_MS = 10_000L;
+
+	private final Random random = new Random(42);
+
+	private OutstandingRequestTracker tracker;
+
+	// a little after the tracker's own start, so whole second offsets from here never round down a second
+	private long startMs;
+
+	@Override
+	protected void setUp() throws Exception {
+		tracker = new OutstandingRequestTracker(PER_STRIPE * OutstandingRequestTracker.STRIPE_COUNT, TTL_MS);
+		startMs = System.currentTimeMillis() + 500;
+	}
+
+	private long at(final int seconds) {
+		return startMs + seconds * 1000L;
+	}
+
+	// a request ID in stripe 0 whose probe run starts at the given slot
+	private String idAt(final int home) {
+		while (true) {
+			final long hi = random.nextLong();
+			final long lo = random.nextLong();
+			final int hash = OutstandingRequestTracker.hash(hi, lo);
+			if ((hash >>> 26) == 0 && (hash & (SLOTS - 1)) == home) {
+				return "_" + new UUID(hi, lo);
+			}
+		}
+	}
+
+	public void testRecordAndConsume() {
+		final String id = idAt(3);
+		assertTrue(tracker.record(id, at(0)));
+		assertEquals(1, tracker.size());
+		assertTrue(tracker.consume(id, at(1)));
+		assertFalse("consumed twice", tracker.consume(id, at(1)));
+		assertEquals(0, tracker.size());
+		assertFalse("never issued", tracker.consume(idAt(3), at(1)));
+	}
+
+	public void testRejectsForeignIds() {
+		assertFalse(tracker.record("not-a-request-id", at(0)));
+		assertFalse(tracker.record("_" + UUID.randomUUID() + "x", at(0)));
+		assertFalse(tracker.record(null, at(0)));
+		assertFalse(tracker.consume("_not-a-uuid-but-the-length-is-right-x", at(0)));
+		assertEquals(0, tracker.size());
+	}
+
+	public void testExpiry() {
+		final String id = idAt(5);
+		assertTrue(tracker.record(id, at(0)));
+		assertFalse(tracker.consume(id, at(11)));
+		// consuming an expired ID still removes it
+		assertEquals(0, tracker.size());
+	}
+
+	public void testFullStripeIsFreedBySweep() {
+		final List<String> ids = new ArrayList<>();
+		for (int i = 0; i < PER_STRIPE; i++) {
+			ids.add(idAt(i % 3));
+			assertTrue(tracker.record(ids.get(i), at(0)));
+		}
+		final String extra = idAt(1);
+		assertFalse("stripe full of live requests", tracker.record(extra, at(5)));
+		assertTrue(tracker.record(extra, at(11)));
+		for (final String id : ids) {
+			assertFalse("swept", tracker.consume(id, at(11)));
+		}
+		assertTrue(tracker.consume(extra, at(12)));
+	}
+
+	public void testDeleteInWrappedProbeRun() {
+		// three IDs homed at the last slot fill 7, 0 and 1; one homed at 0 is pushed to 2 and one homed at 1 to 3
+		final String a = idAt(7);
+		final String b = idAt(7);
+		final String c = idAt(7);
+		final String d = idAt(0);
+		final String e = idAt(1);
+		for (final String id : new String[] { a, b, c, d, e }) {
+			assertTrue(tracker.record(id, at(0)));
+		}
+		// removing the head of the run shifts everything after it back across the wrap
+		assertTrue(tracker.consume(a, at(1)));
+		assertTrue(tracker.consume(d, at(1)));
+		assertTrue(tracker.consume(e, at(1)));
+		assertTrue(tracker.consume(c, at(1)));
+		assertTrue(tracker.consume(b, at(1)));
+		for (final String id : new String[] { a, b, c, d, e }) {
+			assertFalse(tracker.consume(id, at(1)));
+		}
+		assertEquals(0, tracker.size());
+	}
+
+	public void testSweepAcrossWrappedProbeRun() {
+		// the oldest three wrap round the end of the table, the three recorded later sit behind them
+		final String[] old = { idAt(7), idAt(7), idAt(7) };
+		final String[] recent = { idAt(0), idAt(1), idAt(6) };
+		for (final String id : old) {
+			assertTrue(tracker.record(id, at(0)));
+		}
+		for (final String id : recent) {
+			assertTrue(tracker.record(id, at(5)));
+		}
+		final String extra = idAt(7);
+		assertFalse(tracker.record(extra, at(5)));
+		// the old ones have expired, the sweep drops them and keeps the recent ones reachable
+		assertTrue(tracker.record(extra, at(11)));
+		assertEquals(4, tracker.size());
+		for (final String id : recent) {
+			assertTrue(tracker.consume(id, at(12)));
+		}
+		assertTrue(tracker.consume(extra, at(12)));
+		for (final String id : old) {
+			assertFalse(tracker.consume(id, at(12)));
+		}
+		assertEquals(0, tracker.size());
+	}
+}
@@ -0,0 +1,68 @@
+package com.ecbpenguin.saml.client.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PrivateKey;
+
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+import junit.framework.TestCase;
+
+/**
+ * Loads an SP key from each supported kind of file. The keystores were made with keytool, password changeit,
+ * and the PEM with openssl genpkey.
+ *
+ * @author ecb_penguin
+ *
+ */
+public class SigningKeyUtilsTest extends TestCase {
+
+	private static final String PASSWORD = "changeit";
+
+	private static String resource(final String name) throws URISyntaxException {
+		return new File(SigningKeyUtilsTest.class.getResource("/keys/" + name).toURI()).getAbsolutePath();
+	}
+
+	private static void assertRsa(final PrivateKey key) {
+		assertEquals("RSA", key.getAlgorithm());
+		assertEquals(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256, SigningKeyUtils.getSignatureAlgorithmUri(key));
+	}
+
+	public void testJks() throws Exception {
+		assertRsa(SigningKeyUtils.loadPrivateKey(resource("sp.jks"), PASSWORD, null));
+	}
+
+	public void testJceks() throws Exception {
+		assertRsa(SigningKeyUtils.loadPrivateKey(resource("sp.jceks"), PASSWORD, "sp"));
+	}
+
+	public void testPkcs12() throws Exception {
+		assertRsa(SigningKeyUtils.loadPrivateKey(resource("sp.p12"), PASSWORD, null));
+	}
+
+	public void testEcPem() throws Exception {
+		final PrivateKey key = SigningKeyUtils.loadPrivateKey(resource("sp-ec.pem"), null, null);
+		assertEquals("EC", key.getAlgorithm());
+		assertEquals(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256, SigningKeyUtils.getSignatureAlgorithmUri(key));
+		assertEquals("SHA256withECDSA", SigningKeyUtils.getJcaSignatureAlgorithm(key));
+	}
+
+	public void testUpperCaseExtension() throws Exception {
+		final File copy = File.createTempFile("sp-key", ".JCEKS");
+		copy.deleteOnExit();
+		Files.copy(new File(resource("sp.jceks")).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		assertRsa(SigningKeyUtils.loadPrivateKey(copy.getAbsolutePath(), PASSWORD, null));
+	}
+
+	public void testMissingAlias() throws Exception {
+		try {
+			SigningKeyUtils.loadPrivateKey(resource("sp.p12"), PASSWORD, "nope");
+			fail("loaded a key for an alias that isn't there");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("nope"));
+		}
+	}
+}